@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.model.StreamBuildListener;
+import org.apache.commons.io.output.NullOutputStream;
+import org.cloudfoundry.client.lib.domain.ApplicationLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the staging and application logs written to the build console.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LogListenerBenchmark {
+
+    private static final int BATCH = 1000;
+
+    private JenkinsApplicationLogListener listener;
+    private ApplicationLog[] logs;
+
+    @Setup
+    public void createListener() {
+        StreamBuildListener buildListener = new StreamBuildListener(new NullOutputStream(), Charset.forName("UTF-8"));
+        listener = new JenkinsApplicationLogListener(buildListener, new ApplicationReadinessMonitor());
+        logs = new ApplicationLog[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            // Mostly staging output, with an instance event from time to time
+            String sourceName = i % 100 == 0 ? "DEA" : "STG";
+            logs[i] = new ApplicationLog("app-guid", "-----> Downloading dependency " + i + " of " + BATCH,
+                    new Date(), ApplicationLog.MessageType.STDOUT, sourceName, "0");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void onMessage() {
+        for (ApplicationLog log : logs) {
+            listener.onMessage(log);
+        }
+    }
+
+    @TearDown
+    public void closeListener() {
+        listener.onComplete();
+    }
+}
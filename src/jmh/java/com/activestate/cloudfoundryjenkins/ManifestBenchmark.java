@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a manifest file: parsing the YAML, and building the DeploymentInfo of each app.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ManifestBenchmark {
+
+    /**
+     * Number of applications in the manifest file.
+     */
+    @Param({"1", "500"})
+    public int apps;
+
+    private File manifestFile;
+    private FilePath manifestFilePath;
+    private byte[] content;
+    private PrintStream logger;
+
+    @Setup(Level.Trial)
+    public void createManifest() throws IOException {
+        StringBuilder manifest = new StringBuilder("---\nmemory: 256M\nenv:\n  GLOBAL_VAR: global\napplications:\n");
+        for (int i = 0; i < apps; i++) {
+            manifest.append("- name: app-").append(i).append('\n')
+                    .append("  memory: 512M\n")
+                    .append("  host: host-").append(i).append('\n')
+                    .append("  instances: 2\n")
+                    .append("  path: target/app-").append(i).append(".war\n")
+                    .append("  env:\n")
+                    .append("    ENV_VAR_ONE: value1\n")
+                    .append("    ENV_VAR_TWO: value2\n")
+                    .append("  services:\n")
+                    .append("  - mysql-").append(i).append('\n');
+        }
+        content = manifest.toString().getBytes("UTF-8");
+        manifestFile = File.createTempFile("manifest", ".yml");
+        FileUtils.writeByteArrayToFile(manifestFile, content);
+        manifestFilePath = new FilePath(manifestFile);
+        logger = new PrintStream(new NullOutputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteManifest() throws IOException, InterruptedException {
+        Util.deleteFile(manifestFile);
+    }
+
+    /**
+     * Parsing from scratch, as for a manifest that changed since the last build.
+     */
+    @Benchmark
+    public Manifest parse() throws ManifestParsingException {
+        return Manifest.compile(content, "manifest.yml");
+    }
+
+    /**
+     * Reading the file again, as for a manifest that did not change since the last build.
+     */
+    @Benchmark
+    public List<ManifestApplication> readUnchanged() throws IOException, ManifestParsingException {
+        return new ManifestReader(manifestFilePath).getApplications();
+    }
+
+    @Benchmark
+    public List<DeploymentInfo> readDeploymentInfos()
+            throws IOException, ManifestParsingException, InterruptedException {
+        return DeploymentInfo.readManifest(logger, manifestFilePath, "jenkins-build-name", "domain-name");
+    }
+}
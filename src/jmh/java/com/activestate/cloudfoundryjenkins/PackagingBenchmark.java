@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packaging of an application directory: hashing its files for the resource match,
+ * and writing the zip archive that is uploaded to the Cloud Controller.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PackagingBenchmark {
+
+    /**
+     * many-small: 5000 files of 1 KiB, like a node_modules folder.
+     * few-large: 8 files of 8 MiB, like a folder of jars.
+     * mixed: 1000 files of 4 KiB and 4 files of 4 MiB.
+     */
+    @Param({"many-small", "few-large", "mixed"})
+    public String shape;
+
+    private File workspace;
+    private FilePath appPath;
+    private ResourceIndex index;
+
+    @Setup(Level.Trial)
+    public void createWorkspace() throws Exception {
+        workspace = Util.createTempDir();
+        // Always the same content, so results are comparable across runs
+        Random random = new Random(42);
+        if (shape.equals("many-small")) {
+            createFiles(random, "small", 5000, 1024);
+        } else if (shape.equals("few-large")) {
+            createFiles(random, "large", 8, 8 * 1024 * 1024);
+        } else {
+            createFiles(random, "small", 1000, 4 * 1024);
+            createFiles(random, "large", 4, 4 * 1024 * 1024);
+        }
+        appPath = new FilePath(workspace);
+        index = appPath.act(new ResourceScanner(new ResourceIndex()));
+    }
+
+    private void createFiles(Random random, String prefix, int count, int size) throws IOException {
+        byte[] content = new byte[size];
+        for (int i = 0; i < count; i++) {
+            // Text-like content, so it compresses like real application files do
+            for (int j = 0; j < size; j++) {
+                content[j] = (byte) ('a' + random.nextInt(16));
+            }
+            File file = new File(workspace, prefix + "/dir" + (i / 100) + "/file" + i + ".txt");
+            FileUtils.writeByteArrayToFile(file, content);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkspace() throws IOException, InterruptedException {
+        Util.deleteRecursive(workspace);
+    }
+
+    @Benchmark
+    public long archive() throws IOException, InterruptedException {
+        return appPath.act(new ApplicationArchiver(new NullOutputStream()));
+    }
+
+    @Benchmark
+    public ResourceIndex scanWithoutIndex() throws IOException, InterruptedException {
+        return appPath.act(new ResourceScanner(new ResourceIndex()));
+    }
+
+    @Benchmark
+    public ResourceIndex scanWithUpToDateIndex() throws IOException, InterruptedException {
+        return appPath.act(new ResourceScanner(index));
+    }
+}
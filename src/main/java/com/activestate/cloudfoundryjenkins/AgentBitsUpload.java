@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.Set;
+
+/**
+ * Uploads the application bits from the node holding the workspace, straight to the Cloud Controller.
+ * <p>
+ * The bits of a push done by the controller go through the remoting channel, which makes the controller
+ * the bottleneck when many builds push at the same time. Run on the build agent, only the access token
+ * goes to the agent, and only the upload statistics come back.
+ */
+public class AgentBitsUpload implements FilePath.FileCallable<AgentBitsUpload.Result> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final URL target;
+    private final String accessToken;
+    private final boolean selfSigned;
+    private final String appGuid;
+    private final ResourceIndex index;
+    private final int compressionLevel;
+    private final StagingCache.Location staging;
+
+    /**
+     * @param index            the fingerprints of the application files, or null if the application is an archive file
+     * @param compressionLevel the deflate level of the archive built from a directory
+     * @param staging          where the deflated files are kept between pushes, or null
+     */
+    AgentBitsUpload(URL target, String accessToken, boolean selfSigned, String appGuid, ResourceIndex index,
+                    int compressionLevel, StagingCache.Location staging) {
+        this.target = target;
+        this.accessToken = accessToken;
+        this.selfSigned = selfSigned;
+        this.appGuid = appGuid;
+        this.index = index;
+        this.compressionLevel = compressionLevel;
+        this.staging = staging;
+    }
+
+    public Result invoke(File appPath, VirtualChannel channel) throws IOException, InterruptedException {
+        ApplicationBitsUploader uploader = new ApplicationBitsUploader(target, accessToken, selfSigned,
+                compressionLevel);
+        if (index == null) {
+            return new Result(0, 1, uploader.uploadArchive(appGuid, appPath));
+        }
+        Set<String> matchedFiles = uploader.matchResources(index);
+        long bytes = uploader.uploadDirectory(appGuid, new FilePath(appPath), index, matchedFiles, staging);
+        return new Result(matchedFiles.size(), index.size(), bytes);
+    }
+
+    public static final class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public final int matchedFiles;
+        public final int totalFiles;
+        public final long uploadedBytes;
+
+        public Result(int matchedFiles, int totalFiles, long uploadedBytes) {
+            this.matchedFiles = matchedFiles;
+            this.totalFiles = totalFiles;
+            this.uploadedBytes = uploadedBytes;
+        }
+    }
+}
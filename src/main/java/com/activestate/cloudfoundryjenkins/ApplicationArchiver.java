@@ -0,0 +1,510 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+/**
+ * Zips the content of an application directory into an output stream, on the node where the directory lives.
+ * The output stream is typically the body of the upload request, so the archive is built exactly once
+ * and never touches the disk.
+ * <p>
+ * Files are deflated in parallel, one per core, while the archive is written in order. The deflating threads
+ * are shared by all the archives built on the node, so concurrent pushes don't start one thread per core each.
+ * Files that are already compressed, like .jar or .png files, would not shrink and are stored as they are.
+ * With a {@link StagingCache}, only the files that changed since the last push are deflated again.
+ */
+public class ApplicationArchiver implements FilePath.FileCallable<Long> {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(ApplicationArchiver.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Deflated files up to this size are kept in memory until written, larger ones go to a temporary file.
+     */
+    static final long MAX_BUFFERED_SIZE = 8L << 20;
+
+    /**
+     * Extensions of the file types that are already compressed.
+     */
+    static final Set<String> COMPRESSED_EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "jar", "war", "ear", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar",
+            "png", "jpg", "jpeg", "gif", "webp", "ico", "mp3", "mp4", "ogg", "woff", "woff2")));
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService WORKERS = createWorkers();
+
+    private final OutputStream out;
+    private final Set<String> excludedFiles;
+    private final int compressionLevel;
+    private final StagingCache.Location staging;
+
+    /**
+     * @param out the stream to write the archive to. If the directory is on a remote node,
+     *            this must be a {@link hudson.remoting.RemoteOutputStream}.
+     */
+    public ApplicationArchiver(OutputStream out) {
+        this(out, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param out           the stream to write the archive to
+     * @param excludedFiles relative paths of the files to leave out, typically those the Cloud Controller
+     *                      already has in its resource cache
+     */
+    public ApplicationArchiver(OutputStream out, Set<String> excludedFiles) {
+        this(out, excludedFiles, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compressionLevel the deflate level, from 0 (store everything) to 9,
+     *                         or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public ApplicationArchiver(OutputStream out, Set<String> excludedFiles, int compressionLevel) {
+        this(out, excludedFiles, compressionLevel, null);
+    }
+
+    /**
+     * @param staging where the deflated entries are kept between pushes, or null to deflate everything
+     */
+    ApplicationArchiver(OutputStream out, Set<String> excludedFiles, int compressionLevel,
+                        StagingCache.Location staging) {
+        this.out = out;
+        this.excludedFiles = excludedFiles;
+        this.compressionLevel = compressionLevel;
+        this.staging = staging;
+    }
+
+    /**
+     * Writes the archive and returns the number of files it contains.
+     */
+    public Long invoke(File appDir, VirtualChannel channel) throws IOException, InterruptedException {
+        Set<File> temporaryFiles = Collections.synchronizedSet(new HashSet<File>());
+        StagingCache cache = staging != null ? StagingCache.open(new File(staging.dir)) : null;
+        RunningTasks tasks = new RunningTasks();
+        // Entries are prepared ahead of the writer, but only a few per thread, to bound the memory used
+        Queue<Future<PreparedEntry>> pending = new ArrayDeque<Future<PreparedEntry>>();
+        long files;
+        boolean complete = false;
+        try {
+            List<Item> items = new ArrayList<Item>();
+            Set<String> parents = new HashSet<String>();
+            parents.add(appDir.getCanonicalPath());
+            files = listDirectory(appDir, "", parents, items, cache, temporaryFiles);
+            ZipArchiveWriter zip = new ZipArchiveWriter(out);
+            Iterator<Item> remaining = items.iterator();
+            while (pending.size() < THREADS * 2 && remaining.hasNext()) {
+                pending.add(WORKERS.submit(tasks.track(remaining.next())));
+            }
+            while (!pending.isEmpty()) {
+                PreparedEntry entry = get(pending.remove());
+                if (remaining.hasNext()) {
+                    pending.add(WORKERS.submit(tasks.track(remaining.next())));
+                }
+                try {
+                    entry.writeTo(zip);
+                } finally {
+                    entry.discard();
+                }
+            }
+            zip.finish();
+            complete = true;
+        } finally {
+            for (Future<PreparedEntry> future : pending) {
+                future.cancel(false);
+            }
+            tasks.awaitCompletion();
+            // Left over when the archive could not be completed
+            for (File tempFile : temporaryFiles.toArray(new File[0])) {
+                tempFile.delete();
+            }
+            if (cache != null) {
+                closeCache(cache, complete);
+            }
+            out.close();
+        }
+        return files;
+    }
+
+    /**
+     * Lists the directories and files to archive, in the order they are written.
+     * Links to a parent directory are left out, they would be followed forever.
+     *
+     * @param parents the canonical paths of the directory and its parents
+     * @return the number of files
+     */
+    private long listDirectory(File dir, String prefix, Set<String> parents, List<Item> items, StagingCache cache,
+                               Set<File> temporaryFiles) throws IOException, InterruptedException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException("Could not list directory: " + dir.getAbsolutePath());
+        }
+        // Sorted so that identical workspaces produce identical archives
+        Arrays.sort(children);
+        long files = 0;
+        for (File child : children) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            String name = prefix + child.getName();
+            if (child.isDirectory()) {
+                String canonicalPath = child.getCanonicalPath();
+                if (!parents.add(canonicalPath)) {
+                    LOGGER.warning("Leaving out " + child + ", it links to one of its parent directories");
+                    continue;
+                }
+                items.add(new Item(child, name + "/", true, cache, temporaryFiles));
+                files += listDirectory(child, name + "/", parents, items, cache, temporaryFiles);
+                parents.remove(canonicalPath);
+            } else if (!excludedFiles.contains(name)) {
+                items.add(new Item(child, name, false, cache, temporaryFiles));
+                files++;
+            } else if (cache != null) {
+                cache.retain(name, child);
+            }
+        }
+        return files;
+    }
+
+    private static PreparedEntry get(Future<PreparedEntry> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static ExecutorService createWorkers() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Cloud Foundry archiver");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // No idle threads left behind on agents that rarely push
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * The entries of one archive being prepared by the shared workers.
+     * Reading a file can't be interrupted, so an archive that fails waits for the workers to finish the files
+     * they are on before deleting their temporary files. The entries not started yet are cancelled.
+     */
+    private static final class RunningTasks {
+
+        private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+        private int running;
+
+        <T> Callable<T> track(final Callable<T> task) {
+            return new Callable<T>() {
+                public T call() throws Exception {
+                    synchronized (RunningTasks.this) {
+                        running++;
+                    }
+                    try {
+                        return task.call();
+                    } finally {
+                        synchronized (RunningTasks.this) {
+                            running--;
+                            RunningTasks.this.notifyAll();
+                        }
+                    }
+                }
+            };
+        }
+
+        synchronized void awaitCompletion() {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            long remaining;
+            while (running > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the entries of a complete archive for the next push, and throws away those of an incomplete one.
+     */
+    private void closeCache(StagingCache cache, boolean complete) {
+        if (!complete) {
+            cache.discard();
+            return;
+        }
+        try {
+            cache.commit();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the staging cache " + staging.dir, e);
+            cache.discard();
+        }
+        StagingCache.evict(new File(staging.root), staging.quota, new File(staging.dir));
+    }
+
+    static boolean isCompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * A directory or file to archive. Preparing it reads the file and deflates it, in a worker thread.
+     */
+    private final class Item implements Callable<PreparedEntry> {
+
+        final File file;
+        final String name;
+        final boolean directory;
+        final StagingCache cache;
+        final Set<File> temporaryFiles;
+
+        Item(File file, String name, boolean directory, StagingCache cache, Set<File> temporaryFiles) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.cache = cache;
+            this.temporaryFiles = temporaryFiles;
+        }
+
+        public PreparedEntry call() throws IOException {
+            long time = file.lastModified();
+            if (directory) {
+                return new PreparedEntry(name, time);
+            }
+            if (cache != null) {
+                StagingCache.Entry cached = cache.lookup(name, file, compressionLevel);
+                if (cached != null && cached.method == ZipEntry.DEFLATED) {
+                    return new PreparedEntry(name, time, cache.getBlob(name), false, cached.crc, cached.size,
+                            cached.compressedSize);
+                } else if (cached != null) {
+                    return new PreparedEntry(name, time, file, cached.crc, cached.size);
+                }
+            }
+            PreparedEntry entry;
+            if (compressionLevel == 0 || isCompressed(name)) {
+                entry = new PreparedEntry(name, time, file, checksum(file), file.length());
+            } else {
+                entry = deflate(time);
+            }
+            if (cache != null) {
+                cache.put(name, new StagingCache.Entry(entry.method, compressionLevel, entry.crc, entry.size,
+                        entry.compressedSize, time));
+            }
+            return entry;
+        }
+
+        private PreparedEntry deflate(long time) throws IOException {
+            // Deflated straight into the staging cache when there is one
+            boolean buffered = cache == null && file.length() <= MAX_BUFFERED_SIZE;
+            ByteArrayOutputStream memory = null;
+            File tempFile = null;
+            OutputStream target;
+            if (buffered) {
+                target = memory = new ByteArrayOutputStream();
+            } else if (cache != null) {
+                tempFile = cache.getBlob(name);
+                File parent = tempFile.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create directory " + parent);
+                }
+                target = new FileOutputStream(tempFile);
+            } else {
+                tempFile = File.createTempFile("cloudfoundry-archive", ".deflated");
+                temporaryFiles.add(tempFile);
+                target = new FileOutputStream(tempFile);
+            }
+
+            // Raw deflate data, without zlib header, is what goes into a zip entry
+            Deflater deflater = new Deflater(compressionLevel, true);
+            CRC32 crc = new CRC32();
+            long size = 0;
+            boolean done = false;
+            try {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(target, deflater, BUFFER_SIZE);
+                InputStream in = new FileInputStream(file);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        crc.update(buffer, 0, read);
+                        deflated.write(buffer, 0, read);
+                        size += read;
+                    }
+                } finally {
+                    in.close();
+                }
+                deflated.close();
+                done = true;
+            } finally {
+                deflater.end();
+                if (!done) {
+                    target.close();
+                    if (tempFile != null) {
+                        tempFile.delete();
+                    }
+                }
+            }
+
+            long compressedSize = buffered ? memory.size() : tempFile.length();
+            if (compressedSize >= size) {
+                // Incompressible after all
+                if (tempFile != null) {
+                    tempFile.delete();
+                }
+                return new PreparedEntry(name, time, file, crc.getValue(), size);
+            }
+            if (buffered) {
+                return new PreparedEntry(name, time, memory.toByteArray(), crc.getValue(), size);
+            }
+            return new PreparedEntry(name, time, tempFile, cache == null, crc.getValue(), size, compressedSize);
+        }
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * An entry ready to be written: a directory, a stored file, or deflated data in memory or in a file.
+     */
+    private static final class PreparedEntry {
+
+        final String name;
+        final long time;
+        final int method;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        final File source;
+        final boolean temporary;
+        final byte[] data;
+        final boolean directory;
+
+        /**
+         * A directory.
+         */
+        PreparedEntry(String name, long time) {
+            this(name, time, ZipEntry.STORED, 0, 0, 0, null, false, null, true);
+        }
+
+        /**
+         * A file stored as is.
+         */
+        PreparedEntry(String name, long time, File file, long crc, long size) {
+            this(name, time, ZipEntry.STORED, crc, size, size, file, false, null, false);
+        }
+
+        /**
+         * A file deflated in memory.
+         */
+        PreparedEntry(String name, long time, byte[] data, long crc, long size) {
+            this(name, time, ZipEntry.DEFLATED, crc, size, data.length, null, false, data, false);
+        }
+
+        /**
+         * A file deflated into another file.
+         *
+         * @param temporary whether the deflated file is deleted once written
+         */
+        PreparedEntry(String name, long time, File deflated, boolean temporary, long crc, long size,
+                      long compressedSize) {
+            this(name, time, ZipEntry.DEFLATED, crc, size, compressedSize, deflated, temporary, null, false);
+        }
+
+        private PreparedEntry(String name, long time, int method, long crc, long size, long compressedSize,
+                              File source, boolean temporary, byte[] data, boolean directory) {
+            this.name = name;
+            this.time = time;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.source = source;
+            this.temporary = temporary;
+            this.data = data;
+            this.directory = directory;
+        }
+
+        void writeTo(ZipArchiveWriter zip) throws IOException {
+            if (directory) {
+                zip.writeDirectory(name, time);
+            } else if (data != null) {
+                zip.writeEntry(name, time, method, crc, size, data);
+            } else {
+                InputStream in = new FileInputStream(source);
+                try {
+                    zip.writeEntry(name, time, method, crc, compressedSize, size, in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        void discard() {
+            if (temporary) {
+                source.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Uploads application bits to the Cloud Controller with a streamed multipart request.
+ * <p>
+ * The CF Java client buffers the whole archive before sending it, and needs a local directory or zip file
+ * to start from. This uploader builds the archive on the fly, on the node holding the workspace,
+ * and writes it directly to the request body, so memory use stays bounded whatever the size of the app.
+ * <p>
+ * Requests go through the {@link CircuitBreaker} of the target. Resource matching is retried like the client
+ * calls, uploads are not.
+ */
+public class ApplicationBitsUploader {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 60 * 1000;
+    private static final int READ_TIMEOUT = 30 * 60 * 1000;
+    private static final String CRLF = "\r\n";
+    private static final String BOUNDARY = "----cloudfoundry-jenkins-" + Long.toHexString(System.nanoTime());
+
+    /**
+     * The Cloud Controller resource pool ignores smaller files (resource_pool.minimum_size), no need to ask for them.
+     */
+    static final long RESOURCE_MATCH_MIN_SIZE = 64 * 1024;
+
+    private final URL target;
+    private final String accessToken;
+    private final boolean selfSigned;
+    private final int compressionLevel;
+
+    public ApplicationBitsUploader(URL target, String accessToken, boolean selfSigned) {
+        this(target, accessToken, selfSigned, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compressionLevel the deflate level of the archives built by {@link #uploadDirectory}
+     */
+    public ApplicationBitsUploader(URL target, String accessToken, boolean selfSigned, int compressionLevel) {
+        this.target = target;
+        this.accessToken = accessToken;
+        this.selfSigned = selfSigned;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Asks the Cloud Controller which of the indexed files it already has in its resource pool.
+     *
+     * @param index the fingerprints of the application files
+     * @return the relative paths of the files that do not need to be uploaded
+     */
+    public Set<String> matchResources(ResourceIndex index) throws IOException, InterruptedException {
+        Map<String, List<String>> pathsBySha1 = new HashMap<String, List<String>>();
+        JSONArray request = new JSONArray();
+        for (Map.Entry<String, ResourceIndex.Resource> entry : index.getResources().entrySet()) {
+            ResourceIndex.Resource resource = entry.getValue();
+            if (resource.size < RESOURCE_MATCH_MIN_SIZE) {
+                continue;
+            }
+            List<String> paths = pathsBySha1.get(resource.sha1);
+            if (paths == null) {
+                paths = new ArrayList<String>();
+                pathsBySha1.put(resource.sha1, paths);
+                JSONObject fingerprint = new JSONObject();
+                fingerprint.put("sha1", resource.sha1);
+                fingerprint.put("size", resource.size);
+                request.add(fingerprint);
+            }
+            paths.add(entry.getKey());
+        }
+
+        Set<String> matched = new HashSet<String>();
+        if (request.isEmpty()) {
+            return matched;
+        }
+        final String json = request.toString();
+        String response = send("PUT /v2/resource_match", true, new RetryingClient.Request<String>() {
+            public String send() throws IOException {
+                return exchange("/v2/resource_match", "PUT", json);
+            }
+        });
+        JSONArray matches = JSONArray.fromObject(response);
+        for (int i = 0; i < matches.size(); i++) {
+            List<String> paths = pathsBySha1.get(matches.getJSONObject(i).getString("sha1"));
+            if (paths != null) {
+                matched.addAll(paths);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Zips the given directory and uploads it as the bits of the application.
+     * Matched files are left out of the archive and only referenced by fingerprint.
+     *
+     * @param appGuid      the GUID of the application
+     * @param appDir       the directory to upload, possibly on a remote node
+     * @param index        the fingerprints of the application files
+     * @param matchedFiles the files returned by {@link #matchResources(ResourceIndex)}
+     * @return the size of the request body, in bytes
+     */
+    public long uploadDirectory(String appGuid, FilePath appDir, ResourceIndex index, Set<String> matchedFiles)
+            throws IOException, InterruptedException {
+        return uploadDirectory(appGuid, appDir, index, matchedFiles, null);
+    }
+
+    /**
+     * @param staging where the deflated files are kept between pushes, or null
+     */
+    long uploadDirectory(final String appGuid, final FilePath appDir, ResourceIndex index,
+                         final Set<String> matchedFiles, final StagingCache.Location staging)
+            throws IOException, InterruptedException {
+        final JSONArray resources = new JSONArray();
+        for (String path : matchedFiles) {
+            ResourceIndex.Resource resource = index.get(path);
+            JSONObject fingerprint = new JSONObject();
+            fingerprint.put("fn", path);
+            fingerprint.put("sha1", resource.sha1);
+            fingerprint.put("size", resource.size);
+            resources.add(fingerprint);
+        }
+        return send("PUT /v2/apps/" + appGuid + "/bits", false, new RetryingClient.Request<Long>() {
+            public Long send() throws IOException, InterruptedException {
+                return streamDirectory(appGuid, appDir, resources, matchedFiles, staging);
+            }
+        });
+    }
+
+    private long streamDirectory(String appGuid, FilePath appDir, JSONArray resources, Set<String> matchedFiles,
+                                 StagingCache.Location staging) throws IOException, InterruptedException {
+        HttpURLConnection connection = openBitsUpload(appGuid);
+        CountingOutputStream counter = new CountingOutputStream(connection.getOutputStream());
+        OutputStream body = new BufferedOutputStream(counter, CHUNK_SIZE);
+        try {
+            writePartHeaders(body, resources);
+
+            // The archiver closes its stream when done, but the request body still needs its closing boundary
+            OutputStream archiveOut = new CloseShieldOutputStream(body);
+            if (appDir.isRemote()) {
+                archiveOut = new RemoteOutputStream(archiveOut);
+            }
+            appDir.act(new ApplicationArchiver(archiveOut, matchedFiles, compressionLevel, staging));
+            syncIO(appDir);
+
+            writeAscii(body, CRLF + "--" + BOUNDARY + "--" + CRLF);
+            body.flush();
+        } finally {
+            body.close();
+        }
+        checkResponse(connection, "upload the application bits");
+        return counter.getByteCount();
+    }
+
+    /**
+     * Uploads an archive, like a .war or .jar file, as the bits of the application.
+     *
+     * @param appGuid the GUID of the application
+     * @param archive a local zip file
+     * @return the size of the request body, in bytes
+     */
+    public long uploadArchive(final String appGuid, final File archive) throws IOException, InterruptedException {
+        return send("PUT /v2/apps/" + appGuid + "/bits", false, new RetryingClient.Request<Long>() {
+            public Long send() throws IOException {
+                return streamArchive(openBitsUpload(appGuid), archive);
+            }
+        });
+    }
+
+    private static long streamArchive(HttpURLConnection connection, File archive) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(connection.getOutputStream());
+        OutputStream body = new BufferedOutputStream(counter, CHUNK_SIZE);
+        try {
+            writePartHeaders(body, new JSONArray());
+            FileUtils.copyFile(archive, body);
+            writeAscii(body, CRLF + "--" + BOUNDARY + "--" + CRLF);
+            body.flush();
+        } finally {
+            body.close();
+        }
+        checkResponse(connection, "upload the application bits");
+        return counter.getByteCount();
+    }
+
+    private HttpURLConnection openBitsUpload(String appGuid) throws IOException {
+        HttpURLConnection connection = openConnection("/v2/apps/" + appGuid + "/bits", "PUT");
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        return connection;
+    }
+
+    /**
+     * Writes the resources part, and the headers of the application part.
+     */
+    private static void writePartHeaders(OutputStream body, JSONArray resources) throws IOException {
+        writeAscii(body, "--" + BOUNDARY + CRLF
+                + "Content-Disposition: form-data; name=\"resources\"" + CRLF + CRLF
+                + resources.toString() + CRLF);
+        writeAscii(body, "--" + BOUNDARY + CRLF
+                + "Content-Disposition: form-data; name=\"application\"; filename=\"application.zip\"" + CRLF
+                + "Content-Type: application/zip" + CRLF + CRLF);
+    }
+
+    private <T> T send(String name, boolean idempotent, RetryingClient.Request<T> request)
+            throws IOException, InterruptedException {
+        return RetryingClient.send(target.toString(), name, idempotent, request);
+    }
+
+    private String exchange(String path, String method, String json) throws IOException {
+        HttpURLConnection connection = openConnection(path, method);
+        connection.setRequestProperty("Content-Type", "application/json");
+        OutputStream body = connection.getOutputStream();
+        try {
+            body.write(json.getBytes("UTF-8"));
+        } finally {
+            body.close();
+        }
+        int status = connection.getResponseCode();
+        if (status < 200 || status >= 300) {
+            checkResponse(connection, method + " " + path);
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private HttpURLConnection openConnection(String path, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(target, path).openConnection();
+        if (selfSigned && connection instanceof HttpsURLConnection) {
+            trustSelfSigned((HttpsURLConnection) connection);
+        }
+        connection.setRequestMethod(method);
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("Authorization", "bearer " + accessToken);
+        connection.setRequestProperty("Accept", "application/json");
+        return connection;
+    }
+
+    static void checkResponse(HttpURLConnection connection, String action) throws IOException {
+        int status = connection.getResponseCode();
+        if (status >= 200 && status < 300) {
+            IOUtils.closeQuietly(connection.getInputStream());
+            return;
+        }
+        String message = "";
+        InputStream error = connection.getErrorStream();
+        if (error != null) {
+            try {
+                message = IOUtils.toString(error, "UTF-8");
+            } finally {
+                error.close();
+            }
+        }
+        throw new ResponseException(status, "Could not " + action + ": " + status + " "
+                + connection.getResponseMessage() + (message.isEmpty() ? "" : " " + message));
+    }
+
+    /**
+     * Remote writes are asynchronous, make sure they have all been delivered before going on.
+     */
+    private static void syncIO(FilePath filePath) throws InterruptedException {
+        VirtualChannel channel = filePath.getChannel();
+        if (channel instanceof Channel) {
+            ((Channel) channel).syncLocalIO();
+        }
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes("US-ASCII"));
+    }
+
+    /**
+     * The Cloud Controller answered with an error status.
+     */
+    static final class ResponseException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        ResponseException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    static void trustSelfSigned(HttpsURLConnection connection) throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[]{new X509TrustManager() {
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            }}, null);
+            connection.setSSLSocketFactory(context.getSocketFactory());
+            connection.setHostnameVerifier(new HostnameVerifier() {
+                public boolean verify(String hostname, SSLSession session) {
+                    return true;
+                }
+            });
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up a self-signed SSL context: " + e.getMessage());
+        }
+    }
+}
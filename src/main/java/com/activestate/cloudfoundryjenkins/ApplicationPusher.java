@@ -0,0 +1,920 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import com.activestate.cloudfoundryjenkins.DeploymentTimingAction.Phase;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Node;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.StartingInfo;
+import org.cloudfoundry.client.lib.StreamingLogToken;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudRoute;
+import org.cloudfoundry.client.lib.domain.CloudService;
+import org.cloudfoundry.client.lib.domain.Staging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes a single application, as described by a {@link DeploymentInfo}.
+ * One pusher is shared by all the applications of a build, so it must not hold any per-application state.
+ */
+public class ApplicationPusher {
+
+    private static final int TIMEOUT = 120;
+
+    /**
+     * Suffix of the temporary app a blue-green push deploys to, before it takes over the production routes.
+     */
+    static final String NEW_APP_SUFFIX = "-new";
+
+    /**
+     * Suffix of the previous version of the app, when a blue-green push retains it.
+     */
+    static final String OLD_APP_SUFFIX = "-old";
+
+    private final CloudFoundryPushPublisher publisher;
+    private final AbstractBuild build;
+    private final URL targetUrl;
+    private final CloudFoundryClientPool.PooledClient pooledClient;
+    private final SpaceMetadataCache spaceCache;
+    private final RouteMapper routeMapper;
+    private final CloudControllerRest rest;
+    private final DeploymentTimingAction timings;
+
+    /**
+     * How long to wait for the instances of the app to be running, in milliseconds. Tests shorten it.
+     */
+    long readinessTimeout = TimeUnit.SECONDS.toMillis(TIMEOUT);
+
+    public ApplicationPusher(CloudFoundryPushPublisher publisher, AbstractBuild build, URL targetUrl,
+                             CloudFoundryClientPool.PooledClient pooledClient, DeploymentTimingAction timings) {
+        this.publisher = publisher;
+        this.build = build;
+        this.targetUrl = targetUrl;
+        this.pooledClient = pooledClient;
+        this.timings = timings;
+        this.spaceCache = SpaceMetadataCache.forSpace(publisher.target, publisher.organization, publisher.cloudSpace,
+                publisher.username);
+        this.routeMapper = new RouteMapper(pooledClient, spaceCache, targetUrl, publisher.selfSigned);
+        this.rest = new CloudControllerRest(targetUrl, pooledClient, publisher.selfSigned);
+    }
+
+    public static String getAppURI(DeploymentInfo deploymentInfo) {
+        return "https://" + getRoute(deploymentInfo);
+    }
+
+    /**
+     * Returns the route of the app the way the Cloud Controller lists them, without scheme.
+     */
+    static String getRoute(DeploymentInfo deploymentInfo) {
+        return deploymentInfo.getRoutes().get(0);
+    }
+
+    /**
+     * Pushes the application and waits for it to be running.
+     *
+     * @param deploymentInfo the application to push
+     * @param listener       where to log the progress of this application
+     * @return true if the application is running
+     */
+    public boolean push(DeploymentInfo deploymentInfo, BuildListener listener)
+            throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        CloudFoundryOperations client = pooledClient.getClient();
+        final String appName = deploymentInfo.getAppName();
+
+        logger.println("Pushing " + appName + " app to " + publisher.target);
+
+        PushPipeline pipeline = new PushPipeline();
+        try {
+            // Fingerprint the application files while the Cloud Controller is set up, which doesn't need them
+            final FilePath appPath = new FilePath(build.getWorkspace(), deploymentInfo.getAppPath());
+            PushPipeline.Step<ResourceIndex> packaging = pipeline.submit("packaging", new Callable<ResourceIndex>() {
+                public ResourceIndex call() throws IOException, InterruptedException {
+                    return appPath.isDirectory() ? scanResources(appName, appPath) : null;
+                }
+            });
+
+            // Check if app already exists
+            long lookupStart = System.nanoTime();
+            CloudApplication existingApp = spaceCache.getApplication(client, appName);
+            timings.record(appName, Phase.LOOKUP, lookupStart);
+
+            String fingerprint = null;
+            File fingerprintFile = getFingerprintFile(appName);
+            if (publisher.skipIfUnchanged) {
+                fingerprint = computeFingerprint(deploymentInfo, appPath, packaging.get());
+                if (existingApp != null && fingerprint.equals(DeploymentFingerprint.load(fingerprintFile))
+                        && ApplicationReadinessMonitor.getInstances(client, existingApp).running > 0) {
+                    logger.println("App bits and configuration are unchanged since the last successful push, " +
+                            "skipping upload and restart.");
+                    printRunning(deploymentInfo, logger);
+                    logger.println("Cloud Foundry push successful. (App is up to date)");
+                    return true;
+                }
+            }
+
+            // The app changes from here on, and stops matching the last successful push until this one succeeds
+            DeploymentFingerprint.delete(fingerprintFile);
+
+            // Ask which files the Cloud Controller already has while the app is created and configured
+            PushPipeline.Step<Set<String>> matching = matchResources(pipeline, appName, packaging, logger);
+
+            boolean success;
+            if (existingApp != null && publisher.blueGreen != null) {
+                logger.println("App already exists, pushing the new version next to it.");
+                success = pushBlueGreen(deploymentInfo, appPath, pipeline, packaging, matching, listener);
+            } else {
+                success = pushInPlace(deploymentInfo, existingApp, appPath, pipeline, packaging, matching, listener);
+            }
+            if (success && fingerprint != null) {
+                DeploymentFingerprint.save(fingerprintFile, fingerprint);
+            }
+            return success;
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Prints what pushing the application would change, without changing anything.
+     * The app, the routes and services of the space and the files the Cloud Controller already has
+     * are all fetched at the same time.
+     *
+     * @param servicesToCreate the services the push would create before pushing the app
+     * @return false if the push would fail, because of a missing service or an unknown domain
+     */
+    public boolean plan(final DeploymentInfo deploymentInfo, List<CloudFoundryPushPublisher.Service> servicesToCreate,
+                        BuildListener listener) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        final CloudFoundryOperations client = pooledClient.getClient();
+        final String appName = deploymentInfo.getAppName();
+
+        logger.println("Planning the push of " + appName + " app to " + publisher.target);
+
+        PushPipeline pipeline = new PushPipeline();
+        try {
+            final FilePath appPath = new FilePath(build.getWorkspace(), deploymentInfo.getAppPath());
+            final PushPipeline.Step<ResourceIndex> packaging =
+                    pipeline.submit("packaging", new Callable<ResourceIndex>() {
+                        public ResourceIndex call() throws IOException, InterruptedException {
+                            return appPath.isDirectory() ? scanResources(appName, appPath) : null;
+                        }
+                    });
+            PushPipeline.Step<Set<String>> matching = pipeline.submit("matching", new Callable<Set<String>>() {
+                public Set<String> call() throws IOException, InterruptedException {
+                    ResourceIndex index = packaging.get();
+                    if (index == null) {
+                        return null;
+                    }
+                    return new ApplicationBitsUploader(targetUrl, pooledClient.getAccessToken(),
+                            publisher.selfSigned).matchResources(index);
+                }
+            }, packaging);
+            PushPipeline.Step<CloudApplication> lookup = pipeline.submit("lookup", new Callable<CloudApplication>() {
+                public CloudApplication call() {
+                    return spaceCache.getApplication(client, appName);
+                }
+            });
+            PushPipeline.Step<List<CloudService>> services =
+                    pipeline.submit("services", new Callable<List<CloudService>>() {
+                        public List<CloudService> call() {
+                            return spaceCache.getServices(client);
+                        }
+                    });
+            PushPipeline.Step<Void> routes = prefetchRoutes(pipeline, client, deploymentInfo);
+
+            CloudApplication current = lookup.get();
+            boolean success = true;
+            List<String> changes = new ArrayList<String>();
+
+            // What happens to the app itself
+            CloudApplication configured = current;
+            if (current == null) {
+                changes.add("create app " + appName + " with " + deploymentInfo.getMemory() + " MB");
+            } else if (publisher.blueGreen != null) {
+                changes.add("push the new version as " + appName + NEW_APP_SUFFIX + (deploymentInfo.isNoRoute()
+                        ? ", then unmap the routes of the previous version" : ", then move the routes to it"));
+                changes.add(publisher.blueGreen.keepOldApp
+                        ? "stop the previous version and keep it as " + appName + OLD_APP_SUFFIX
+                        : "delete the previous version");
+                configured = null;
+            } else if (publisher.resetIfExists) {
+                changes.add("delete and recreate app " + appName + " with " + deploymentInfo.getMemory() + " MB");
+                configured = null;
+                current = null;
+            }
+
+            Set<String> existingServices = new HashSet<String>();
+            for (CloudService service : services.get()) {
+                existingServices.add(service.getName());
+            }
+            for (CloudFoundryPushPublisher.Service service : servicesToCreate) {
+                existingServices.add(service.name);
+            }
+            List<String> missingServices = new ArrayList<String>(deploymentInfo.getServicesNames());
+            missingServices.removeAll(existingServices);
+            if (!missingServices.isEmpty()) {
+                logger.println("ERROR: Services not found in the space: " + missingServices);
+                success = false;
+            }
+
+            ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, configured,
+                    getInitialInstances(deploymentInfo));
+            for (String change : diff.getChanges()) {
+                changes.add("update " + change);
+            }
+
+            if (!deploymentInfo.isNoRoute()) {
+                routes.get();
+                try {
+                    changes.addAll(routeMapper.plan(current, deploymentInfo.getRoutes()));
+                } catch (IOException e) {
+                    logger.println("ERROR: " + e.getMessage());
+                    success = false;
+                }
+            }
+
+            // What happens to the bits
+            ResourceIndex index = packaging.get();
+            Set<String> matchedFiles = matching.get();
+            String fingerprint = computeFingerprint(deploymentInfo, appPath, index);
+            if (current != null && fingerprint.equals(DeploymentFingerprint.load(getFingerprintFile(appName)))) {
+                if (publisher.skipIfUnchanged
+                        && ApplicationReadinessMonitor.getInstances(client, current).running > 0) {
+                    logger.println("App bits and configuration are unchanged since the last successful push, " +
+                            "the push would be skipped.");
+                    logger.println(success ? "Cloud Foundry plan done, nothing was changed."
+                            : "Cloud Foundry plan found errors, nothing was changed.");
+                    return success;
+                }
+                changes.add("upload the same bits as the last successful push");
+            } else if (index != null) {
+                int files = 0;
+                long bytes = 0;
+                for (Map.Entry<String, ResourceIndex.Resource> resource : index.getResources().entrySet()) {
+                    if (!matchedFiles.contains(resource.getKey())) {
+                        files++;
+                        bytes += resource.getValue().size;
+                    }
+                }
+                changes.add("upload " + files + " of " + index.size() + " files (" + bytes / 1024 + " KB)");
+            } else {
+                changes.add("upload " + appPath.getName() + " (" + appPath.length() / 1024 + " KB)");
+            }
+            changes.add(current == null || publisher.blueGreen != null ? "start the app" : "restart the app");
+            if (isScalingOut(deploymentInfo)) {
+                changes.add("scale the app to " + deploymentInfo.getInstances() + " instances once it is running");
+            }
+
+            logger.println("Plan for " + appName + ":");
+            for (String change : changes) {
+                logger.println("  " + change);
+            }
+            logger.println(success ? "Cloud Foundry plan done, nothing was changed."
+                    : "Cloud Foundry plan found errors, nothing was changed.");
+            return success;
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Loads the domains of the space, then the routes of each domain the app needs, all at the same time.
+     */
+    private PushPipeline.Step<Void> prefetchRoutes(final PushPipeline pipeline, final CloudFoundryOperations client,
+                                                   final DeploymentInfo deploymentInfo) {
+        return pipeline.submit("routes", new Callable<Void>() {
+            public Void call() throws IOException, InterruptedException {
+                if (deploymentInfo.isNoRoute()) {
+                    return null;
+                }
+                Set<String> domains = new HashSet<String>();
+                for (String route : deploymentInfo.getRoutes()) {
+                    try {
+                        domains.add(routeMapper.resolve(route).domain);
+                    } catch (IOException e) {
+                        // Reported along with the plan
+                    }
+                }
+                List<PushPipeline.Step<?>> lookups = new ArrayList<PushPipeline.Step<?>>();
+                for (final String domain : domains) {
+                    lookups.add(pipeline.submit("routes", new Callable<List<CloudRoute>>() {
+                        public List<CloudRoute> call() {
+                            return spaceCache.getRoutes(client, domain);
+                        }
+                    }));
+                }
+                for (PushPipeline.Step<?> lookup : lookups) {
+                    lookup.get();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the {@link DeploymentFingerprint} of the push.
+     *
+     * @param index the fingerprints of the application files, or null if the application is a single file
+     */
+    private String computeFingerprint(DeploymentInfo deploymentInfo, FilePath appPath, ResourceIndex index)
+            throws IOException, InterruptedException {
+        String bitsDigest = index != null ? DeploymentFingerprint.digest(index) : appPath.digest();
+        return DeploymentFingerprint.compute(publisher.target + " " + publisher.organization + " "
+                + publisher.cloudSpace, deploymentInfo, bitsDigest);
+    }
+
+    /**
+     * Pushes the application, creating it or updating the existing one.
+     */
+    private boolean pushInPlace(DeploymentInfo deploymentInfo, CloudApplication existingApp, FilePath appPath,
+                                PushPipeline pipeline, PushPipeline.Step<ResourceIndex> packaging,
+                                PushPipeline.Step<Set<String>> matching, BuildListener listener)
+            throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        CloudFoundryOperations client = pooledClient.getClient();
+        String appName = deploymentInfo.getAppName();
+
+        boolean createNewApp = true;
+        long createStart = System.nanoTime();
+        if (existingApp != null) {
+            if (publisher.resetIfExists) {
+                logger.println("App already exists, resetting.");
+                client.deleteApplication(appName);
+                spaceCache.invalidateApplication(appName);
+                logger.println("App deleted.");
+            } else {
+                createNewApp = false;
+                logger.println("App already exists, skipping creation.");
+                // Its services will be bound along with the rest of its configuration
+                if (!checkServices(client, deploymentInfo, logger)) {
+                    return false;
+                }
+            }
+        }
+
+        // Create app if it doesn't exist, its routes are mapped along with the rest of its configuration
+        if (createNewApp) {
+            if (!createApplication(client, appName, deploymentInfo, logger)) {
+                return false;
+            }
+        }
+        timings.record(appName, Phase.CREATE, createStart);
+
+        List<String> routes = deploymentInfo.isNoRoute()
+                ? Collections.<String>emptyList() : deploymentInfo.getRoutes();
+        configureAndUpload(client, appName, deploymentInfo, createNewApp ? null : existingApp, routes, appPath,
+                pipeline, packaging, matching, logger);
+        ApplicationReadinessMonitor.Instances instances =
+                startAndWait(client, appName, deploymentInfo, createNewApp, listener);
+        int running = instances.running;
+        int totalInstances = instances.total;
+
+        if (isHealthy(deploymentInfo, instances, false)) {
+            if (running != totalInstances) {
+                logger.println("WARNING: Some instances of the application are not running.");
+            }
+            printRunning(deploymentInfo, logger);
+            logger.println("Cloud Foundry push successful.");
+            return true;
+        } else if (running > 0) {
+            logger.println("ERROR: Only " + running + " instances of the application are running, at least "
+                    + getMinRunning(deploymentInfo) + " are needed.");
+            logger.println("Cloud Foundry push failed.");
+            return false;
+        } else {
+            logger.println("ERROR: The application failed to start after " + TIMEOUT + " seconds.");
+            logger.println("Cloud Foundry push failed.");
+            return false;
+        }
+    }
+
+    /**
+     * Pushes the new version as a separate app, and moves the production routes to it once all its instances
+     * are running. The old version keeps serving until then, and is untouched if the new one fails to start
+     * or cannot take over the routes: the new one is then deleted.
+     */
+    private boolean pushBlueGreen(DeploymentInfo deploymentInfo, FilePath appPath, PushPipeline pipeline,
+                                  PushPipeline.Step<ResourceIndex> packaging,
+                                  PushPipeline.Step<Set<String>> matching, BuildListener listener)
+            throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        CloudFoundryOperations client = pooledClient.getClient();
+        String appName = deploymentInfo.getAppName();
+        String newAppName = appName + NEW_APP_SUFFIX;
+
+        // Left over by a previous push that failed
+        long createStart = System.nanoTime();
+        deleteIfExists(client, newAppName, logger);
+
+        // No route yet, instance health doesn't need one
+        if (!createApplication(client, newAppName, deploymentInfo, logger)) {
+            return false;
+        }
+        timings.record(appName, Phase.CREATE, createStart);
+        configureAndUpload(client, newAppName, deploymentInfo, null, Collections.<String>emptyList(), appPath,
+                pipeline, packaging, matching, logger);
+        ApplicationReadinessMonitor.Instances instances =
+                startAndWait(client, newAppName, deploymentInfo, true, listener);
+
+        if (!isHealthy(deploymentInfo, instances, true)) {
+            logger.println("ERROR: Not enough instances of the new version are running, keeping the current version.");
+            discardNewVersion(client, newAppName, logger);
+            return false;
+        }
+
+        // Both versions serve the production routes for a moment, then only the new one does.
+        // Like an in-place push, no-route leaves the app without any route.
+        long routesStart = System.nanoTime();
+        CloudApplication oldApp = client.getApplication(appName);
+        List<String> routes = new ArrayList<String>();
+        if (!deploymentInfo.isNoRoute()) {
+            if (oldApp.getUris() != null) {
+                routes.addAll(oldApp.getUris());
+            }
+            for (String route : deploymentInfo.getRoutes()) {
+                if (!routes.contains(route)) {
+                    routes.add(route);
+                }
+            }
+        }
+        String oldAppName = appName + OLD_APP_SUFFIX;
+        boolean keepOldApp = publisher.blueGreen.keepOldApp;
+        try {
+            routeMapper.map(newAppName, routes, logger);
+            if (keepOldApp) {
+                // Renamed while the previous version still serves, so that it can be renamed back
+                deleteIfExists(client, oldAppName, logger);
+                client.rename(appName, oldAppName);
+                try {
+                    client.rename(newAppName, appName);
+                } catch (RuntimeException e) {
+                    client.rename(oldAppName, appName);
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            logger.println("ERROR: Could not move the routes to the new version, keeping the current version: "
+                    + e.getMessage());
+            discardNewVersion(client, newAppName, logger);
+            return false;
+        } catch (RuntimeException e) {
+            logger.println("ERROR: Could not move the routes to the new version, keeping the current version: "
+                    + e.getMessage());
+            discardNewVersion(client, newAppName, logger);
+            return false;
+        } finally {
+            spaceCache.invalidateApplication(appName);
+            spaceCache.invalidateApplication(oldAppName);
+        }
+
+        logger.println("Unmapping routes from the previous version.");
+        if (keepOldApp) {
+            client.updateApplicationUris(oldAppName, Collections.<String>emptyList());
+            client.stopApplication(oldAppName);
+            logger.println("Previous version stopped and kept as " + oldAppName + ".");
+        } else {
+            client.updateApplicationUris(appName, Collections.<String>emptyList());
+            client.deleteApplication(appName);
+            logger.println("Previous version deleted.");
+            spaceCache.invalidateApplication(appName);
+            try {
+                client.rename(newAppName, appName);
+            } catch (RuntimeException e) {
+                // The previous version is gone, the new one must keep serving
+                logger.println("ERROR: The new version serves the routes as " + newAppName
+                        + ", but could not be renamed to " + appName + ": " + e.getMessage());
+                logger.println("Cloud Foundry push failed.");
+                return false;
+            }
+        }
+        spaceCache.invalidateApplication(appName);
+        spaceCache.invalidateApplication(newAppName);
+        timings.record(appName, Phase.ROUTES, routesStart);
+
+        printRunning(deploymentInfo, logger);
+        logger.println("Cloud Foundry push successful.");
+        return true;
+    }
+
+    /**
+     * Unmaps the routes of the new version and deletes it. The previous version is left as it was.
+     */
+    private void discardNewVersion(CloudFoundryOperations client, String newAppName, PrintStream logger) {
+        try {
+            client.updateApplicationUris(newAppName, Collections.<String>emptyList());
+            client.deleteApplication(newAppName);
+        } catch (RuntimeException e) {
+            logger.println("WARNING: Could not delete " + newAppName + ": " + e.getMessage());
+        } finally {
+            spaceCache.invalidateApplication(newAppName);
+        }
+        logger.println("Cloud Foundry push failed.");
+    }
+
+    private void deleteIfExists(CloudFoundryOperations client, String appName, PrintStream logger) {
+        if (spaceCache.getApplication(client, appName) != null) {
+            logger.println("Deleting existing app " + appName + ".");
+            client.deleteApplication(appName);
+            spaceCache.invalidateApplication(appName);
+        }
+    }
+
+    /**
+     * Creates the application, after checking its services exist.
+     *
+     * @return false if the application could not be created
+     */
+    private boolean createApplication(CloudFoundryOperations client, String appName, DeploymentInfo deploymentInfo,
+                                      PrintStream logger) {
+        logger.println("Creating new app.");
+        Staging staging = new Staging(deploymentInfo.getCommand(), deploymentInfo.getBuildpack(),
+                null, deploymentInfo.getTimeout());
+        if (!checkServices(client, deploymentInfo, logger)) {
+            return false;
+        }
+        client.createApplication(appName, staging, deploymentInfo.getMemory(), Collections.<String>emptyList(),
+                deploymentInfo.getServicesNames());
+        spaceCache.invalidateApplication(appName);
+        return true;
+    }
+
+    /**
+     * Applies the configuration of the app, maps its routes and uploads its bits at the same time, and waits for all.
+     * The upload starts once the files are packaged and matched, which has usually happened by then.
+     *
+     * @param current the app before the push, or null if it was just created
+     * @param routes  the routes to map to the app, if it doesn't have them yet
+     */
+    private void configureAndUpload(final CloudFoundryOperations client, final String appName,
+                                    final DeploymentInfo deploymentInfo, CloudApplication current,
+                                    final List<String> routes, final FilePath appPath, PushPipeline pipeline,
+                                    final PushPipeline.Step<ResourceIndex> packaging,
+                                    final PushPipeline.Step<Set<String>> matching, final PrintStream logger)
+            throws IOException, InterruptedException {
+        PushPipeline.Step<Void> configuration = applyConfiguration(pipeline, client, appName, deploymentInfo,
+                current, logger);
+        PushPipeline.Step<Void> upload = pipeline.submit("upload", new Callable<Void>() {
+            public Void call() throws IOException, InterruptedException {
+                uploadBits(client, appName, deploymentInfo, appPath, packaging.get(), matching.get(), logger);
+                return null;
+            }
+        }, packaging, matching);
+        PushPipeline.Step<Void> routing = null;
+        if (!routes.isEmpty()) {
+            routing = pipeline.submit("routes", new Callable<Void>() {
+                public Void call() throws IOException, InterruptedException {
+                    long routesStart = System.nanoTime();
+                    routeMapper.map(appName, routes, logger);
+                    timings.record(deploymentInfo.getAppName(), Phase.ROUTES, routesStart);
+                    return null;
+                }
+            });
+        }
+        configuration.get();
+        if (routing != null) {
+            routing.get();
+        }
+        upload.get();
+    }
+
+    /**
+     * Brings the environment, instances and routes of the app to their desired state, skipping what is already there.
+     * The changes don't depend on each other, so each one is a step of its own.
+     *
+     * @param current the app before the push, or null if it was just created
+     * @return the step done once all the changes are applied
+     */
+    private PushPipeline.Step<Void> applyConfiguration(final PushPipeline pipeline,
+                                                       final CloudFoundryOperations client, final String appName,
+                                                       final DeploymentInfo deploymentInfo,
+                                                       final CloudApplication current, final PrintStream logger) {
+        return pipeline.submit("configuration", new Callable<Void>() {
+            public Void call() throws IOException, InterruptedException {
+                long configureStart = System.nanoTime();
+                // The cached app may be a few seconds old, and another build may have changed it since
+                CloudApplication app = current == null
+                        ? spaceCache.getApplication(client, appName) : client.getApplication(appName);
+                ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, current == null ? null : app,
+                        getInitialInstances(deploymentInfo));
+                if (diff.isEmpty() && current != null) {
+                    logger.println("App configuration is up to date.");
+                }
+                for (String change : diff.getChanges()) {
+                    logger.println("Updating " + change);
+                }
+                List<PushPipeline.Step<Void>> updates = new ArrayList<PushPipeline.Step<Void>>();
+                for (Callable<Void> update : diff.getUpdates(client, rest, routeMapper,
+                        app.getMeta().getGuid().toString(), appName)) {
+                    updates.add(pipeline.submit("configuration", update));
+                }
+                try {
+                    for (PushPipeline.Step<Void> update : updates) {
+                        update.get();
+                    }
+                } finally {
+                    if (!diff.isEmpty()) {
+                        spaceCache.invalidateApplication(appName);
+                    }
+                }
+                timings.record(deploymentInfo.getAppName(), Phase.CONFIGURE, configureStart);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Scans the files of the application, reusing the fingerprints of the files that did not change.
+     */
+    private ResourceIndex scanResources(String appName, FilePath appPath) throws IOException, InterruptedException {
+        long packagingStart = System.nanoTime();
+        File indexFile = getResourceIndexFile(appName);
+        ResourceIndex index = appPath.act(new ResourceScanner(ResourceIndex.load(indexFile)));
+        index.save(indexFile);
+        timings.record(appName, Phase.PACKAGING, packagingStart);
+        return index;
+    }
+
+    /**
+     * Asks the Cloud Controller which of the packaged files it already has, unless the agent does it itself.
+     *
+     * @return the step returning the matched files, or null when there is nothing to match here
+     */
+    private PushPipeline.Step<Set<String>> matchResources(PushPipeline pipeline, final String appName,
+                                                          final PushPipeline.Step<ResourceIndex> packaging,
+                                                          final PrintStream logger) {
+        return pipeline.submit("matching", new Callable<Set<String>>() {
+            public Set<String> call() throws IOException, InterruptedException {
+                ResourceIndex index = packaging.get();
+                if (index == null || publisher.uploadFromAgent) {
+                    return null;
+                }
+                long matchStart = System.nanoTime();
+                ApplicationBitsUploader uploader = new ApplicationBitsUploader(targetUrl,
+                        pooledClient.getAccessToken(), publisher.selfSigned);
+                Set<String> matchedFiles = uploader.matchResources(index);
+                logger.println("Cloud Foundry already has " + matchedFiles.size() + " of "
+                        + index.size() + " files, uploading the others.");
+                timings.record(appName, Phase.MATCH, matchStart);
+                return matchedFiles;
+            }
+        }, packaging);
+    }
+
+    /**
+     * @param index        the fingerprints of the application files, or null if the application is a single file
+     * @param matchedFiles the files the Cloud Controller already has, when it uploads them from the controller
+     */
+    private void uploadBits(CloudFoundryOperations client, String appName, DeploymentInfo deploymentInfo,
+                            FilePath appPath, ResourceIndex index, Set<String> matchedFiles, PrintStream logger)
+            throws IOException, InterruptedException {
+        logger.println("Pushing app bits.");
+        long uploadStart = System.nanoTime();
+        if (publisher.uploadFromAgent) {
+            // The agent talks to the Cloud Controller itself, the bits never go through the controller
+            String appGuid = spaceCache.getApplication(client, appName).getMeta().getGuid().toString();
+            AgentBitsUpload.Result result = appPath.act(new AgentBitsUpload(targetUrl,
+                    pooledClient.getAccessToken(), publisher.selfSigned, appGuid, index,
+                    publisher.getEffectiveCompressionLevel(), getStagingLocation(appName)));
+            if (index != null) {
+                logger.println("Cloud Foundry already had " + result.matchedFiles + " of "
+                        + result.totalFiles + " files, the others were uploaded from the build agent.");
+            } else {
+                logger.println("App uploaded from the build agent.");
+            }
+            DeploymentMetrics.getInstance().recordUpload(result.uploadedBytes, System.nanoTime() - uploadStart);
+        } else if (index != null) {
+            // Zip the directory where it lives and stream it straight into the upload request
+            String appGuid = spaceCache.getApplication(client, appName).getMeta().getGuid().toString();
+            ApplicationBitsUploader uploader = new ApplicationBitsUploader(targetUrl,
+                    pooledClient.getAccessToken(), publisher.selfSigned, publisher.getEffectiveCompressionLevel());
+
+            // Only upload the files the Cloud Controller doesn't already have
+            long uploadedBytes = uploader.uploadDirectory(appGuid, appPath, index, matchedFiles,
+                    getStagingLocation(appName));
+            DeploymentMetrics.getInstance().recordUpload(uploadedBytes, System.nanoTime() - uploadStart);
+        } else {
+            // If the target path is a single file, we can just use an InputStream
+            // The CF client will make a temp file on the slave from the InputStream
+            client.uploadApplication(appName, appPath.getName(), appPath.read());
+            DeploymentMetrics.getInstance().recordUpload(appPath.length(), System.nanoTime() - uploadStart);
+        }
+        timings.record(deploymentInfo.getAppName(), Phase.UPLOAD, uploadStart);
+    }
+
+    /**
+     * Starts or restarts the application, prints its staging logs and waits for its instances to be running.
+     */
+    ApplicationReadinessMonitor.Instances startAndWait(CloudFoundryOperations client, String appName,
+                                                       DeploymentInfo deploymentInfo, boolean newApp,
+                                                       BuildListener listener)
+            throws InterruptedException {
+        PrintStream logger = listener.getLogger();
+        long startStart = System.nanoTime();
+
+        // Start or restart application
+        StartingInfo startingInfo;
+        if (newApp) {
+            logger.println("Starting application.");
+            startingInfo = client.startApplication(appName);
+        } else {
+            logger.println("Restarting application.");
+            startingInfo = client.restartApplication(appName);
+        }
+
+        // Start printing the staging logs
+        // First, try streamLogs()
+        ApplicationReadinessMonitor readinessMonitor = new ApplicationReadinessMonitor();
+        JenkinsApplicationLogListener logListener = new JenkinsApplicationLogListener(listener, readinessMonitor);
+        StreamingLogToken logToken = null;
+        StagingLogTailer stagingLogTailer = null;
+        try {
+            logToken = client.streamLogs(appName, logListener);
+        } catch (Exception e) {
+            // In case of failure, poll getStagingLogs() while waiting for the instances
+            logListener.close();
+            readinessMonitor.onLogStreamClosed();
+            logger.println("WARNING: Exception occurred trying to get staging logs via websocket. " +
+                    "Switching to alternate method.");
+            stagingLogTailer = StagingLogTailer.forApplication(client, startingInfo, logger);
+            stagingLogTailer.start();
+        }
+
+        // Wait for the instances to be running, checking whenever the logs report a lifecycle event
+        ApplicationReadinessMonitor.Instances instances;
+        try {
+            CloudApplication app = client.getApplication(appName);
+            instances = readinessMonitor.waitUntilRunning(client, app, readinessTimeout);
+
+            // The start request returns before staging is over, which is when the instances get listed
+            if (readinessMonitor.isStaged()) {
+                long stagedAt = readinessMonitor.getStagedAt();
+                timings.record(deploymentInfo.getAppName(), Phase.START, startStart, stagedAt);
+                timings.record(deploymentInfo.getAppName(), Phase.READINESS, stagedAt);
+                DeploymentMetrics.getInstance().recordStaging(stagedAt - startStart);
+            } else {
+                timings.record(deploymentInfo.getAppName(), Phase.START, startStart);
+            }
+            if (instances.running > 0) {
+                DeploymentMetrics.getInstance().recordTimeToRunning(System.nanoTime() - startStart);
+            }
+
+            // The first instance is healthy, start all the others at once while the logs still report their events
+            if (isScalingOut(deploymentInfo) && instances.running > 0) {
+                long scaleStart = System.nanoTime();
+                logger.println("Scaling out to " + deploymentInfo.getInstances() + " instances.");
+                client.updateApplicationInstances(appName, deploymentInfo.getInstances());
+                spaceCache.invalidateApplication(appName);
+                // The new instances count as not running until they are listed
+                app.setInstances(deploymentInfo.getInstances());
+                instances = readinessMonitor.waitUntilRunning(client, app, getMinRunning(deploymentInfo),
+                        readinessTimeout);
+                timings.record(deploymentInfo.getAppName(), Phase.SCALE, scaleStart);
+            }
+        } finally {
+            if (logToken != null) {
+                logToken.cancel();
+            }
+            logListener.close();
+            if (stagingLogTailer != null) {
+                stagingLogTailer.stop();
+            }
+        }
+
+        String instanceGrammar = "instances";
+        if (instances.running == 1)
+            instanceGrammar = "instance";
+        logger.println(instances.running + " " + instanceGrammar + " running out of " + instances.total);
+        return instances;
+    }
+
+    /**
+     * Whether the app is started with a single instance, then scaled out, see {@link #getInitialInstances}.
+     */
+    private boolean isScalingOut(DeploymentInfo deploymentInfo) {
+        return publisher.fastScaleOut != null && deploymentInfo.getInstances() > 1;
+    }
+
+    /**
+     * Returns the number of instances the app is configured with before it starts. With a fast scale-out,
+     * the app is staged and started with a single instance, so that a broken version fails fast
+     * and doesn't wait for all its instances.
+     */
+    int getInitialInstances(DeploymentInfo deploymentInfo) {
+        return isScalingOut(deploymentInfo) ? 1 : deploymentInfo.getInstances();
+    }
+
+    /**
+     * Returns how many instances must be running for the push to succeed.
+     */
+    private int getMinRunning(DeploymentInfo deploymentInfo) {
+        if (isScalingOut(deploymentInfo)) {
+            return publisher.fastScaleOut.getMinRunning(deploymentInfo.getInstances());
+        }
+        return 1;
+    }
+
+    /**
+     * Whether enough instances of the app are running for the push to succeed. A blue-green push only replaces
+     * the current version once all the instances of the new one are running, or enough of them with a fast scale-out.
+     */
+    boolean isHealthy(DeploymentInfo deploymentInfo, ApplicationReadinessMonitor.Instances instances,
+                      boolean blueGreen) {
+        if (blueGreen && !isScalingOut(deploymentInfo)) {
+            return instances.allRunning();
+        }
+        return instances.running >= getMinRunning(deploymentInfo);
+    }
+
+    private static void printRunning(DeploymentInfo deploymentInfo, PrintStream logger) {
+        if (deploymentInfo.isNoRoute()) {
+            logger.println("Application is now running. (No route)");
+        } else {
+            logger.println("Application is now running at " + getAppURI(deploymentInfo));
+        }
+    }
+
+    /**
+     * Checks that the services of the app exist, to fail early with a clearer message than the Cloud Controller's.
+     *
+     * @return false if some of them don't
+     */
+    private boolean checkServices(CloudFoundryOperations client, DeploymentInfo deploymentInfo, PrintStream logger) {
+        List<String> missingServices = findMissingServices(client, deploymentInfo.getServicesNames());
+        if (!missingServices.isEmpty()) {
+            logger.println("ERROR: Services not found in the space: " + missingServices);
+            logger.println("Cloud Foundry push failed.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the bound services that don't exist.
+     */
+    private List<String> findMissingServices(CloudFoundryOperations client, List<String> servicesNames) {
+        List<String> missing = new ArrayList<String>();
+        if (servicesNames.isEmpty()) {
+            return missing;
+        }
+        Set<String> existing = new HashSet<String>();
+        for (CloudService service : spaceCache.getServices(client)) {
+            existing.add(service.getName());
+        }
+        for (String name : servicesNames) {
+            if (!existing.contains(name)) {
+                missing.add(name);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * The resource fingerprints of an app are kept with the job, so that they survive workspace wipes.
+     */
+    private File getResourceIndexFile(String appName) {
+        return new File(build.getProject().getRootDir(), "cloudfoundry-resources/" + Util.rawEncode(appName) + ".idx");
+    }
+
+    /**
+     * The deflated files of an app are kept on the node of the workspace, see {@link StagingCache}.
+     *
+     * @return the staging directory, or null if the node is offline
+     */
+    private StagingCache.Location getStagingLocation(String appName) {
+        Node node = build.getBuiltOn();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        if (nodeRoot == null) {
+            return null;
+        }
+        FilePath root = nodeRoot.child("cloudfoundry-staging");
+        FilePath dir = root.child(Util.rawEncode(build.getProject().getFullName())).child(Util.rawEncode(appName));
+        return new StagingCache.Location(root.getRemote(), dir.getRemote(), StagingCache.DEFAULT_QUOTA);
+    }
+
+    /**
+     * The fingerprint of the last successful push of an app, see {@link DeploymentFingerprint}.
+     */
+    private File getFingerprintFile(String appName) {
+        return new File(build.getProject().getRootDir(),
+                "cloudfoundry-resources/" + Util.rawEncode(appName) + ".fingerprint");
+    }
+}
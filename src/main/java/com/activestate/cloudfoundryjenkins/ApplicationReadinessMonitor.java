@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.ApplicationLog;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.InstanceInfo;
+import org.cloudfoundry.client.lib.domain.InstanceState;
+import org.cloudfoundry.client.lib.domain.InstancesInfo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for all the instances of an application to be running.
+ * <p>
+ * Instead of asking for the instances state every second, the state is checked whenever the log stream reports
+ * an instance lifecycle event (container started, app output, health check, crash...). A low-frequency poll
+ * is kept as a fallback, and becomes faster if the log stream is not available.
+ */
+public class ApplicationReadinessMonitor {
+
+    static final long CONFIRM_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    static final long FALLBACK_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Events often come in bursts (an app printing its startup banner), don't check more often than this.
+     */
+    static final long MIN_CHECK_INTERVAL = 500;
+
+    private final Object lock = new Object();
+    private boolean signalled;
+    private boolean logStreamAvailable = true;
+    private volatile boolean staged;
+    private volatile long stagedAt;
+
+    /**
+     * Called for every log line of the application, from the log streaming thread.
+     */
+    public void onApplicationLog(ApplicationLog log) {
+        if (isLifecycleEvent(log.getSourceName())) {
+            signal();
+        }
+    }
+
+    /**
+     * Called when the log stream ends or fails: there won't be any more events, so poll faster.
+     */
+    public void onLogStreamClosed() {
+        synchronized (lock) {
+            logStreamAvailable = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Staging output doesn't tell anything about the instances, and neither does router traffic.
+     */
+    static boolean isLifecycleEvent(String sourceName) {
+        return sourceName != null && !sourceName.equals("STG") && !sourceName.equals("RTR");
+    }
+
+    void signal() {
+        synchronized (lock) {
+            signalled = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the next lifecycle event, or until the poll interval has elapsed.
+     */
+    void awaitEvent(long maxWaitMillis) throws InterruptedException {
+        synchronized (lock) {
+            long pollInterval = logStreamAvailable ? CONFIRM_POLL_INTERVAL : FALLBACK_POLL_INTERVAL;
+            long deadline = System.currentTimeMillis() + Math.min(maxWaitMillis, pollInterval);
+            long remaining;
+            while (!signalled && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                lock.wait(remaining);
+            }
+            signalled = false;
+        }
+    }
+
+    /**
+     * Whether the instances of the application have been listed, which they only are once it is staged.
+     */
+    public boolean isStaged() {
+        return staged;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the instances were first listed, see {@link #isStaged()}.
+     */
+    public long getStagedAt() {
+        return stagedAt;
+    }
+
+    /**
+     * Blocks until every instance of the application is running, or until the timeout expires.
+     *
+     * @return the state of the instances at the last check
+     */
+    public Instances waitUntilRunning(CloudFoundryOperations client, CloudApplication app, long timeoutMillis)
+            throws InterruptedException {
+        return waitUntilRunning(client, app, Integer.MAX_VALUE, timeoutMillis);
+    }
+
+    /**
+     * Blocks until every instance of the application is running, until at least {@code minRunning} of them are,
+     * or until the timeout expires.
+     *
+     * @return the state of the instances at the last check
+     */
+    public Instances waitUntilRunning(CloudFoundryOperations client, CloudApplication app, int minRunning,
+                                      long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Instances instances = new Instances(0, 0);
+        while (true) {
+            long checkedAt = System.currentTimeMillis();
+            Instances listed = listInstances(client, app);
+            if (listed != null) {
+                if (!staged) {
+                    stagedAt = System.nanoTime();
+                    staged = true;
+                }
+                instances = listed;
+            }
+            if (instances.allRunning() || instances.running >= minRunning) {
+                return instances;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return instances;
+            }
+            awaitEvent(remaining);
+            long sinceCheck = System.currentTimeMillis() - checkedAt;
+            if (sinceCheck < MIN_CHECK_INTERVAL) {
+                Thread.sleep(MIN_CHECK_INTERVAL - sinceCheck);
+            }
+        }
+    }
+
+    /**
+     * Returns the current state of the instances of the application.
+     */
+    static Instances getInstances(CloudFoundryOperations client, CloudApplication app) {
+        Instances instances = listInstances(client, app);
+        return instances == null ? new Instances(0, 0) : instances;
+    }
+
+    /**
+     * Returns the state of the instances, or null while the application is staging and has no instances yet.
+     */
+    private static Instances listInstances(CloudFoundryOperations client, CloudApplication app) {
+        InstancesInfo instancesInfo = client.getApplicationInstances(app);
+        if (instancesInfo == null) {
+            return null;
+        }
+        int running = 0;
+        for (InstanceInfo instance : instancesInfo.getInstances()) {
+            if (instance.getState() == InstanceState.RUNNING) {
+                running++;
+            }
+        }
+        // Instances just scaled out to are only listed once they are being started
+        int total = Math.max(app.getInstances(), instancesInfo.getInstances().size());
+        return new Instances(running, total);
+    }
+
+    public static final class Instances {
+
+        public final int running;
+
+        /**
+         * The number of instances the app is configured with, or the listed ones if there are more.
+         */
+        public final int total;
+
+        public Instances(int running, int total) {
+            this.running = running;
+            this.total = total;
+        }
+
+        public boolean allRunning() {
+            return total > 0 && running == total;
+        }
+    }
+}
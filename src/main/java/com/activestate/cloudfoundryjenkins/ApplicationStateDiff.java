@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import net.sf.json.JSONObject;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Differences between the state of an application described by a {@link DeploymentInfo}
+ * and its current state on the Cloud Controller.
+ * <p>
+ * Only the real differences are applied, so pushing an app whose configuration didn't change costs
+ * no extra Cloud Controller call, and the environment and instances are updated with a single request.
+ * Like before, only the environment, the number of instances and the no-route option are applied to existing apps:
+ * the rest of their configuration is only set on creation. With no-route, every route of the app is unmapped.
+ * Missing routes are mapped separately, by {@link RouteMapper}.
+ * Services added to the list of an existing app are bound to it, but services bound by other means are left bound.
+ */
+public class ApplicationStateDiff {
+
+    private final Map<String, String> envVars;
+    private final Integer instances;
+    private final List<String> routesToUnmap;
+    private final List<String> servicesToBind;
+    private final List<String> changes = new ArrayList<String>();
+
+    private ApplicationStateDiff(Map<String, String> envVars, Integer instances, List<String> routesToUnmap,
+                                 List<String> servicesToBind) {
+        this.envVars = envVars;
+        this.instances = instances;
+        this.routesToUnmap = routesToUnmap;
+        this.servicesToBind = servicesToBind;
+    }
+
+    /**
+     * Computes the changes needed to bring an application to its desired state.
+     *
+     * @param desired the deployment info of the application
+     * @param current the application as the Cloud Controller knows it, or null if it was just created
+     *                (with its staging, memory, routes and services already set)
+     */
+    public static ApplicationStateDiff compute(DeploymentInfo desired, CloudApplication current) {
+        return compute(desired, current, desired.getInstances());
+    }
+
+    /**
+     * Computes the changes needed to bring an application to its desired state, with another number of instances
+     * than the desired one, like the single instance a fast scale-out starts with.
+     */
+    public static ApplicationStateDiff compute(DeploymentInfo desired, CloudApplication current,
+                                               int desiredInstances) {
+        Map<String, String> envVars = null;
+        Map<String, String> desiredEnv = stringValues(desired.getEnvVars());
+        if (!desiredEnv.isEmpty()) {
+            Map<String, String> currentEnv = current == null ? null : current.getEnvAsMap();
+            if (!desiredEnv.equals(currentEnv)) {
+                envVars = desiredEnv;
+            }
+        }
+
+        // An unspecified number of instances means 1, which must not scale down an app scaled by hand
+        Integer instances = null;
+        int currentInstances = current == null ? 1 : current.getInstances();
+        if (desired.getInstances() > 1 && currentInstances != desiredInstances) {
+            instances = desiredInstances;
+        }
+
+        List<String> routesToUnmap = Collections.emptyList();
+        if (desired.isNoRoute() && current != null && current.getUris() != null) {
+            routesToUnmap = new ArrayList<String>(current.getUris());
+        }
+
+        // A new app is created with its services already bound
+        List<String> servicesToBind = Collections.emptyList();
+        if (current != null) {
+            servicesToBind = new ArrayList<String>(desired.getServicesNames());
+            if (current.getServices() != null) {
+                servicesToBind.removeAll(current.getServices());
+            }
+        }
+
+        ApplicationStateDiff diff = new ApplicationStateDiff(envVars, instances, routesToUnmap, servicesToBind);
+        if (envVars != null) {
+            diff.changes.add("environment variables: " + envVars.keySet());
+        }
+        if (instances != null) {
+            diff.changes.add("instances: " + currentInstances + " -> " + instances);
+        }
+        if (!routesToUnmap.isEmpty()) {
+            diff.changes.add("unmap routes: " + routesToUnmap);
+        }
+        if (!servicesToBind.isEmpty()) {
+            diff.changes.add("bind services: " + servicesToBind);
+        }
+        return diff;
+    }
+
+    /**
+     * Manifest values can be numbers or booleans, the Cloud Controller stores them as strings.
+     */
+    private static Map<String, String> stringValues(Map<String, ?> map) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue() == null ? null : String.valueOf(entry.getValue()));
+        }
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Returns a human readable description of each change.
+     */
+    public List<String> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Returns the services of the list that are not bound to the app yet.
+     */
+    public List<String> getServicesToBind() {
+        return servicesToBind;
+    }
+
+    /**
+     * Returns the routes mapped to the app that no-route unmaps.
+     */
+    public List<String> getRoutesToUnmap() {
+        return routesToUnmap;
+    }
+
+    /**
+     * Returns the body of the request updating the environment and instances of the app,
+     * or null if neither changes.
+     */
+    JSONObject getAppUpdate() {
+        if (envVars == null && instances == null) {
+            return null;
+        }
+        JSONObject update = new JSONObject();
+        if (envVars != null) {
+            update.put("environment_json", envVars);
+        }
+        if (instances != null) {
+            update.put("instances", instances);
+        }
+        return update;
+    }
+
+    /**
+     * Returns the calls applying the changes: one for the environment and instances, one for the routes,
+     * then one per service. They don't depend on each other, so they can be made at the same time.
+     */
+    public List<Callable<Void>> getUpdates(final CloudFoundryOperations client, final CloudControllerRest rest,
+                                           final RouteMapper routeMapper, final String appGuid,
+                                           final String appName) {
+        List<Callable<Void>> updates = new ArrayList<Callable<Void>>();
+        final JSONObject appUpdate = getAppUpdate();
+        if (appUpdate != null) {
+            updates.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    rest.put("/v2/apps/" + appGuid, appUpdate);
+                    return null;
+                }
+            });
+        }
+        if (!routesToUnmap.isEmpty()) {
+            updates.add(new Callable<Void>() {
+                public Void call() throws IOException, InterruptedException {
+                    routeMapper.unmap(appName, appGuid, routesToUnmap);
+                    return null;
+                }
+            });
+        }
+        for (final String serviceName : servicesToBind) {
+            updates.add(new Callable<Void>() {
+                public Void call() {
+                    client.bindService(appName, serviceName);
+                    return null;
+                }
+            });
+        }
+        return updates;
+    }
+}
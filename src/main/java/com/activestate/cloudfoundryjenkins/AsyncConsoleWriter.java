@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes lines to the build console from a dedicated thread, in batches.
+ * <p>
+ * The build console of a slave is remoted, so writing every staging log line synchronously from the log streaming
+ * thread makes staging as slow as the console. Lines are queued instead, and the writer thread prints everything
+ * that is queued in a single write. The queue is bounded: when the console can't keep up, new lines are dropped,
+ * never blocking the caller, and the number of dropped lines is reported when the writer is closed.
+ */
+public class AsyncConsoleWriter {
+
+    static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * Maximum number of lines written at once.
+     */
+    static final int MAX_BATCH_LINES = 1000;
+
+    /**
+     * How long closing waits for the queued lines to be written.
+     */
+    static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long POLL_INTERVAL = 100;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final PrintStream out;
+    private final BlockingQueue<String> queue;
+    private final AtomicLong queuedLines = new AtomicLong();
+    private final AtomicLong droppedLines = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Object writtenLock = new Object();
+    private long writtenLines;
+
+    public AsyncConsoleWriter(PrintStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    AsyncConsoleWriter(PrintStream out, int capacity) {
+        this.out = out;
+        this.queue = new ArrayBlockingQueue<String>(capacity);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "Cloud Foundry console writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a line, without ever blocking. Once the writer is closed, lines are written synchronously.
+     *
+     * @return false if the queue was full and the line was dropped
+     */
+    public boolean println(String line) {
+        if (closed.get()) {
+            out.println(line);
+            return true;
+        }
+        if (queue.offer(line)) {
+            queuedLines.incrementAndGet();
+            return true;
+        }
+        droppedLines.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Waits for the lines queued so far to be written.
+     *
+     * @return false if they were not all written in time
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long target = queuedLines.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (writtenLock) {
+            while (writtenLines < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                writtenLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the queued lines, reports the dropped ones and stops the writer thread. Can be called several times.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (!flush(CLOSE_TIMEOUT)) {
+                out.println("WARNING: The build console is too slow, some log lines may be printed later.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long dropped = droppedLines.get();
+        if (dropped > 0) {
+            out.println("WARNING: " + dropped + " log lines were dropped because the build console could not keep up.");
+        }
+    }
+
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<String>();
+        StringBuilder buffer = new StringBuilder();
+        try {
+            while (true) {
+                String first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed.get()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_LINES - 1);
+                for (String line : batch) {
+                    buffer.append(line).append(LINE_SEPARATOR);
+                }
+                out.print(buffer);
+                out.flush();
+                synchronized (writtenLock) {
+                    writtenLines += batch.size();
+                    writtenLock.notifyAll();
+                }
+                batch.clear();
+                buffer.setLength(0);
+            }
+        } catch (InterruptedException e) {
+            // Nothing else to write
+        }
+    }
+}
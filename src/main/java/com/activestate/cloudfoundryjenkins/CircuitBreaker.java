@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling a Cloud Foundry target once it is clearly down.
+ * <p>
+ * After a number of consecutive transient failures the circuit opens, and calls fail fast instead of each
+ * waiting out its own connect timeout. Once the open period is over, a single call goes through as a probe while
+ * the others wait for its outcome: the circuit closes if the target answered, and opens again if it did not.
+ * Breakers are shared by all the builds pushing to the same target.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * How long a call waits for the outcome of a probe before failing.
+     */
+    static final long PROBE_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final String target;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final long probeWaitMillis;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    CircuitBreaker(String target, int failureThreshold, long openMillis, long probeWaitMillis) {
+        this.target = target;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.probeWaitMillis = probeWaitMillis;
+    }
+
+    static CircuitBreaker forTarget(String target) {
+        CircuitBreaker breaker = BREAKERS.get(target);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(target, FAILURE_THRESHOLD, OPEN_MILLIS, PROBE_WAIT_MILLIS);
+            breaker = BREAKERS.putIfAbsent(target, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Returns the state of the breakers of all the targets called so far.
+     */
+    static Map<String, State> getStates() {
+        Map<String, State> states = new TreeMap<String, State>();
+        for (CircuitBreaker breaker : BREAKERS.values()) {
+            states.put(breaker.target, breaker.getState());
+        }
+        return Collections.unmodifiableMap(states);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Lets a call through, possibly as the probe, or waits for the probe in flight.
+     *
+     * @throws TargetUnavailableException if the circuit is open
+     */
+    synchronized void beforeCall() {
+        long deadline = System.currentTimeMillis() + probeWaitMillis;
+        while (true) {
+            long now = System.currentTimeMillis();
+            switch (state) {
+                case CLOSED:
+                    return;
+                case OPEN:
+                    if (now - openedAt < openMillis) {
+                        throw unavailable(openedAt + openMillis - now);
+                    }
+                    // This call is the probe
+                    state = State.HALF_OPEN;
+                    return;
+                default:
+                    if (now >= deadline) {
+                        throw unavailable(0);
+                    }
+                    try {
+                        wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw unavailable(0);
+                    }
+            }
+        }
+    }
+
+    /**
+     * The target answered, even if with an error of the request itself.
+     */
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The target could not be reached, or failed with a server error.
+     */
+    synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    private TargetUnavailableException unavailable(long retryInMillis) {
+        return new TargetUnavailableException("Cloud Foundry target " + target + " is unavailable after "
+                + consecutiveFailures + " consecutive failures"
+                + (retryInMillis > 0 ? ", retrying in " + retryInMillis + " ms" : ""));
+    }
+
+    /**
+     * Thrown instead of calling a target whose circuit is open.
+     */
+    static final class TargetUnavailableException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        TargetUnavailableException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Plain JSON requests to the Cloud Controller API, for what the CF client doesn't expose,
+ * or only does one call at a time.
+ * <p>
+ * Requests go through the {@link CircuitBreaker} of the target, and are retried like the client calls.
+ */
+class CloudControllerRest {
+
+    private static final int CONNECT_TIMEOUT = 60 * 1000;
+    private static final int READ_TIMEOUT = 60 * 1000;
+
+    private final URL target;
+    private final CloudFoundryClientPool.PooledClient pooledClient;
+    private final boolean selfSigned;
+
+    CloudControllerRest(URL target, CloudFoundryClientPool.PooledClient pooledClient, boolean selfSigned) {
+        this.target = target;
+        this.pooledClient = pooledClient;
+        this.selfSigned = selfSigned;
+    }
+
+    JSONObject get(String path) throws IOException {
+        return exchange(path, "GET", null);
+    }
+
+    JSONObject put(String path) throws IOException {
+        return exchange(path, "PUT", null);
+    }
+
+    JSONObject put(String path, JSONObject body) throws IOException {
+        return exchange(path, "PUT", body);
+    }
+
+    JSONObject post(String path, JSONObject body) throws IOException {
+        return exchange(path, "POST", body);
+    }
+
+    JSONObject delete(String path) throws IOException {
+        return exchange(path, "DELETE", null);
+    }
+
+    private JSONObject exchange(final String path, final String method, final JSONObject body) throws IOException {
+        try {
+            // Creations may have succeeded anyway, they are not retried
+            return RetryingClient.send(target.toString(), method + " " + path, !method.equals("POST"),
+                    new RetryingClient.Request<JSONObject>() {
+                        public JSONObject send() throws IOException {
+                            return sendOnce(path, method, body);
+                        }
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(method + " " + path + " was interrupted");
+        }
+    }
+
+    private JSONObject sendOnce(String path, String method, JSONObject body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(target, path).openConnection();
+        if (selfSigned && connection instanceof HttpsURLConnection) {
+            ApplicationBitsUploader.trustSelfSigned((HttpsURLConnection) connection);
+        }
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("Authorization", "bearer " + pooledClient.getAccessToken());
+        connection.setRequestProperty("Accept", "application/json");
+        if (body != null) {
+            byte[] bytes = body.toString().getBytes("UTF-8");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(bytes.length);
+            connection.setRequestProperty("Content-Type", "application/json");
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        } else if (method.equals("PUT")) {
+            // Associations have no body
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(0);
+        }
+        int status = connection.getResponseCode();
+        if (status < 200 || status >= 300) {
+            ApplicationBitsUploader.checkResponse(connection, method + " " + path);
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            String response = IOUtils.toString(in, "UTF-8");
+            return response.trim().isEmpty() ? new JSONObject() : JSONObject.fromObject(response);
+        } finally {
+            in.close();
+        }
+    }
+}
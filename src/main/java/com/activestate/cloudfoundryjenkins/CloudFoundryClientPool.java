@@ -0,0 +1,352 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import org.cloudfoundry.client.lib.CloudCredentials;
+import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide pool of logged in Cloud Foundry clients, keyed by target, organization, space and user.
+ * <p>
+ * Logging in costs a UAA token exchange and a TLS handshake, which used to be paid by every push and
+ * every "Test Connection" click. Pooled clients are shared between concurrent builds, log in again
+ * shortly before their token expires, and are evicted after a period of inactivity.
+ * <p>
+ * Every {@link #acquire} must be followed by a {@link #release} once the client is not needed anymore:
+ * a client is never evicted while it is leased, however long the push using it takes.
+ */
+public class CloudFoundryClientPool {
+
+    private static final Logger LOGGER = Logger.getLogger(CloudFoundryClientPool.class.getName());
+
+    /**
+     * Tokens are renewed this long before they expire, so that a push never starts with a token about to expire.
+     */
+    private static final long TOKEN_REFRESH_MARGIN = TimeUnit.MINUTES.toMillis(2);
+    private static final long DEFAULT_TOKEN_LIFETIME = TimeUnit.MINUTES.toMillis(10);
+    private static final long MAX_IDLE_TIME = TimeUnit.MINUTES.toMillis(30);
+
+    private static final CloudFoundryClientPool INSTANCE = new CloudFoundryClientPool();
+
+    private final ConcurrentMap<Key, PooledClient> clients = new ConcurrentHashMap<Key, PooledClient>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    CloudFoundryClientPool() {
+    }
+
+    public static CloudFoundryClientPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a logged in client for the given target and credentials, reusing a pooled one when possible.
+     * The client is leased until it is given to {@link #release}.
+     */
+    public PooledClient acquire(URL target, String organization, String cloudSpace,
+                                String username, String password, boolean selfSigned) {
+        Key key = new Key(target.toString(), organization, cloudSpace, username, password, selfSigned);
+        PooledClient pooled;
+        while (true) {
+            pooled = clients.get(key);
+            if (pooled == null) {
+                PooledClient created = new PooledClient(key, createClient(key, target));
+                pooled = clients.putIfAbsent(key, created);
+                if (pooled == null) {
+                    pooled = created;
+                }
+            }
+            if (pooled.lease()) {
+                break;
+            }
+            // Evicted between the lookup and the lease, pool a new one
+            clients.remove(key, pooled);
+        }
+        try {
+            if (pooled.ensureLoggedIn()) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            // Never keep clients that could not log in, the credentials may be wrong
+            release(pooled);
+            invalidate(pooled);
+            throw e;
+        }
+        return pooled;
+    }
+
+    /**
+     * Ends a lease taken by {@link #acquire}. The client is only considered idle from now on.
+     */
+    public void release(PooledClient pooled) {
+        if (pooled != null) {
+            pooled.release();
+        }
+    }
+
+    /**
+     * Creates the client of a new pool entry, instrumented and retrying transient failures.
+     */
+    CloudFoundryOperations createClient(Key key, URL target) {
+        CloudCredentials credentials = new CloudCredentials(key.username, key.password);
+        CloudFoundryClient client = new CloudFoundryClient(credentials, target, key.organization,
+                key.cloudSpace, null, key.selfSigned);
+        // Retries wrap the metrics, so that every attempt is counted
+        return RetryingClient.wrap(DeploymentMetrics.getInstance().instrument(client, key.target), key.target);
+    }
+
+    /**
+     * Removes a client from the pool, for instance after its token has been rejected.
+     * Builds still leasing it keep using it, it is only logged out once the last of them releases it.
+     */
+    public void invalidate(PooledClient pooled) {
+        if (pooled != null && clients.remove(pooled.key, pooled)) {
+            pooled.invalidate();
+        }
+    }
+
+    /**
+     * Removes the clients that are not leased and have not been used for the given time.
+     */
+    void evictIdle(long maxIdleMillis) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Key, PooledClient>> it = clients.entrySet().iterator();
+        while (it.hasNext()) {
+            PooledClient pooled = it.next().getValue();
+            if (pooled.evictIfIdle(now - maxIdleMillis)) {
+                it.remove();
+                pooled.logout();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public int getSize() {
+        return clients.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * A pooled client, along with the access token of its current session.
+     */
+    public static final class PooledClient {
+
+        private final Key key;
+        private final CloudFoundryOperations client;
+        private String accessToken;
+        private long tokenExpiresAt;
+        private volatile long lastUsed;
+        private int leases;
+        private boolean evicted;
+        private boolean logoutOnRelease;
+
+        private PooledClient(Key key, CloudFoundryOperations client) {
+            this.key = key;
+            this.client = client;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * @return false if the client has been evicted, and must not be used anymore
+         */
+        private synchronized boolean lease() {
+            if (evicted) {
+                return false;
+            }
+            leases++;
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+
+        private synchronized void release() {
+            lastUsed = System.currentTimeMillis();
+            if (leases > 0) {
+                leases--;
+                if (leases == 0 && logoutOnRelease) {
+                    logout();
+                }
+            }
+        }
+
+        /**
+         * Marks the client as evicted, and logs out now if nobody leases it, or else when the last lease ends.
+         */
+        private synchronized void invalidate() {
+            evicted = true;
+            if (leases > 0) {
+                logoutOnRelease = true;
+            } else {
+                logout();
+            }
+        }
+
+        /**
+         * Marks the client as evicted if nobody leases it, and it has not been used since the given time.
+         */
+        private synchronized boolean evictIfIdle(long usedBefore) {
+            if (leases > 0 || lastUsed >= usedBefore) {
+                return false;
+            }
+            evicted = true;
+            return true;
+        }
+
+        /**
+         * Logs in if there is no session yet, or if its token is about to expire.
+         *
+         * @return true if a login was needed
+         */
+        private synchronized boolean ensureLoggedIn() {
+            lastUsed = System.currentTimeMillis();
+            if (accessToken != null && lastUsed < tokenExpiresAt - TOKEN_REFRESH_MARGIN) {
+                return false;
+            }
+            OAuth2AccessToken token = client.login();
+            accessToken = token.getValue();
+            if (token.getExpiration() != null) {
+                tokenExpiresAt = token.getExpiration().getTime();
+            } else {
+                tokenExpiresAt = System.currentTimeMillis() + DEFAULT_TOKEN_LIFETIME;
+            }
+            return true;
+        }
+
+        private synchronized void logout() {
+            evicted = true;
+            accessToken = null;
+            try {
+                client.logout();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Could not log out of " + key, e);
+            }
+        }
+
+        /**
+         * Returns the client, instrumented by the {@link DeploymentMetrics}, retrying transient failures
+         * and protected by the {@link CircuitBreaker} of its target.
+         */
+        public CloudFoundryOperations getClient() {
+            lastUsed = System.currentTimeMillis();
+            return client;
+        }
+
+        public String getOrganization() {
+            return key.organization;
+        }
+
+        public String getCloudSpace() {
+            return key.cloudSpace;
+        }
+
+        /**
+         * Returns a valid access token, for the requests that don't go through the CF client.
+         */
+        public synchronized String getAccessToken() {
+            ensureLoggedIn();
+            return accessToken;
+        }
+    }
+
+    static final class Key {
+
+        private final String target;
+        private final String organization;
+        private final String cloudSpace;
+        private final String username;
+        private final String password;
+        private final boolean selfSigned;
+
+        private Key(String target, String organization, String cloudSpace,
+                    String username, String password, boolean selfSigned) {
+            this.target = target;
+            this.organization = organization;
+            this.cloudSpace = cloudSpace;
+            this.username = username;
+            this.password = password;
+            this.selfSigned = selfSigned;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return selfSigned == other.selfSigned
+                    && equal(target, other.target)
+                    && equal(organization, other.organization)
+                    && equal(cloudSpace, other.cloudSpace)
+                    && equal(username, other.username)
+                    && equal(password, other.password);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = target != null ? target.hashCode() : 0;
+            result = 31 * result + (organization != null ? organization.hashCode() : 0);
+            result = 31 * result + (cloudSpace != null ? cloudSpace.hashCode() : 0);
+            result = 31 * result + (username != null ? username.hashCode() : 0);
+            result = 31 * result + (selfSigned ? 1 : 0);
+            return result;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public String toString() {
+            // No password here, this ends up in logs
+            return username + "@" + target + " (" + organization + "/" + cloudSpace + ")";
+        }
+    }
+
+    /**
+     * Evicts idle clients and reports the pool statistics.
+     */
+    @Extension
+    public static final class IdleClientEvictor extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            CloudFoundryClientPool pool = getInstance();
+            pool.evictIdle(MAX_IDLE_TIME);
+            LOGGER.log(Level.FINE, "Cloud Foundry client pool: {0} clients, {1} hits, {2} misses, {3} evictions",
+                    new Object[]{pool.getSize(), pool.getHits(), pool.getMisses(), pool.getEvictions()});
+        }
+    }
+}
@@ -9,38 +9,47 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.StreamBuildListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import org.cloudfoundry.client.lib.CloudCredentials;
-import org.cloudfoundry.client.lib.CloudFoundryClient;
+import net.sf.json.JSONObject;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
 import org.cloudfoundry.client.lib.CloudFoundryException;
-import org.cloudfoundry.client.lib.StartingInfo;
-import org.cloudfoundry.client.lib.domain.*;
 import org.cloudfoundry.client.lib.org.springframework.web.client.ResourceAccessException;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 public class CloudFoundryPushPublisher extends Recorder {
 
     private static final String DEFAULT_MANIFEST_PATH = "manifest.yml";
-    private static final int TIMEOUT = 120;
+    private static final int MAX_PARALLEL_PUSHES = 6;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     public final String target;
     public final String organization;
@@ -50,6 +59,13 @@ public class CloudFoundryPushPublisher extends Recorder {
     public final boolean selfSigned;
     public final boolean resetIfExists;
     public final OptionalManifest optionalManifest;
+    public final BlueGreenDeployment blueGreen;
+    public final boolean skipIfUnchanged;
+    public final boolean uploadFromAgent;
+    public final Integer compressionLevel;
+    public final List<Service> servicesToCreate;
+    public final boolean planOnly;
+    public final FastScaleOut fastScaleOut;
 
 
     private String appURI;
@@ -57,7 +73,11 @@ public class CloudFoundryPushPublisher extends Recorder {
     @DataBoundConstructor
     public CloudFoundryPushPublisher(String target, String organization, String cloudSpace,
                                      String username, String password, boolean selfSigned,
-                                     boolean resetIfExists, OptionalManifest optionalManifest) {
+                                     boolean resetIfExists, OptionalManifest optionalManifest,
+                                     BlueGreenDeployment blueGreen, boolean skipIfUnchanged,
+                                     boolean uploadFromAgent, Integer compressionLevel,
+                                     List<Service> servicesToCreate, boolean planOnly,
+                                     FastScaleOut fastScaleOut) {
         this.target = target;
         this.organization = organization;
         this.cloudSpace = cloudSpace;
@@ -66,6 +86,31 @@ public class CloudFoundryPushPublisher extends Recorder {
         this.selfSigned = selfSigned;
         this.resetIfExists = resetIfExists;
         this.optionalManifest = optionalManifest;
+        this.blueGreen = blueGreen;
+        this.skipIfUnchanged = skipIfUnchanged;
+        this.uploadFromAgent = uploadFromAgent;
+        this.compressionLevel = compressionLevel;
+        this.servicesToCreate = servicesToCreate;
+        this.planOnly = planOnly;
+        this.fastScaleOut = fastScaleOut;
+    }
+
+    public CloudFoundryPushPublisher(String target, String organization, String cloudSpace,
+                                     String username, String password, boolean selfSigned,
+                                     boolean resetIfExists, OptionalManifest optionalManifest) {
+        this(target, organization, cloudSpace, username, password, selfSigned, resetIfExists, optionalManifest,
+                null, false, false, null, null, false, null);
+    }
+
+    /**
+     * Returns the deflate level of the uploaded archives, between 0 and 9.
+     * Jobs configured before the option existed have none, and get the default.
+     */
+    public int getEffectiveCompressionLevel() {
+        if (compressionLevel == null) {
+            return DescriptorImpl.DEFAULT_COMPRESSION_LEVEL;
+        }
+        return Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
     }
 
     @Override
@@ -74,6 +119,14 @@ public class CloudFoundryPushPublisher extends Recorder {
         if (build.getResult().isWorseThan(Result.SUCCESS))
             return true;
 
+        long pushStart = System.nanoTime();
+        DeploymentTimingAction timings = new DeploymentTimingAction();
+        if (!planOnly) {
+            build.addAction(timings);
+        }
+        CloudFoundryClientPool.PooledClient pooledClient = null;
+        PushScheduler.Ticket ticket = null;
+        boolean success = false;
         try {
             String jenkinsBuildName = build.getProject().getDisplayName();
 
@@ -82,202 +135,215 @@ public class CloudFoundryPushPublisher extends Recorder {
             String[] split = target.split("\\.", 2);
             String domain = split[split.length - 1];
 
-            FilePath manifestFilePath = new FilePath(build.getWorkspace(), DEFAULT_MANIFEST_PATH);
-            DeploymentInfo deploymentInfo =
-                    new DeploymentInfo(listener.getLogger(), manifestFilePath, optionalManifest, jenkinsBuildName, domain);
-            String appName = deploymentInfo.getAppName();
-            setAppURI("https://" + deploymentInfo.getHostname() + "." + deploymentInfo.getDomain());
-
-            CloudCredentials credentials = new CloudCredentials(username, password);
-            CloudFoundryClient client = new CloudFoundryClient(credentials, targetUrl, organization, cloudSpace,
-                    null, selfSigned);
-            client.login();
-
-            listener.getLogger().println("Pushing " + appName + " app to " + target);
-
-            // Check if app already exists
-            List<CloudApplication> existingApps = client.getApplications();
-            boolean createNewApp = true;
-            for (CloudApplication app : existingApps) {
-                if (app.getName().equals(appName)) {
-                    if (resetIfExists) {
-                        listener.getLogger().println("App already exists, resetting.");
-                        client.deleteApplication(appName);
-                        listener.getLogger().println("App deleted.");
-                    } else {
-                        createNewApp = false;
-                        listener.getLogger().println("App already exists, skipping creation.");
-                    }
-                    break;
-                }
+            List<DeploymentInfo> deploymentInfos;
+            if (optionalManifest == null) {
+                FilePath manifestFilePath = new FilePath(build.getWorkspace(), DEFAULT_MANIFEST_PATH);
+                deploymentInfos = DeploymentInfo.readManifest(listener.getLogger(), manifestFilePath,
+                        jenkinsBuildName, domain);
+            } else {
+                deploymentInfos = Collections.singletonList(
+                        new DeploymentInfo(listener.getLogger(), null, optionalManifest, jenkinsBuildName, domain));
             }
-
-            // This is where we would create services, if we decide to add that feature.
-            // List<CloudService> cloudServices = deploymentInfo.getServices();
-            // client.createService();
-
-            // Create app if it doesn't exist
-            if (createNewApp) {
-                listener.getLogger().println("Creating new app.");
-                Staging staging = new Staging(deploymentInfo.getCommand(), deploymentInfo.getBuildpack(),
-                        null, deploymentInfo.getTimeout());
-                List<String> uris = new ArrayList<String>();
-                uris.add(getAppURI());
-                List<String> services = deploymentInfo.getServicesNames();
-                client.createApplication(appName, staging, deploymentInfo.getMemory(), uris, services);
+            setAppURI(ApplicationPusher.getAppURI(deploymentInfos.get(0)));
+
+            // Wait for our turn if too many pushes to this target are running, plans only read
+            if (!planOnly) {
+                long queueStart = System.nanoTime();
+                DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+                ticket = PushScheduler.getInstance().acquire(target, organization + "/" + cloudSpace,
+                        build.getProject().getFullName(), build.getFullDisplayName(),
+                        descriptor.getMaxPushesPerTarget(), descriptor.getMaxPushesPerSpace(), listener.getLogger());
+                timings.record(DeploymentTimingAction.Phase.QUEUE, queueStart);
             }
 
-            // Delete route if no-route parameter
-            if (deploymentInfo.isNoRoute()) {
-                client.deleteRoute(deploymentInfo.getHostname(), deploymentInfo.getDomain());
+            long loginStart = System.nanoTime();
+            pooledClient = CloudFoundryClientPool.getInstance().acquire(targetUrl, organization, cloudSpace,
+                    username, password, selfSigned);
+            timings.record(DeploymentTimingAction.Phase.LOGIN, loginStart);
+
+            // Services are shared by the applications of the manifest, create them once for all
+            List<Service> services = getServicesToCreate(deploymentInfos);
+            SpaceMetadataCache spaceCache = SpaceMetadataCache.forSpace(target, organization, cloudSpace, username);
+            if (planOnly) {
+                listener.getLogger().println("Plan mode: nothing will be changed on " + target + ".");
+                new ServiceProvisioner(pooledClient, spaceCache, targetUrl, selfSigned)
+                        .plan(services, listener.getLogger());
+            } else if (!services.isEmpty()) {
+                long servicesStart = System.nanoTime();
+                ServiceProvisioner provisioner =
+                        new ServiceProvisioner(pooledClient, spaceCache, targetUrl, selfSigned);
+                boolean provisioned = provisioner.provision(services, listener.getLogger());
+                timings.record(DeploymentTimingAction.Phase.SERVICES, servicesStart);
+                if (!provisioned) {
+                    listener.getLogger().println("Cloud Foundry push failed.");
+                    return false;
+                }
             }
+            ApplicationPusher pusher = new ApplicationPusher(this, build, targetUrl, pooledClient, timings);
 
-            // Add environment variables
-            if (!deploymentInfo.getEnvVars().isEmpty()) {
-                client.updateApplicationEnv(appName, deploymentInfo.getEnvVars());
+            if (deploymentInfos.size() == 1) {
+                success = pushOrPlan(pusher, deploymentInfos.get(0), services, listener);
+            } else {
+                success = pushInParallel(pusher, deploymentInfos, services, listener, pooledClient);
             }
-
-            // Change number of instances
-            if (deploymentInfo.getInstances() > 1) {
-                client.updateApplicationInstances(appName, deploymentInfo.getInstances());
+            return success;
+        } catch (Exception e) {
+            return reportFailure(e, listener.getLogger(), pooledClient);
+        } finally {
+            CloudFoundryClientPool.getInstance().release(pooledClient);
+            if (ticket != null) {
+                PushScheduler.getInstance().release(ticket);
             }
-
-            // Push files
-            listener.getLogger().println("Pushing app bits.");
-            FilePath appPath = new FilePath(build.getWorkspace(), deploymentInfo.getAppPath());
-            if (appPath.isDirectory()) {
-                // In case the build is distributed, we need to make a copy of the target directory on the slave
-                File appFile = File.createTempFile("appFile", null); // This is on the slave
-                OutputStream outputStream = new FileOutputStream(appFile);
-                appPath.zip(outputStream, "*"); // The "*" is needed to prevent the directory itself to be in the archive
-
-                // We now have a zip file on the slave, extract it into a directory
-                ZipFile appZipFile = new ZipFile(appFile);
-                File outputDirectory = new File(appFile.getAbsolutePath().split("\\.")[0]);
-                appZipFile.extractAll(outputDirectory.getAbsolutePath());
-                client.uploadApplication(appName, outputDirectory);
-
-            } else {
-                // If the target path is a single file, we can just use an InputStream
-                // The CF client will make a temp file on the slave from the InputStream
-                client.uploadApplication(appName, appPath.getName(), appPath.read());
+            if (!planOnly) {
+                timings.recordTotal(pushStart);
+                DeploymentMetrics.getInstance().recordPush(target, success);
             }
+        }
+    }
 
-            // Start or restart application
-            StartingInfo startingInfo;
-            if (createNewApp) {
-                listener.getLogger().println("Starting application.");
-                startingInfo = client.startApplication(appName);
-            } else {
-                listener.getLogger().println("Restarting application.");
-                startingInfo = client.restartApplication(appName);
-            }
+    /**
+     * Returns the services of the job configuration, then those declared in the manifest.
+     */
+    private List<Service> getServicesToCreate(List<DeploymentInfo> deploymentInfos) {
+        List<Service> services = new ArrayList<Service>();
+        if (servicesToCreate != null) {
+            services.addAll(servicesToCreate);
+        }
+        for (DeploymentInfo deploymentInfo : deploymentInfos) {
+            services.addAll(deploymentInfo.getDeclaredServices());
+        }
+        return services;
+    }
 
-            // Start printing the staging logs
-            // First, try streamLogs()
-            try {
-                JenkinsApplicationLogListener logListener = new JenkinsApplicationLogListener(listener);
-                client.streamLogs(appName, logListener);
-            } catch (Exception e) {
-                // In case of failure, try getStagingLogs()
-                listener.getLogger().println("WARNING: Exception occurred trying to get staging logs via websocket. " +
-                        "Switching to alternate method.");
-                int offset = 0;
-                String stagingLogs = client.getStagingLogs(startingInfo, offset);
-                if (stagingLogs == null) {
-                    listener.getLogger().println("WARNING: Could not get staging logs with alternate method. " +
-                            "Cannot display staging logs.");
-                } else {
-                    while (stagingLogs != null) {
-                        listener.getLogger().println(stagingLogs);
-                        offset += stagingLogs.length();
-                        stagingLogs = client.getStagingLogs(startingInfo, offset);
-                    }
-                }
-            }
+    /**
+     * Pushes the application, or only prints what pushing it would change in plan mode.
+     *
+     * @param services the services created before pushing the applications
+     */
+    private boolean pushOrPlan(ApplicationPusher pusher, DeploymentInfo deploymentInfo, List<Service> services,
+                               BuildListener listener) throws IOException, InterruptedException {
+        if (planOnly) {
+            return pusher.plan(deploymentInfo, services, listener);
+        }
+        return pusher.push(deploymentInfo, listener);
+    }
 
-            CloudApplication app = client.getApplication(appName);
-
-            // Keep checking to see if the app is running
-            int running = 0;
-            int totalInstances = 0;
-            for (int tries = 0; tries < TIMEOUT; tries++) {
-                running = 0;
-                InstancesInfo instancesInfo = client.getApplicationInstances(app);
-                if (instancesInfo != null) {
-                    List<InstanceInfo> listInstances = instancesInfo.getInstances();
-                    totalInstances = listInstances.size();
-                    for (InstanceInfo instance : listInstances) {
-                        if (instance.getState() == InstanceState.RUNNING) {
-                            running++;
+    /**
+     * Pushes all the applications of a manifest at the same time. Each line is printed as soon as it is logged,
+     * prefixed by the name of its application, and a summary follows once all of them are done.
+     */
+    private boolean pushInParallel(final ApplicationPusher pusher, List<DeploymentInfo> deploymentInfos,
+                                   final List<Service> services, BuildListener listener,
+                                   final CloudFoundryClientPool.PooledClient pooledClient)
+            throws InterruptedException {
+        final PrintStream logger = listener.getLogger();
+        logger.println((planOnly ? "Planning " : "Pushing ") + deploymentInfos.size()
+                + " applications in parallel.");
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(deploymentInfos.size(), MAX_PARALLEL_PUSHES), new DaemonThreadFactory());
+        CompletionService<AppPushResult> completionService = new ExecutorCompletionService<AppPushResult>(executor);
+        try {
+            for (final DeploymentInfo deploymentInfo : deploymentInfos) {
+                completionService.submit(new Callable<AppPushResult>() {
+                    public AppPushResult call() {
+                        long start = System.nanoTime();
+                        PrefixedLineOutputStream appLog =
+                                new PrefixedLineOutputStream(logger, deploymentInfo.getAppName());
+                        StreamBuildListener appListener = new StreamBuildListener(appLog, UTF8);
+                        boolean success;
+                        try {
+                            success = pushOrPlan(pusher, deploymentInfo, services, appListener);
+                        } catch (Exception e) {
+                            success = reportFailure(e, appListener.getLogger(), pooledClient);
                         }
+                        appListener.getLogger().close();
+                        return new AppPushResult(deploymentInfo.getAppName(), success,
+                                System.nanoTime() - start);
                     }
-                    if (running == totalInstances && totalInstances > 0) {
-                        break;
-                    }
-                }
-                Thread.sleep(1000);
+                });
             }
 
-            String instanceGrammar = "instances";
-            if (running == 1)
-                instanceGrammar = "instance";
-            listener.getLogger().println(running + " " + instanceGrammar + " running out of " + totalInstances);
-
-            if (running > 0) {
-                if (running != totalInstances) {
-                    listener.getLogger().println("WARNING: Some instances of the application are not running.");
-                }
-                if (deploymentInfo.isNoRoute()) {
-                    listener.getLogger().println("Application is now running. (No route)");
-                } else {
-                    listener.getLogger().println("Application is now running at " + getAppURI());
+            List<AppPushResult> results = new ArrayList<AppPushResult>();
+            for (int i = 0; i < deploymentInfos.size(); i++) {
+                AppPushResult result;
+                try {
+                    result = completionService.take().get();
+                } catch (ExecutionException e) {
+                    // Pushes report their own failures, this is an Error escaping from one of them
+                    logger.println("ERROR: Unexpected failure while pushing: " + e.getCause());
+                    return false;
                 }
-                listener.getLogger().println("Cloud Foundry push successful.");
-                return true;
-            } else {
-                listener.getLogger().println("ERROR: The application failed to start after " + TIMEOUT + " seconds.");
-                listener.getLogger().println("Cloud Foundry push failed.");
-                return false;
+                results.add(result);
+            }
+
+            boolean allSucceeded = true;
+            logger.println("===== Summary =====");
+            for (AppPushResult result : results) {
+                allSucceeded &= result.success;
+                logger.println(result.appName + ": " + (result.success ? "SUCCESS" : "FAILURE") + " ("
+                        + TimeUnit.NANOSECONDS.toSeconds(result.durationNanos) + " s)");
             }
+            return allSucceeded;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-        } catch (MalformedURLException e) {
-            listener.getLogger().println("ERROR: The target URL is not valid: " + e.getMessage());
-            return false;
-        } catch (ResourceAccessException e) {
+    /**
+     * Logs the reason of a failed push, and returns false.
+     */
+    private static boolean reportFailure(Exception e, PrintStream logger,
+                                         CloudFoundryClientPool.PooledClient pooledClient) {
+        if (e instanceof MalformedURLException) {
+            logger.println("ERROR: The target URL is not valid: " + e.getMessage());
+        } else if (e instanceof ResourceAccessException) {
             if (e.getCause() instanceof UnknownHostException) {
-                listener.getLogger().println("ERROR: Unknown host: " + e.getMessage());
+                logger.println("ERROR: Unknown host: " + e.getMessage());
             } else if (e.getCause() instanceof SSLPeerUnverifiedException) {
-                listener.getLogger().println("ERROR: Certificate is not verified: " + e.getMessage());
+                logger.println("ERROR: Certificate is not verified: " + e.getMessage());
             } else {
-                listener.getLogger().println("ERROR: Unknown ResourceAccessException: " + e.getMessage());
+                logger.println("ERROR: Unknown ResourceAccessException: " + e.getMessage());
             }
-            return false;
-        } catch (CloudFoundryException e) {
+        } else if (e instanceof CloudFoundryException) {
             if (e.getMessage().equals("403 Access token denied.")) {
-                listener.getLogger().println("ERROR: Wrong username or password: " + e.getMessage());
+                CloudFoundryClientPool.getInstance().invalidate(pooledClient);
+                logger.println("ERROR: Wrong username or password: " + e.getMessage());
             } else {
-                listener.getLogger().println("ERROR: Unknown CloudFoundryException: " + e.getMessage());
+                logger.println("ERROR: Unknown CloudFoundryException: " + e.getMessage());
             }
-            return false;
-        } catch (ManifestParsingException e) {
-            listener.getLogger().println("ERROR: Could not parse manifest: " + e.getMessage());
-            return false;
-        } catch (FileNotFoundException e) {
-            listener.getLogger().println("ERROR: Could not find file: " + e.getMessage());
-            return false;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            return false;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        } catch (ZipException e) {
-            e.printStackTrace();
-            return false;
+        } else if (e instanceof ManifestParsingException) {
+            logger.println("ERROR: Could not parse manifest: " + e.getMessage());
+        } else if (e instanceof FileNotFoundException) {
+            logger.println("ERROR: Could not find file: " + e.getMessage());
+        } else if (e instanceof CircuitBreaker.TargetUnavailableException) {
+            logger.println("ERROR: " + e.getMessage());
+        } else if (e instanceof InterruptedException) {
+            logger.println("ERROR: The push was interrupted.");
+        } else {
+            e.printStackTrace(logger);
+        }
+        return false;
+    }
+
+    private static final class AppPushResult {
+
+        private final String appName;
+        private final boolean success;
+        private final long durationNanos;
+
+        private AppPushResult(String appName, boolean success, long durationNanos) {
+            this.appName = appName;
+            this.success = success;
+            this.durationNanos = durationNanos;
         }
     }
 
+    @Override
+    public Action getProjectAction(AbstractProject<?, ?> project) {
+        return new DeploymentTimingProjectAction(project);
+    }
+
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.NONE;
     }
@@ -326,6 +392,39 @@ public class CloudFoundryPushPublisher extends Recorder {
         }
     }
 
+    /**
+     * Zero-downtime push: the new version is pushed as a separate app, and takes over the routes
+     * of the current version once all its instances are running.
+     */
+    public static class BlueGreenDeployment {
+
+        public final boolean keepOldApp;
+
+        @DataBoundConstructor
+        public BlueGreenDeployment(boolean keepOldApp) {
+            this.keepOldApp = keepOldApp;
+        }
+    }
+
+    public static class FastScaleOut {
+
+        public final int minHealthyPercent;
+
+        @DataBoundConstructor
+        public FastScaleOut(int minHealthyPercent) {
+            this.minHealthyPercent = minHealthyPercent;
+        }
+
+        /**
+         * Returns how many instances must be running for the push to succeed, at least one.
+         * An unset percentage means all of them.
+         */
+        public int getMinRunning(int instances) {
+            int percent = minHealthyPercent <= 0 ? 100 : Math.min(100, minHealthyPercent);
+            return Math.max(1, (instances * percent + 99) / 100);
+        }
+    }
+
     public static class EnvironmentVariable {
 
         public final String key;
@@ -348,12 +447,63 @@ public class CloudFoundryPushPublisher extends Recorder {
         }
     }
 
+    /**
+     * A service instance to create if it doesn't exist in the space.
+     */
+    public static class Service {
+
+        public final String name;
+        public final String type;
+        public final String plan;
+
+        /**
+         * @param type the label of the service offering, like "mysql"
+         */
+        @DataBoundConstructor
+        public Service(String name, String type, String plan) {
+            this.name = name;
+            this.type = type;
+            this.plan = plan;
+        }
+    }
+
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
         public static final int DEFAULT_MEMORY = 512;
         public static final int DEFAULT_INSTANCES = 1;
         public static final int DEFAULT_TIMEOUT = 60;
+        public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+        public static final int DEFAULT_MIN_HEALTHY_PERCENT = 100;
+
+        private int maxPushesPerTarget;
+        private int maxPushesPerSpace;
+
+        public DescriptorImpl() {
+            load();
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            maxPushesPerTarget = Math.max(0, json.optInt("maxPushesPerTarget"));
+            maxPushesPerSpace = Math.max(0, json.optInt("maxPushesPerSpace"));
+            save();
+            return true;
+        }
+
+        /**
+         * The maximum number of concurrent pushes to a target, or 0 for no limit.
+         */
+        public int getMaxPushesPerTarget() {
+            return maxPushesPerTarget;
+        }
+
+        /**
+         * The maximum number of concurrent pushes to an organization and space, or 0 for no limit.
+         */
+        public int getMaxPushesPerSpace() {
+            return maxPushesPerSpace;
+        }
 
         @Override
         public boolean isApplicable(Class<? extends AbstractProject> jobType) {
@@ -373,12 +523,12 @@ public class CloudFoundryPushPublisher extends Recorder {
                                                @QueryParameter("cloudSpace") final String cloudSpace,
                                                @QueryParameter("selfSigned") final boolean selfSigned) {
 
+            CloudFoundryClientPool.PooledClient pooledClient = null;
             try {
                 URL targetUrl = new URL(target);
-                CloudCredentials credentials = new CloudCredentials(username, password);
-                CloudFoundryClient client = new CloudFoundryClient(credentials, targetUrl, organization, cloudSpace,
-                        null, selfSigned);
-                client.login();
+                pooledClient = CloudFoundryClientPool.getInstance().acquire(targetUrl, organization,
+                        cloudSpace, username, password, selfSigned);
+                CloudFoundryOperations client = pooledClient.getClient();
                 client.getCloudInfo();
                 if (targetUrl.getHost().startsWith("api.")) {
                     return FormValidation.okWithMarkup("<b>Connection successful!</b>");
@@ -415,6 +565,8 @@ public class CloudFoundryPushPublisher extends Recorder {
                 }
             } catch (Exception e) {
                 return FormValidation.error(e, "Unknown Exception");
+            } finally {
+                CloudFoundryClientPool.getInstance().release(pooledClient);
             }
 
 
@@ -467,6 +619,32 @@ public class CloudFoundryPushPublisher extends Recorder {
             return FormValidation.validatePositiveInteger(value);
         }
 
+        @SuppressWarnings("unused")
+        public FormValidation doCheckMaxPushesPerTarget(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        @SuppressWarnings("unused")
+        public FormValidation doCheckMaxPushesPerSpace(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        @SuppressWarnings("unused")
+        public FormValidation doCheckCompressionLevel(@QueryParameter String value) {
+            if (value.isEmpty()) {
+                return FormValidation.ok();
+            }
+            try {
+                int level = Integer.parseInt(value);
+                if (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            return FormValidation.error("Must be a number between 0 and 9");
+        }
+
         @SuppressWarnings("unused")
         public FormValidation doCheckAppName(@QueryParameter String value) {
             return FormValidation.validateRequired(value);
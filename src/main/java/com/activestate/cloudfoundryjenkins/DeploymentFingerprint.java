@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fingerprint of everything a push deploys: where it goes, the application bits and the effective configuration.
+ * Two pushes with the same fingerprint deploy exactly the same thing.
+ */
+public final class DeploymentFingerprint {
+
+    private DeploymentFingerprint() {
+    }
+
+    /**
+     * @param target     the Cloud Foundry target, organization and space
+     * @param bitsDigest the digest of the application bits, see {@link #digest(ResourceIndex)}
+     */
+    public static String compute(String target, DeploymentInfo deploymentInfo, String bitsDigest) {
+        MessageDigest digest = newDigest();
+        update(digest, target);
+        update(digest, bitsDigest);
+        update(digest, deploymentInfo.getAppName());
+        update(digest, String.valueOf(deploymentInfo.getMemory()));
+        update(digest, String.valueOf(deploymentInfo.getInstances()));
+        update(digest, String.valueOf(deploymentInfo.getTimeout()));
+        update(digest, deploymentInfo.getCommand());
+        update(digest, deploymentInfo.getBuildpack());
+        update(digest, deploymentInfo.isNoRoute() ? null : Util.join(deploymentInfo.getRoutes(), ","));
+        for (Map.Entry<String, String> env : new TreeMap<String, String>(deploymentInfo.getEnvVars()).entrySet()) {
+            update(digest, env.getKey());
+            update(digest, String.valueOf(env.getValue()));
+        }
+        List<String> services = new ArrayList<String>(deploymentInfo.getServicesNames());
+        Collections.sort(services);
+        for (String service : services) {
+            update(digest, service);
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Returns the digest of the fingerprints of the application files.
+     */
+    public static String digest(ResourceIndex index) {
+        MessageDigest digest = newDigest();
+        // The index is sorted by path
+        for (Map.Entry<String, ResourceIndex.Resource> resource : index.getResources().entrySet()) {
+            update(digest, resource.getKey());
+            update(digest, resource.getValue().sha1);
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Returns the fingerprint of the last successful push, or null if there is none.
+     */
+    public static String load(File file) {
+        try {
+            return file.exists() ? FileUtils.readFileToString(file, "UTF-8").trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static void save(File file, String fingerprint) throws IOException {
+        FileUtils.writeStringToFile(file, fingerprint, "UTF-8");
+    }
+
+    /**
+     * Forgets the last successful push, before a push starts changing the app.
+     * A push that fails halfway leaves the app in neither version, so no fingerprint may match it.
+     */
+    public static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Values are separated by a zero byte, and null is distinct from the empty string.
+     */
+    private static void update(MessageDigest digest, String value) {
+        try {
+            if (value != null) {
+                digest.update((byte) 1);
+                digest.update(value.getBytes("UTF-8"));
+            }
+            digest.update((byte) 0);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
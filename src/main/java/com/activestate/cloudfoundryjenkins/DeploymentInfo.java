@@ -11,8 +11,11 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 public class DeploymentInfo {
@@ -27,9 +30,12 @@ public class DeploymentInfo {
     private String buildpack;
     private String command;
     private String domain;
+    private List<String> routes = new ArrayList<String>();
 
     private Map<String, String> envVars = new HashMap<String, String>();
     private List<String> servicesNames = new ArrayList<String>();
+    private List<CloudFoundryPushPublisher.Service> declaredServices =
+            new ArrayList<CloudFoundryPushPublisher.Service>();
 
     public DeploymentInfo(PrintStream logger, FilePath manifestFile, CloudFoundryPushPublisher.OptionalManifest optionalManifest,
                           String jenkinsBuildName, String defaultDomain)
@@ -38,27 +44,56 @@ public class DeploymentInfo {
         if (optionalManifest == null) {
             // Read manifest.yml
             ManifestReader manifestReader = new ManifestReader(manifestFile);
-            Map<String, Object> applicationInfo = manifestReader.getApplicationInfo(null);
-            readManifestFile(logger, applicationInfo, jenkinsBuildName, defaultDomain);
+            ManifestApplication application = manifestReader.getApplication(null);
+            readManifestFile(logger, application, jenkinsBuildName, defaultDomain);
         } else {
             // Read Jenkins configuration
             readOptionalJenkinsConfig(logger, optionalManifest, jenkinsBuildName, defaultDomain);
         }
     }
 
-    private void readManifestFile(PrintStream logger, Map<String, Object> manifestJson,
+    private DeploymentInfo(PrintStream logger, ManifestApplication application,
+                           String jenkinsBuildName, String defaultDomain) {
+        readManifestFile(logger, application, jenkinsBuildName, defaultDomain);
+    }
+
+    /**
+     * Reads the deployment info of every application of a manifest file.
+     */
+    public static List<DeploymentInfo> readManifest(PrintStream logger, FilePath manifestFile,
+                                                    String jenkinsBuildName, String defaultDomain)
+            throws IOException, ManifestParsingException, InterruptedException {
+        ManifestReader manifestReader = new ManifestReader(manifestFile);
+        List<DeploymentInfo> deploymentInfos = new ArrayList<DeploymentInfo>();
+        Set<String> appNames = new HashSet<String>();
+        for (ManifestApplication application : manifestReader.getApplications()) {
+            DeploymentInfo deploymentInfo = new DeploymentInfo(logger, application, jenkinsBuildName, defaultDomain);
+            if (!appNames.add(deploymentInfo.getAppName())) {
+                throw new ManifestParsingException(
+                        "Manifest file contains several apps named " + deploymentInfo.getAppName() + ".");
+            }
+            deploymentInfos.add(deploymentInfo);
+        }
+        return deploymentInfos;
+    }
+
+    private void readManifestFile(PrintStream logger, ManifestApplication application,
                                   String jenkinsBuildName, String defaultDomain) {
 
+        for (String warning : application.getWarnings()) {
+            logger.println(warning);
+        }
+
         // Important optional attributes, we should warn in case they are missing
 
-        appName = (String) manifestJson.get("name");
+        appName = application.getName();
         if (appName == null) {
             logger.println("WARNING: No application name. Using Jenkins build name: " + jenkinsBuildName);
             appName = jenkinsBuildName;
         }
 
         int memory = 0;
-        String memString = (String) manifestJson.get("memory");
+        String memString = application.getMemory();
         if (memString == null) {
             logger.println("WARNING: No manifest value for memory. Using default value: " + CloudFoundryPushPublisher.DescriptorImpl.DEFAULT_MEMORY);
             memory = CloudFoundryPushPublisher.DescriptorImpl.DEFAULT_MEMORY;
@@ -67,67 +102,85 @@ public class DeploymentInfo {
         }
         this.memory = memory;
 
-        hostname = (String) manifestJson.get("host");
-        if (hostname == null) {
+        hostname = application.getHost();
+        if (hostname == null && !application.getHosts().isEmpty()) {
+            hostname = application.getHosts().get(0);
+        }
+        if (hostname == null && application.getRoutes().isEmpty()) {
             logger.println("WARNING: No manifest value for hostname. Using app name: " + appName);
             hostname = appName;
         }
 
         // Non-important optional attributes, no need to warn
 
-        Integer instances = (Integer) manifestJson.get("instances");
+        Integer instances = application.getInstances();
         if (instances == null) {
             instances = CloudFoundryPushPublisher.DescriptorImpl.DEFAULT_INSTANCES;
         }
         this.instances = instances;
 
-        Integer timeout = (Integer) manifestJson.get("timeout");
+        Integer timeout = application.getTimeout();
         if (timeout == null) {
             timeout = CloudFoundryPushPublisher.DescriptorImpl.DEFAULT_TIMEOUT;
         }
         this.timeout = timeout;
 
-        Boolean noRoute = (Boolean) manifestJson.get("no-route");
+        Boolean noRoute = application.getNoRoute();
         if (noRoute == null) {
             noRoute = false;
         }
         this.noRoute = noRoute;
 
-        String domain = (String) manifestJson.get("domain");
+        String domain = application.getDomain();
+        if (domain == null && !application.getDomains().isEmpty()) {
+            domain = application.getDomains().get(0);
+        }
         if (domain == null) {
             domain = defaultDomain;
         }
         this.domain = domain;
 
-        String appPath = (String) manifestJson.get("path");
+        readRoutes(application);
+
+        String appPath = application.getPath();
         if (appPath == null) {
             appPath = ".";
         }
         this.appPath = appPath;
 
         // Optional attributes with no defaults, it's ok if those are null
-        this.buildpack = (String) manifestJson.get("buildpack");
-        this.command = (String) manifestJson.get("command");
-
-        // Env vars and services
-        try {
-            @SuppressWarnings("unchecked")
-            Map<String, String> envVarsSuppressed = (Map<String, String>) manifestJson.get("env");
-            if (envVarsSuppressed != null) {
-                this.envVars = envVarsSuppressed;
-            }
-        } catch (ClassCastException e) {
-            logger.println("WARNING: Could not parse env vars into a map. Ignoring env vars.");
-        }
+        this.buildpack = application.getBuildpack();
+        this.command = application.getCommand();
+
+        // Env vars and services, already checked when the manifest was parsed
+        this.envVars.putAll(application.getEnvVars());
+        this.servicesNames.addAll(application.getServicesNames());
+        this.declaredServices.addAll(application.getDeclaredServices());
+    }
 
-        try {
-            @SuppressWarnings("unchecked")
-            List<String> servicesSuppressed = (List<String>) manifestJson.get("services");
-            if (servicesSuppressed != null) {
-                this.servicesNames = servicesSuppressed;
+    /**
+     * Every host is mapped on every domain, unless the routes are listed one by one.
+     * The first route is the one of {@link #getHostname()} and {@link #getDomain()}.
+     * Listed routes have no hostname and domain: which part is the domain depends on the domains of the space,
+     * see {@link RouteMapper#resolve(String)}.
+     */
+    private void readRoutes(ManifestApplication application) {
+        if (!application.getRoutes().isEmpty()) {
+            this.routes.addAll(application.getRoutes());
+            this.hostname = null;
+            this.domain = null;
+            return;
+        }
+        Set<String> hosts = new LinkedHashSet<String>();
+        hosts.add(hostname);
+        hosts.addAll(application.getHosts());
+        Set<String> domains = new LinkedHashSet<String>();
+        domains.add(domain);
+        domains.addAll(application.getDomains());
+        for (String host : hosts) {
+            for (String domainName : domains) {
+                this.routes.add(host + "." + domainName);
             }
-        } catch (ClassCastException e) {
-            logger.println("WARNING: Could not parse services into a list. Ignoring services.");
         }
     }
 
@@ -167,6 +220,7 @@ public class DeploymentInfo {
         if (domain.equals("")) {
             domain = defaultDomain;
         }
+        this.routes.add(hostname + "." + domain);
 
         // These must be null, not just empty string
         this.buildpack = optionalManifest.buildpack;
@@ -205,6 +259,9 @@ public class DeploymentInfo {
         return memory;
     }
 
+    /**
+     * Returns the host of the main route, or null if the routes are listed one by one in the manifest.
+     */
     public String getHostname() {
         return hostname;
     }
@@ -233,10 +290,20 @@ public class DeploymentInfo {
         return command;
     }
 
+    /**
+     * Returns the domain of the main route, or null if the routes are listed one by one in the manifest.
+     */
     public String getDomain() {
         return domain;
     }
 
+    /**
+     * Returns all the routes of the app, like {@code www.example.com}. The first one is its main route.
+     */
+    public List<String> getRoutes() {
+        return routes;
+    }
+
     public Map<String, String> getEnvVars() {
         return envVars;
     }
@@ -245,4 +312,11 @@ public class DeploymentInfo {
         return servicesNames;
     }
 
+    /**
+     * Returns the services to create if they don't exist, as declared in the manifest file.
+     */
+    public List<CloudFoundryPushPublisher.Service> getDeclaredServices() {
+        return declaredServices;
+    }
+
 }
@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Controller-wide metrics of the pushes: outcomes, upload throughput, staging time, time until the instances
+ * are running, and Cloud Controller API calls and errors.
+ * <p>
+ * Recording only touches atomic counters, so it costs nothing noticeable on the push path. The metrics are
+ * exposed through JMX, and in the Prometheus text format by {@link DeploymentMetricsEndpoint}.
+ */
+public final class DeploymentMetrics implements DeploymentMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentMetrics.class.getName());
+
+    static final String OBJECT_NAME = "com.activestate.cloudfoundryjenkins:type=DeploymentMetrics";
+
+    private static final DeploymentMetrics INSTANCE = register(new DeploymentMetrics());
+
+    private static final Pattern GUID = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private final ConcurrentMap<String, AtomicLong> pushes = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> apiCalls = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> apiErrors = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final Histogram uploadThroughput = new Histogram(
+            64L << 10, 256L << 10, 1L << 20, 4L << 20, 16L << 20, 64L << 20);
+    private final Histogram stagingTime = new Histogram(
+            5000, 10000, 30000, 60000, 120000, 300000, 600000);
+    private final Histogram timeToRunning = new Histogram(
+            5000, 10000, 30000, 60000, 120000, 300000, 600000);
+
+    DeploymentMetrics() {
+    }
+
+    public static DeploymentMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static DeploymentMetrics register(DeploymentMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not register the Cloud Foundry deployment metrics MBean", e);
+        }
+        return metrics;
+    }
+
+    public void recordPush(String target, boolean success) {
+        increment(pushes, labels("target", target, "outcome", success ? "success" : "failure"));
+    }
+
+    public void recordUpload(long bytes, long durationNanos) {
+        if (durationNanos > 0) {
+            uploadThroughput.record(bytes * TimeUnit.SECONDS.toNanos(1) / durationNanos);
+        }
+    }
+
+    public void recordStaging(long durationNanos) {
+        stagingTime.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    }
+
+    public void recordTimeToRunning(long durationNanos) {
+        timeToRunning.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    }
+
+    /**
+     * Returns a client that counts the calls made through it, and their errors by exception type.
+     */
+    public CloudFoundryOperations instrument(final CloudFoundryOperations client, final String target) {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(client, args);
+                }
+                increment(apiCalls, labels("target", target, "method", method.getName()));
+                try {
+                    return method.invoke(client, args);
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    increment(apiErrors, labels("target", target, "type", cause.getClass().getSimpleName()));
+                    throw cause;
+                }
+            }
+        };
+        return (CloudFoundryOperations) Proxy.newProxyInstance(CloudFoundryOperations.class.getClassLoader(),
+                new Class<?>[]{CloudFoundryOperations.class}, handler);
+    }
+
+    /**
+     * Returns a request that is counted like the calls of an {@link #instrument instrumented client},
+     * for the requests made without the CF client. GUIDs are left out of the name, so that each kind
+     * of request has a single counter.
+     *
+     * @param name the request, like {@code PUT /v2/apps/<guid>/bits}
+     */
+    <T> RetryingClient.Request<T> instrument(final RetryingClient.Request<T> request, final String target,
+                                             String name) {
+        final String method = GUID.matcher(name).replaceAll(":guid");
+        return new RetryingClient.Request<T>() {
+            public T send() throws IOException, InterruptedException {
+                increment(apiCalls, labels("target", target, "method", method));
+                try {
+                    return request.send();
+                } catch (IOException e) {
+                    increment(apiErrors, labels("target", target, "type", e.getClass().getSimpleName()));
+                    throw e;
+                } catch (RuntimeException e) {
+                    increment(apiErrors, labels("target", target, "type", e.getClass().getSimpleName()));
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Formats Prometheus labels, which are also the keys of the counters.
+     */
+    static String labels(String... namesAndValues) {
+        StringBuilder labels = new StringBuilder("{");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            String value = String.valueOf(namesAndValues[i + 1]);
+            labels.append(namesAndValues[i]).append("=\"")
+                    .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format.
+     */
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        writeCounters(out, "cloudfoundry_pushes_total", "Pushes, by target and outcome.", pushes);
+        writeCounters(out, "cloudfoundry_api_calls_total",
+                "Cloud Controller API calls, by target and client method or request.", apiCalls);
+        writeCounters(out, "cloudfoundry_api_errors_total",
+                "Failed Cloud Controller API calls, by target and exception type.", apiErrors);
+        uploadThroughput.write(out, "cloudfoundry_upload_bytes_per_second",
+                "Throughput of the application bits uploads.", 1);
+        stagingTime.write(out, "cloudfoundry_staging_seconds",
+                "Time from the start request until the application is staged.", 1000);
+        timeToRunning.write(out, "cloudfoundry_time_to_running_seconds",
+                "Time from the start request until the application instances are running.", 1000);
+
+        String name = "cloudfoundry_circuit_open";
+        out.append("# HELP ").append(name).append(" Whether calls to the target fail fast, see CircuitBreaker.\n");
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        for (Map.Entry<String, CircuitBreaker.State> breaker : CircuitBreaker.getStates().entrySet()) {
+            out.append(name).append(labels("target", breaker.getKey())).append(' ')
+                    .append(breaker.getValue() == CircuitBreaker.State.CLOSED ? 0 : 1).append('\n');
+        }
+
+        CloudFoundryClientPool pool = CloudFoundryClientPool.getInstance();
+        writeGauge(out, "cloudfoundry_client_pool_size", "Logged in clients in the pool.", pool.getSize());
+        writeGauge(out, "cloudfoundry_client_pool_hits_total", "Pushes that reused a logged in client.",
+                pool.getHits());
+        writeGauge(out, "cloudfoundry_client_pool_misses_total", "Pushes that had to log in.", pool.getMisses());
+        return out.toString();
+    }
+
+    private static void writeCounters(StringBuilder out, String name, String help,
+                                      Map<String, AtomicLong> counters) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+            out.append(name).append(counter.getKey()).append(' ').append(counter.getValue().get()).append('\n');
+        }
+    }
+
+    private static void writeGauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(name.endsWith("_total") ? " counter\n" : " gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static long sum(Map<String, AtomicLong> counters, String labelFilter) {
+        long sum = 0;
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            if (labelFilter == null || counter.getKey().contains(labelFilter)) {
+                sum += counter.getValue().get();
+            }
+        }
+        return sum;
+    }
+
+    private static Map<String, Long> snapshot(Map<String, AtomicLong> counters) {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().get());
+        }
+        return snapshot;
+    }
+
+    public long getSuccessfulPushes() {
+        return sum(pushes, "outcome=\"success\"");
+    }
+
+    public long getFailedPushes() {
+        return sum(pushes, "outcome=\"failure\"");
+    }
+
+    public Map<String, Long> getPushes() {
+        return snapshot(pushes);
+    }
+
+    public long getApiCallCount() {
+        return sum(apiCalls, null);
+    }
+
+    public long getApiErrorCount() {
+        return sum(apiErrors, null);
+    }
+
+    public Map<String, Long> getApiErrors() {
+        return snapshot(apiErrors);
+    }
+
+    public double getMeanUploadBytesPerSecond() {
+        return uploadThroughput.getMean();
+    }
+
+    public double getMeanStagingSeconds() {
+        return stagingTime.getMean() / 1000;
+    }
+
+    public double getMeanTimeToRunningSeconds() {
+        return timeToRunning.getMean() / 1000;
+    }
+
+    /**
+     * A histogram with fixed buckets, recorded without locks.
+     */
+    static final class Histogram {
+
+        private final long[] upperBounds;
+        private final AtomicLongArray buckets;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        Histogram(long... upperBounds) {
+            this.upperBounds = upperBounds;
+            // The last bucket is +Inf
+            this.buckets = new AtomicLongArray(upperBounds.length + 1);
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            sum.addAndGet(value);
+            count.incrementAndGet();
+        }
+
+        double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        /**
+         * @param scale what the recorded values are divided by, to get the unit of the metric
+         */
+        void write(StringBuilder out, String name, String help, double scale) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                cumulative += buckets.get(i);
+                String upperBound = i < upperBounds.length ? String.valueOf(upperBounds[i] / scale) : "+Inf";
+                out.append(name).append("_bucket{le=\"").append(upperBound).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum ").append(sum.get() / scale).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Serves the {@link DeploymentMetrics} in the Prometheus text format, at {@code <jenkins>/cloudfoundry-metrics/}.
+ */
+@Extension
+public class DeploymentMetricsEndpoint implements RootAction {
+
+    public void doIndex(StaplerRequest request, StaplerResponse response) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write(DeploymentMetrics.getInstance().toPrometheusText());
+        writer.flush();
+    }
+
+    /**
+     * No link on the home page, this is meant for Prometheus.
+     */
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Cloud Foundry Metrics";
+    }
+
+    public String getUrlName() {
+        return "cloudfoundry-metrics";
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link DeploymentMetrics}.
+ */
+public interface DeploymentMetricsMXBean {
+
+    long getSuccessfulPushes();
+
+    long getFailedPushes();
+
+    /**
+     * Number of pushes, keyed by target and outcome.
+     */
+    Map<String, Long> getPushes();
+
+    long getApiCallCount();
+
+    long getApiErrorCount();
+
+    /**
+     * Number of failed Cloud Controller API calls, keyed by target and exception type.
+     */
+    Map<String, Long> getApiErrors();
+
+    double getMeanUploadBytesPerSecond();
+
+    double getMeanStagingSeconds();
+
+    double getMeanTimeToRunningSeconds();
+}
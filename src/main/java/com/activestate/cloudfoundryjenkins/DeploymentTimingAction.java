@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.model.Api;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each phase of a push took, for every application of the build.
+ * Durations are measured with {@link System#nanoTime()} and exported as JSON at
+ * {@code <build>/cloudfoundry-timings/api/json}.
+ * <p>
+ * Some phases run at the same time, like packaging and resource matching while the app is created,
+ * so the phases of an application can add up to more than the total.
+ */
+@ExportedBean
+public class DeploymentTimingAction implements RunAction2 {
+
+    public enum Phase {
+        QUEUE("Waiting for a slot"),
+        LOGIN("Login"),
+        SERVICES("Service creation"),
+        LOOKUP("App lookup"),
+        CREATE("Create/reset"),
+        CONFIGURE("Env/instances update"),
+        PACKAGING("Packaging"),
+        MATCH("Resource matching"),
+        UPLOAD("Upload"),
+        START("Staging and start"),
+        READINESS("Readiness"),
+        SCALE("Scale-out"),
+        ROUTES("Route mapping");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    static final String URL_NAME = "cloudfoundry-timings";
+
+    private final List<PhaseTiming> phases = new ArrayList<PhaseTiming>();
+    private final List<AppTiming> apps = new ArrayList<AppTiming>();
+    private long totalMillis;
+    private transient Run<?, ?> run;
+
+    /**
+     * Records a phase of the push of the whole build, like the login.
+     *
+     * @param startNanos the {@link System#nanoTime()} at the start of the phase
+     */
+    public synchronized void record(Phase phase, long startNanos) {
+        phases.add(new PhaseTiming(phase, elapsedMillis(startNanos)));
+    }
+
+    /**
+     * Records a phase of the push of an application.
+     *
+     * @param startNanos the {@link System#nanoTime()} at the start of the phase
+     */
+    public void record(String appName, Phase phase, long startNanos) {
+        record(appName, phase, startNanos, System.nanoTime());
+    }
+
+    /**
+     * Records a phase of the push of an application that ended before now.
+     *
+     * @param startNanos the {@link System#nanoTime()} at the start of the phase
+     * @param endNanos   the {@link System#nanoTime()} at its end
+     */
+    public synchronized void record(String appName, Phase phase, long startNanos, long endNanos) {
+        AppTiming app = null;
+        for (AppTiming candidate : apps) {
+            if (candidate.appName.equals(appName)) {
+                app = candidate;
+            }
+        }
+        if (app == null) {
+            app = new AppTiming(appName);
+            apps.add(app);
+        }
+        app.phases.add(new PhaseTiming(phase, TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos)));
+    }
+
+    /**
+     * Records the duration of the whole push.
+     */
+    public synchronized void recordTotal(long startNanos) {
+        totalMillis = elapsedMillis(startNanos);
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Phases of the push of the whole build.
+     */
+    @Exported
+    public synchronized List<PhaseTiming> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<PhaseTiming>(phases));
+    }
+
+    @Exported
+    public synchronized List<AppTiming> getApps() {
+        return Collections.unmodifiableList(new ArrayList<AppTiming>(apps));
+    }
+
+    @Exported
+    public synchronized long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * Returns how long a phase took, in milliseconds. Applications are pushed in parallel,
+     * so this is the longest time any application spent in it, plus the time spent in it for the whole build.
+     */
+    public synchronized long getPhaseMillis(Phase phase) {
+        long millis = sum(phases, phase);
+        long longestApp = 0;
+        for (AppTiming app : apps) {
+            longestApp = Math.max(longestApp, sum(app.phases, phase));
+        }
+        return millis + longestApp;
+    }
+
+    private static long sum(List<PhaseTiming> timings, Phase phase) {
+        long millis = 0;
+        for (PhaseTiming timing : timings) {
+            if (timing.phase == phase) {
+                millis += timing.millis;
+            }
+        }
+        return millis;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    public String getDisplayName() {
+        return "Cloud Foundry Push Timings";
+    }
+
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class AppTiming {
+
+        private final String appName;
+        private final List<PhaseTiming> phases = new ArrayList<PhaseTiming>();
+
+        AppTiming(String appName) {
+            this.appName = appName;
+        }
+
+        @Exported
+        public String getAppName() {
+            return appName;
+        }
+
+        @Exported
+        public List<PhaseTiming> getPhases() {
+            return phases;
+        }
+
+        @Exported
+        public long getTotalMillis() {
+            long total = 0;
+            for (PhaseTiming phase : phases) {
+                total += phase.millis;
+            }
+            return total;
+        }
+    }
+
+    @ExportedBean(defaultVisibility = 3)
+    public static class PhaseTiming {
+
+        private final Phase phase;
+        private final long millis;
+
+        PhaseTiming(Phase phase, long millis) {
+            this.phase = phase;
+            this.millis = millis;
+        }
+
+        @Exported
+        public Phase getPhase() {
+            return phase;
+        }
+
+        @Exported
+        public String getDisplayName() {
+            return phase.getDisplayName();
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+    }
+}
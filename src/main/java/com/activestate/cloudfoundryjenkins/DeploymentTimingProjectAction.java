@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.category.LineAndShapeRenderer;
+import org.jfree.data.category.CategoryDataset;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.util.Calendar;
+
+/**
+ * Trend of the push timings of the last builds of a job, shown on the job page.
+ * <p>
+ * Phases overlap, so each one is drawn as its own line next to the total of the push, rather than stacked.
+ */
+public class DeploymentTimingProjectAction implements Action {
+
+    /**
+     * Number of builds in the trend graph.
+     */
+    static final int MAX_BUILDS = 30;
+
+    private static final String TOTAL = "Total";
+
+    private final AbstractProject<?, ?> project;
+
+    public DeploymentTimingProjectAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * Returns the last build with push timings, or null if there is none.
+     */
+    public DeploymentTimingAction getLastTimings() {
+        for (AbstractBuild<?, ?> build = project.getLastBuild(); build != null; build = build.getPreviousBuild()) {
+            DeploymentTimingAction timings = build.getAction(DeploymentTimingAction.class);
+            if (timings != null) {
+                return timings;
+            }
+        }
+        return null;
+    }
+
+    public Graph getGraph() {
+        AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+        Calendar timestamp = lastBuild == null ? Calendar.getInstance() : lastBuild.getTimestamp();
+        return new Graph(timestamp, 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                return createChart(buildDataSet());
+            }
+        };
+    }
+
+    private CategoryDataset buildDataSet() {
+        DataSetBuilder<String, NumberOnlyBuildLabel> dataSet = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+        int count = 0;
+        for (AbstractBuild<?, ?> build = project.getLastBuild();
+             build != null && count < MAX_BUILDS; build = build.getPreviousBuild()) {
+            DeploymentTimingAction timings = build.getAction(DeploymentTimingAction.class);
+            if (timings == null) {
+                continue;
+            }
+            NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+            dataSet.add(timings.getTotalMillis() / 1000.0, TOTAL, label);
+            for (DeploymentTimingAction.Phase phase : DeploymentTimingAction.Phase.values()) {
+                dataSet.add(timings.getPhaseMillis(phase) / 1000.0, phase.getDisplayName(), label);
+            }
+            count++;
+        }
+        return dataSet.build();
+    }
+
+    private static JFreeChart createChart(CategoryDataset dataSet) {
+        JFreeChart chart = ChartFactory.createLineChart(null, null, "seconds", dataSet,
+                PlotOrientation.VERTICAL, true, true, false);
+        chart.setBackgroundPaint(Color.WHITE);
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setRangeGridlinePaint(Color.LIGHT_GRAY);
+        LineAndShapeRenderer renderer = (LineAndShapeRenderer) plot.getRenderer();
+        renderer.setBaseStroke(new BasicStroke(2.0f));
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+        plot.setDomainAxis(domainAxis);
+        return chart;
+    }
+
+    /**
+     * No link in the side panel, the trend graph is on the job page.
+     */
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Cloud Foundry Push Timings Trend";
+    }
+
+    public String getUrlName() {
+        return DeploymentTimingAction.URL_NAME;
+    }
+}
@@ -10,20 +10,44 @@ import org.cloudfoundry.client.lib.domain.ApplicationLog;
 
 public class JenkinsApplicationLogListener implements ApplicationLogListener {
 
-    private final BuildListener listener;
+    private final AsyncConsoleWriter writer;
+    private final ApplicationReadinessMonitor readinessMonitor;
 
     public JenkinsApplicationLogListener(BuildListener listener) {
-        this.listener = listener;
+        this(listener, null);
+    }
+
+    public JenkinsApplicationLogListener(BuildListener listener, ApplicationReadinessMonitor readinessMonitor) {
+        this.writer = new AsyncConsoleWriter(listener.getLogger());
+        this.readinessMonitor = readinessMonitor;
     }
 
     public void onMessage(ApplicationLog applicationLog) {
-        listener.getLogger().println(applicationLog.getMessage());
+        writer.println(applicationLog.getMessage());
+        if (readinessMonitor != null) {
+            readinessMonitor.onApplicationLog(applicationLog);
+        }
     }
 
     public void onComplete() {
+        writer.close();
+        if (readinessMonitor != null) {
+            readinessMonitor.onLogStreamClosed();
+        }
     }
 
     public void onError(Throwable throwable) {
-        listener.getLogger().println("ERROR: Could not retrieve staging logs via websocket");
+        writer.println("ERROR: Could not retrieve staging logs via websocket");
+        writer.close();
+        if (readinessMonitor != null) {
+            readinessMonitor.onLogStreamClosed();
+        }
+    }
+
+    /**
+     * Writes the remaining logs to the build console, for when the stream is cancelled before it completes.
+     */
+    public void close() {
+        writer.close();
     }
 }
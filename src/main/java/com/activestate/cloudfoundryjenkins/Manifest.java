@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.Util;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed manifest file: the list of its applications, indexed by name.
+ * <p>
+ * Manifests are immutable and cached by content hash, so builds pushing the same manifest again
+ * don't parse it again. Top-level attributes other than {@code applications} are global attributes,
+ * inherited by every application that doesn't define them itself. Environment variables and declared services
+ * are merged.
+ */
+public final class Manifest {
+
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, Manifest> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, Manifest>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Manifest> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private final List<ManifestApplication> applications;
+    private final Map<String, ManifestApplication> applicationsByName;
+
+    private Manifest(List<ManifestApplication> applications) {
+        this.applications = Collections.unmodifiableList(applications);
+        Map<String, ManifestApplication> byName = new HashMap<String, ManifestApplication>();
+        for (ManifestApplication application : applications) {
+            if (application.getName() != null && !byName.containsKey(application.getName())) {
+                byName.put(application.getName(), application);
+            }
+        }
+        this.applicationsByName = Collections.unmodifiableMap(byName);
+    }
+
+    /**
+     * Returns the manifest with the given content, parsing it only if it isn't in the cache yet.
+     *
+     * @param content the content of the manifest file
+     * @param source  the location of the manifest file, for error messages
+     */
+    public static Manifest parse(byte[] content, String source) throws ManifestParsingException {
+        String key = sha1(content);
+        Manifest manifest = CACHE.get(key);
+        if (manifest == null) {
+            manifest = compile(content, source);
+            CACHE.put(key, manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Parses a manifest, without going through the cache. Package-private for the benchmarks.
+     */
+    static Manifest compile(byte[] content, String source) throws ManifestParsingException {
+        Object parsedYaml;
+        try {
+            parsedYaml = new Yaml().load(new ByteArrayInputStream(content));
+        } catch (YAMLException e) {
+            throw new ManifestParsingException("Malformed YAML file: " + source);
+        }
+        if (!(parsedYaml instanceof Map)) {
+            throw new ManifestParsingException("Could not parse the manifest file into a map: " + source);
+        }
+        Map<?, ?> parsedYamlMap = (Map<?, ?>) parsedYaml;
+
+        Object applicationList = parsedYamlMap.get("applications");
+        if (!(applicationList instanceof List)) {
+            throw new ManifestParsingException("Manifest file does not start with an 'applications' block.");
+        }
+
+        Map<String, Object> globalAttributes = new LinkedHashMap<String, Object>();
+        for (Map.Entry<?, ?> entry : parsedYamlMap.entrySet()) {
+            String key = String.valueOf(entry.getKey());
+            if (!key.equals("applications") && !key.equals("inherit")) {
+                globalAttributes.put(key, entry.getValue());
+            }
+        }
+
+        List<ManifestApplication> applications = new ArrayList<ManifestApplication>();
+        for (Object application : (List<?>) applicationList) {
+            if (application != null && !(application instanceof Map)) {
+                throw new ManifestParsingException("Could not parse an application of the manifest file into a map: "
+                        + source);
+            }
+            applications.add(new ManifestApplication(inherit(globalAttributes, (Map<?, ?>) application)));
+        }
+        return new Manifest(applications);
+    }
+
+    private static Map<String, Object> inherit(Map<String, Object> globalAttributes, Map<?, ?> application) {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>(globalAttributes);
+        if (application == null) {
+            return attributes;
+        }
+        for (Map.Entry<?, ?> entry : application.entrySet()) {
+            String key = String.valueOf(entry.getKey());
+            Object globalValue = attributes.get(key);
+            if ((key.equals("env") || key.equals("declared-services"))
+                    && globalValue instanceof Map && entry.getValue() instanceof Map) {
+                Map<Object, Object> merged = new LinkedHashMap<Object, Object>((Map<?, ?>) globalValue);
+                merged.putAll((Map<?, ?>) entry.getValue());
+                attributes.put(key, merged);
+            } else {
+                attributes.put(key, entry.getValue());
+            }
+        }
+        return attributes;
+    }
+
+    private static String sha1(byte[] content) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-1").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public List<ManifestApplication> getApplications() {
+        return applications;
+    }
+
+    /**
+     * Returns the application with the given name, or null if there is none.
+     */
+    public ManifestApplication getApplication(String name) {
+        return applicationsByName.get(name);
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The attributes of one application of a manifest file, global attributes included, with their proper types.
+ * Instances are immutable and shared between the builds using the same manifest.
+ */
+public final class ManifestApplication {
+
+    private final Map<String, Object> attributes;
+    private final List<String> warnings = new ArrayList<String>();
+
+    private final String name;
+    private final String memory;
+    private final String host;
+    private final List<String> hosts;
+    private final Integer instances;
+    private final Integer timeout;
+    private final Boolean noRoute;
+    private final String domain;
+    private final List<String> domains;
+    private final List<String> routes;
+    private final String path;
+    private final String buildpack;
+    private final String command;
+    private final Map<String, String> envVars;
+    private final List<String> servicesNames;
+    private final List<CloudFoundryPushPublisher.Service> declaredServices;
+
+    /**
+     * @param attributes the attributes of the application, already merged with the global ones
+     */
+    ManifestApplication(Map<String, Object> attributes) {
+        this.attributes = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(attributes));
+        this.name = getString("name");
+        this.memory = getString("memory");
+        this.host = getString("host");
+        this.hosts = readStringList("hosts");
+        this.instances = getInteger("instances");
+        this.timeout = getInteger("timeout");
+        this.noRoute = getBoolean("no-route");
+        this.domain = getString("domain");
+        this.domains = readStringList("domains");
+        this.routes = readRoutes();
+        this.path = getString("path");
+        this.buildpack = getString("buildpack");
+        this.command = getString("command");
+        this.envVars = readEnvVars();
+        this.servicesNames = readStringList("services");
+        this.declaredServices = readDeclaredServices();
+    }
+
+    private String getString(String key) {
+        Object value = attributes.get(key);
+        return value == null ? null : String.valueOf(value);
+    }
+
+    private Integer getInteger(String key) {
+        Object value = attributes.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.valueOf(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            warnings.add("WARNING: Could not parse " + key + " into a number. Ignoring " + key + ".");
+            return null;
+        }
+    }
+
+    private Boolean getBoolean(String key) {
+        Object value = attributes.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return Boolean.valueOf(String.valueOf(value).trim());
+    }
+
+    private Map<String, String> readEnvVars() {
+        Object value = attributes.get("env");
+        if (value == null) {
+            return Collections.emptyMap();
+        }
+        if (!(value instanceof Map)) {
+            warnings.add("WARNING: Could not parse env vars into a map. Ignoring env vars.");
+            return Collections.emptyMap();
+        }
+        Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            result.put(String.valueOf(entry.getKey()),
+                    entry.getValue() == null ? "" : String.valueOf(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private List<String> readStringList(String key) {
+        Object value = attributes.get(key);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (!(value instanceof List)) {
+            warnings.add("WARNING: Could not parse " + key + " into a list. Ignoring " + key + ".");
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>();
+        for (Object item : (List<?>) value) {
+            result.add(String.valueOf(item));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Reads the routes, without scheme, from a list of maps:
+     * <pre>
+     * routes:
+     * - route: www.example.com
+     * - route: example.com
+     * </pre>
+     */
+    private List<String> readRoutes() {
+        Object value = attributes.get("routes");
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (!(value instanceof List)) {
+            warnings.add("WARNING: Could not parse routes into a list. Ignoring routes.");
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>();
+        for (Object item : (List<?>) value) {
+            Object route = item instanceof Map ? ((Map<?, ?>) item).get("route") : null;
+            if (route == null) {
+                warnings.add("WARNING: Could not parse route " + item + ". Ignoring it.");
+            } else if (String.valueOf(route).contains("/") || String.valueOf(route).contains(":")) {
+                warnings.add("WARNING: Routes with a path or a port are not supported. Ignoring " + route + ".");
+            } else {
+                result.add(String.valueOf(route));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Reads the services to create if they don't exist, keyed by name:
+     * <pre>
+     * declared-services:
+     *   mysql_service1:
+     *     label: mysql
+     *     plan: 100mb
+     * </pre>
+     */
+    private List<CloudFoundryPushPublisher.Service> readDeclaredServices() {
+        Object value = attributes.get("declared-services");
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (!(value instanceof Map)) {
+            warnings.add("WARNING: Could not parse declared-services into a map. Ignoring declared-services.");
+            return Collections.emptyList();
+        }
+        List<CloudFoundryPushPublisher.Service> result = new ArrayList<CloudFoundryPushPublisher.Service>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            String serviceName = String.valueOf(entry.getKey());
+            Object service = entry.getValue();
+            Object label = service instanceof Map ? ((Map<?, ?>) service).get("label") : null;
+            Object plan = service instanceof Map ? ((Map<?, ?>) service).get("plan") : null;
+            if (label == null || plan == null) {
+                warnings.add("WARNING: Declared service " + serviceName + " needs a label and a plan. Ignoring it.");
+                continue;
+            }
+            result.add(new CloudFoundryPushPublisher.Service(serviceName, String.valueOf(label),
+                    String.valueOf(plan)));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the raw attributes of the application, global attributes included.
+     */
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Returns the warnings about attributes that could not be read, and were ignored.
+     */
+    public List<String> getWarnings() {
+        return Collections.unmodifiableList(warnings);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMemory() {
+        return memory;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    public Integer getInstances() {
+        return instances;
+    }
+
+    public Integer getTimeout() {
+        return timeout;
+    }
+
+    public Boolean getNoRoute() {
+        return noRoute;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public List<String> getDomains() {
+        return domains;
+    }
+
+    /**
+     * Returns the routes of the {@code routes} attribute, like {@code www.example.com}.
+     */
+    public List<String> getRoutes() {
+        return routes;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getBuildpack() {
+        return buildpack;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public Map<String, String> getEnvVars() {
+        return envVars;
+    }
+
+    public List<String> getServicesNames() {
+        return servicesNames;
+    }
+
+    public List<CloudFoundryPushPublisher.Service> getDeclaredServices() {
+        return declaredServices;
+    }
+}
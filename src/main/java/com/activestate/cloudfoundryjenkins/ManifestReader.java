@@ -5,14 +5,11 @@
 package com.activestate.cloudfoundryjenkins;
 
 import hudson.FilePath;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.scanner.ScannerException;
+import org.apache.commons.io.IOUtils;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -20,11 +17,11 @@ public class ManifestReader {
 
 
     private final FilePath manifestFile;
-    private List<Map<String, Object>> applicationList;
+    private final Manifest manifest;
 
     public ManifestReader(FilePath manifestFile) throws ManifestParsingException, IOException {
         this.manifestFile = manifestFile;
-        this.applicationList = parseManifest();
+        this.manifest = parseManifest();
     }
 
     /**
@@ -35,12 +32,7 @@ public class ManifestReader {
      * @return the deployment info
      */
     public Map<String, Object> getApplicationInfo(String appName) throws ManifestParsingException {
-        Map<String, Object> result = getApplicationMap(appName);
-        if (result == null) {
-            result = new HashMap<String, Object>();
-        }
-        return result;
-        // TODO: get global map and combine both global and app map
+        return getApplication(appName).getAttributes();
     }
 
     /**
@@ -49,58 +41,59 @@ public class ManifestReader {
      * @return the deployment info
      */
     public Map<String, Object> getApplicationInfo() throws ManifestParsingException {
-        return getApplicationMap(null);
+        return getApplicationInfo(null);
+    }
+
+    /**
+     * Returns the deployment info of every app of the manifest file, in the order they are declared.
+     *
+     * @return the deployment info of each app
+     */
+    public List<Map<String, Object>> getApplicationInfos() throws ManifestParsingException {
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        for (ManifestApplication application : getApplications()) {
+            result.add(application.getAttributes());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the typed description of every app of the manifest file, in the order they are declared.
+     */
+    public List<ManifestApplication> getApplications() throws ManifestParsingException {
+        if (manifest.getApplications().isEmpty()) {
+            throw new ManifestParsingException("Manifest file does not contain any application.");
+        }
+        return manifest.getApplications();
     }
 
     /**
-     * Returns the Map of exclusive deployment info of an app, given its name.
+     * Returns the typed description of an app, given its name.
      * If no name given (null), will use the first app.
      */
-    private Map<String, Object> getApplicationMap(String appName) throws ManifestParsingException {
+    public ManifestApplication getApplication(String appName) throws ManifestParsingException {
         // With no parameter, return the first application.
         if (appName == null) {
-            return applicationList.get(0);
-        } else {
-            for (Map<String, Object> app : applicationList) {
-                String name = (String) app.get("name");
-                if (name != null && name.equals(appName)) {
-                    return app;
-                }
-            }
+            return getApplications().get(0);
+        }
+        ManifestApplication application = manifest.getApplication(appName);
+        if (application == null) {
             throw new ManifestParsingException("Manifest file does not contain an app named " + appName + ".");
         }
+        return application;
     }
 
-    // TODO: getGlobalMap()
-
     /**
-     * Returns the list of maps describing the applications.
+     * Reads the manifest file, which is only parsed if its content is not already in the cache.
      */
-    private List<Map<String, Object>> parseManifest()
-            throws IOException, ManifestParsingException {
+    private Manifest parseManifest() throws IOException, ManifestParsingException {
         InputStream inputStream = manifestFile.read();
-        Yaml yaml = new Yaml();
-        Object parsedYaml;
-        try {
-            parsedYaml = yaml.load(inputStream);
-        } catch (ScannerException e) {
-            throw new ManifestParsingException("Malformed YAML file: " + manifestFile.getRemote());
-        }
-        Map<String, List<Map<String, Object>>> parsedYamlMap;
+        byte[] content;
         try {
-            @SuppressWarnings("unchecked")
-            Map<String, List<Map<String, Object>>> parsedYamlMapSuppressed =
-                    (Map<String, List<Map<String, Object>>>) parsedYaml;
-            parsedYamlMap = parsedYamlMapSuppressed;
-        } catch (ClassCastException e) {
-            throw new ManifestParsingException(
-                    "Could not parse the manifest file into a map: " + manifestFile.getRemote());
-        }
-
-        List<Map<String, Object>> applicationList = parsedYamlMap.get("applications");
-        if (applicationList == null) {
-            throw new ManifestParsingException("Manifest file does not start with an 'applications' block.");
+            content = IOUtils.toByteArray(inputStream);
+        } finally {
+            inputStream.close();
         }
-        return applicationList;
+        return Manifest.parse(content, manifestFile.getRemote());
     }
 }
@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes each line to a shared console as soon as it is complete, prefixed by the name of its application.
+ * <p>
+ * Applications pushed in parallel log to the same console. Whole lines are written while holding the console lock,
+ * so the lines of different applications interleave but are never mixed up.
+ */
+public class PrefixedLineOutputStream extends LineTransformationOutputStream {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final PrintStream out;
+    private final byte[] prefix;
+
+    public PrefixedLineOutputStream(PrintStream out, String appName) {
+        this.out = out;
+        this.prefix = ("[" + appName + "] ").getBytes(UTF8);
+    }
+
+    /**
+     * Also called on close for the last line, which may not end with a line separator.
+     */
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        synchronized (out) {
+            out.write(prefix);
+            out.write(b, 0, len);
+            if (len == 0 || b[len - 1] != '\n') {
+                out.println();
+            }
+            out.flush();
+        }
+    }
+}
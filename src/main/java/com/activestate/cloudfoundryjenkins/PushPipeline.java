@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of a push, each running as soon as the steps it depends on are done.
+ * <p>
+ * Packaging the application doesn't need the Cloud Controller, and the Cloud Controller doesn't need the package
+ * until the upload, so a push takes as long as its longest chain of steps instead of the sum of all of them.
+ * A step whose dependency failed doesn't run, and fails with the same exception as soon as the dependency does.
+ * Closing the pipeline cancels the steps that are not done yet.
+ */
+final class PushPipeline {
+
+    /**
+     * How long closing waits for cancelled steps to give up.
+     */
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory());
+    private final List<Step<?>> steps = new ArrayList<Step<?>>();
+
+    /**
+     * Runs a step once its dependencies are done.
+     *
+     * @param name the name of the step, for the failures of the steps cancelled before they were done
+     */
+    synchronized <T> Step<T> submit(String name, final Callable<T> body, final Step<?>... dependencies) {
+        final Step<T> step = new Step<T>(name);
+        for (Step<?> dependency : dependencies) {
+            dependency.addDependent(step);
+        }
+        steps.add(step);
+        step.future = executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    for (Step<?> dependency : dependencies) {
+                        dependency.get();
+                    }
+                    step.complete(body.call());
+                } catch (Throwable e) {
+                    step.fail(e);
+                }
+            }
+        });
+        return step;
+    }
+
+    /**
+     * Cancels the steps that are not done, and waits a little for those already running to stop.
+     */
+    synchronized void close() {
+        for (Step<?> step : steps) {
+            step.fail(new InterruptedException("The " + step.name + " step was cancelled."));
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A step of the pipeline, and eventually its outcome.
+     */
+    static final class Step<T> {
+
+        private final String name;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final List<Step<?>> dependents = new ArrayList<Step<?>>();
+        private volatile Future<?> future;
+        private T result;
+        private Throwable failure;
+
+        private Step(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Waits for the step, and returns its result or throws its failure.
+         */
+        T get() throws IOException, InterruptedException {
+            done.await();
+            synchronized (this) {
+                if (failure == null) {
+                    return result;
+                }
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                if (failure instanceof InterruptedException) {
+                    throw (InterruptedException) failure;
+                }
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                throw new IOException("The " + name + " step failed: " + failure, failure);
+            }
+        }
+
+        private synchronized void addDependent(Step<?> dependent) {
+            if (failure != null) {
+                dependent.fail(failure);
+            } else {
+                dependents.add(dependent);
+            }
+        }
+
+        private synchronized void complete(T result) {
+            if (done.getCount() > 0) {
+                this.result = result;
+                done.countDown();
+            }
+        }
+
+        /**
+         * Fails the step and all the steps depending on it, unless it is already done.
+         */
+        private void fail(Throwable e) {
+            List<Step<?>> toFail;
+            synchronized (this) {
+                if (done.getCount() == 0) {
+                    return;
+                }
+                failure = e;
+                done.countDown();
+                toFail = new ArrayList<Step<?>>(dependents);
+            }
+            Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(true);
+            }
+            for (Step<?> dependent : toFail) {
+                dependent.fail(e);
+            }
+        }
+    }
+}
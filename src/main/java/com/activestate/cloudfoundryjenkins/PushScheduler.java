@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller-wide limit on the number of concurrent pushes to a target, and optionally to an organization and space.
+ * <p>
+ * When many jobs push to the same Cloud Controller at once, it rate-limits them and staging backs up, so every push
+ * gets slower. Builds over the limit wait for a slot. Waiting builds are served fairly across jobs: the next slot
+ * goes to the job with the fewest pushes running on the target, then to the build that has been waiting longest.
+ * A build holds a single slot, whatever the number of applications it pushes.
+ */
+public final class PushScheduler {
+
+    private static final PushScheduler INSTANCE = new PushScheduler();
+
+    private final List<Ticket> waiting = new ArrayList<Ticket>();
+    private final List<Ticket> running = new ArrayList<Ticket>();
+    private long sequence;
+
+    PushScheduler() {
+    }
+
+    public static PushScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Waits for a push slot, logging the queue position whenever it changes.
+     *
+     * @param space        the organization and space, only limited if {@code maxPerSpace} is positive
+     * @param maxPerTarget the maximum number of concurrent pushes to the target, or 0 for no limit
+     * @param maxPerSpace  the maximum number of concurrent pushes to the space, or 0 for no limit
+     * @return the slot, to be given back with {@link #release(Ticket)}
+     */
+    public Ticket acquire(String target, String space, String jobName, String buildName,
+                          int maxPerTarget, int maxPerSpace, PrintStream logger) throws InterruptedException {
+        Ticket ticket;
+        synchronized (this) {
+            ticket = new Ticket(sequence++, target, space, jobName, buildName, maxPerTarget, maxPerSpace);
+            waiting.add(ticket);
+            int lastPosition = 0;
+            try {
+                while (!isNext(ticket)) {
+                    int position = getPosition(ticket);
+                    ticket.position = position;
+                    if (position != lastPosition) {
+                        logger.println("Waiting for a push slot on " + target + ", position " + position
+                                + " in the queue.");
+                        lastPosition = position;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                waiting.remove(ticket);
+                notifyAll();
+                throw e;
+            }
+            waiting.remove(ticket);
+            ticket.position = 0;
+            ticket.started = System.currentTimeMillis();
+            running.add(ticket);
+            // Whoever was behind this ticket may be next now
+            notifyAll();
+        }
+        long waitSeconds = ticket.getWaitSeconds();
+        if (waitSeconds > 0) {
+            logger.println("Got a push slot on " + target + " after waiting " + waitSeconds + " s.");
+        }
+        return ticket;
+    }
+
+    public synchronized void release(Ticket ticket) {
+        if (running.remove(ticket)) {
+            notifyAll();
+        }
+    }
+
+    public synchronized List<Ticket> getRunning() {
+        return Collections.unmodifiableList(new ArrayList<Ticket>(running));
+    }
+
+    /**
+     * Returns the waiting pushes, in the order they will get a slot, for each target.
+     */
+    public synchronized List<Ticket> getWaiting() {
+        List<Ticket> ordered = new ArrayList<Ticket>(waiting);
+        for (Ticket ticket : waiting) {
+            ticket.position = getPosition(ticket);
+        }
+        Collections.sort(ordered, new Comparator<Ticket>() {
+            public int compare(Ticket a, Ticket b) {
+                int byTarget = a.target.compareTo(b.target);
+                return byTarget != 0 ? byTarget : a.position - b.position;
+            }
+        });
+        return Collections.unmodifiableList(ordered);
+    }
+
+    public synchronized boolean isIdle() {
+        return running.isEmpty() && waiting.isEmpty();
+    }
+
+    /**
+     * Whether the ticket has room, and no other ticket with room should go before it.
+     */
+    private boolean isNext(Ticket ticket) {
+        if (!hasRoom(ticket)) {
+            return false;
+        }
+        for (Ticket other : waiting) {
+            if (other != ticket && other.target.equals(ticket.target) && goesBefore(other, ticket)
+                    && hasRoom(other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The 1-based position of the ticket in the queue of its target.
+     */
+    private int getPosition(Ticket ticket) {
+        int position = 1;
+        for (Ticket other : waiting) {
+            if (other != ticket && other.target.equals(ticket.target) && goesBefore(other, ticket)) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    private boolean goesBefore(Ticket a, Ticket b) {
+        int runningA = countRunning(a.target, null, a.jobName);
+        int runningB = countRunning(b.target, null, b.jobName);
+        return runningA != runningB ? runningA < runningB : a.sequence < b.sequence;
+    }
+
+    private boolean hasRoom(Ticket ticket) {
+        if (ticket.maxPerTarget > 0 && countRunning(ticket.target, null, null) >= ticket.maxPerTarget) {
+            return false;
+        }
+        return ticket.maxPerSpace <= 0 || countRunning(ticket.target, ticket.space, null) < ticket.maxPerSpace;
+    }
+
+    /**
+     * @param space   null to count all the spaces of the target
+     * @param jobName null to count all the jobs
+     */
+    private int countRunning(String target, String space, String jobName) {
+        int count = 0;
+        for (Ticket ticket : running) {
+            if (ticket.target.equals(target) && (space == null || ticket.space.equals(space))
+                    && (jobName == null || ticket.jobName.equals(jobName))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A push waiting for a slot, or holding one.
+     */
+    public static final class Ticket {
+
+        private final long sequence;
+        private final String target;
+        private final String space;
+        private final String jobName;
+        private final String buildName;
+        private final int maxPerTarget;
+        private final int maxPerSpace;
+        private final long queued = System.currentTimeMillis();
+        private volatile long started;
+        /**
+         * Only written while holding the scheduler lock, read by the views without it.
+         */
+        private volatile int position;
+
+        Ticket(long sequence, String target, String space, String jobName, String buildName,
+               int maxPerTarget, int maxPerSpace) {
+            this.sequence = sequence;
+            this.target = target;
+            this.space = space;
+            this.jobName = jobName;
+            this.buildName = buildName;
+            this.maxPerTarget = maxPerTarget;
+            this.maxPerSpace = maxPerSpace;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public String getSpace() {
+            return space;
+        }
+
+        public String getJobName() {
+            return jobName;
+        }
+
+        public String getBuildName() {
+            return buildName;
+        }
+
+        /**
+         * The position in the queue of the target, as of the last change in the queue seen by the push
+         * or {@link PushScheduler#getWaiting()}, or 0 once the push has its slot.
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * How long the push waited for its slot, or has been waiting so far.
+         */
+        public long getWaitMillis() {
+            long started = this.started;
+            return (started != 0 ? started : System.currentTimeMillis()) - queued;
+        }
+
+        /**
+         * How long the push has been running, or 0 if it is still waiting.
+         */
+        public long getRunningMillis() {
+            long started = this.started;
+            return started != 0 ? System.currentTimeMillis() - started : 0;
+        }
+
+        /**
+         * {@link #getWaitMillis()} in whole seconds, as shown in the views.
+         */
+        public long getWaitSeconds() {
+            return TimeUnit.MILLISECONDS.toSeconds(getWaitMillis());
+        }
+
+        /**
+         * {@link #getRunningMillis()} in whole seconds, as shown in the views.
+         */
+        public long getRunningSeconds() {
+            return TimeUnit.MILLISECONDS.toSeconds(getRunningMillis());
+        }
+    }
+}
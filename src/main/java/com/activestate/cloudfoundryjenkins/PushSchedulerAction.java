@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+import java.util.List;
+
+/**
+ * Shows the pushes holding or waiting for a slot of the {@link PushScheduler},
+ * at {@code <jenkins>/cloudfoundry-pushes/}.
+ */
+@Extension
+public class PushSchedulerAction implements RootAction {
+
+    public List<PushScheduler.Ticket> getRunning() {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        return PushScheduler.getInstance().getRunning();
+    }
+
+    public List<PushScheduler.Ticket> getWaiting() {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        return PushScheduler.getInstance().getWaiting();
+    }
+
+    /**
+     * Only linked from the home page while pushes are running or waiting.
+     */
+    public String getIconFileName() {
+        return PushScheduler.getInstance().isIdle() ? null : "clock.png";
+    }
+
+    public String getDisplayName() {
+        return "Cloud Foundry Pushes";
+    }
+
+    public String getUrlName() {
+        return "cloudfoundry-pushes";
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SHA-1 fingerprints of the files of an application directory, keyed by their path relative to that directory.
+ * The size and modification time are kept along with the digest, so that unchanged files don't need
+ * to be hashed again on the next push.
+ */
+public class ResourceIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final String HEADER = "# cloudfoundry-resource-index v1";
+    private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+    private final Map<String, Resource> resources;
+
+    public ResourceIndex() {
+        this.resources = new TreeMap<String, Resource>();
+    }
+
+    public ResourceIndex(Map<String, Resource> resources) {
+        this.resources = new TreeMap<String, Resource>(resources);
+    }
+
+    public Resource get(String path) {
+        return resources.get(path);
+    }
+
+    public Map<String, Resource> getResources() {
+        return Collections.unmodifiableMap(resources);
+    }
+
+    public int size() {
+        return resources.size();
+    }
+
+    /**
+     * Reads an index previously written with {@link #save(File)}.
+     * A missing or unreadable file gives an empty index, since it only means everything gets hashed again.
+     */
+    public static ResourceIndex load(File file) {
+        ResourceIndex index = new ResourceIndex();
+        if (!file.isFile()) {
+            return index;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return index;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length != 4) {
+                        return new ResourceIndex();
+                    }
+                    index.resources.put(fields[3],
+                            new Resource(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return new ResourceIndex();
+        } catch (NumberFormatException e) {
+            return new ResourceIndex();
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index to a file, replacing it atomically when the platform allows it.
+     * Each writer has its own temporary file, so concurrent builds of the same job never mix their content.
+     */
+    public void save(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        boolean saved = false;
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Map.Entry<String, Resource> entry : resources.entrySet()) {
+                    Resource resource = entry.getValue();
+                    writer.write(resource.sha1 + "\t" + resource.size + "\t" + resource.lastModified + "\t"
+                            + entry.getKey() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            // Where rename doesn't replace an existing file, deleting it first must not race with another writer
+            synchronized (getLock(file)) {
+                if (!tmp.renameTo(file)) {
+                    if (!file.delete() || !tmp.renameTo(file)) {
+                        throw new IOException("Could not write " + file);
+                    }
+                }
+            }
+            saved = true;
+        } finally {
+            if (!saved) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static Object getLock(File file) {
+        String key = file.getAbsolutePath();
+        Object lock = LOCKS.get(key);
+        if (lock == null) {
+            Object created = new Object();
+            lock = LOCKS.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    public static class Resource implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public final long size;
+        public final long lastModified;
+        public final String sha1;
+
+        public Resource(long size, long lastModified, String sha1) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+        }
+
+        public boolean isUnchanged(File file) {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+}
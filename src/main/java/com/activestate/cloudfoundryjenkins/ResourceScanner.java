@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the {@link ResourceIndex} of an application directory, on the node where the directory lives.
+ * Files whose size and modification time match the previous index keep their digest,
+ * the others are hashed in parallel on all the cores of the node.
+ */
+public class ResourceScanner implements FilePath.FileCallable<ResourceIndex> {
+
+    private static final long serialVersionUID = 1L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ResourceIndex previous;
+
+    public ResourceScanner(ResourceIndex previous) {
+        this.previous = previous;
+    }
+
+    public ResourceIndex invoke(File appDir, VirtualChannel channel) throws IOException, InterruptedException {
+        Map<String, ResourceIndex.Resource> resources = new HashMap<String, ResourceIndex.Resource>();
+        Map<String, File> toHash = new HashMap<String, File>();
+        Set<String> parents = new HashSet<String>();
+        parents.add(appDir.getCanonicalPath());
+        collect(appDir, "", parents, resources, toHash);
+
+        if (!toHash.isEmpty()) {
+            int threads = Math.min(toHash.size(), Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                Map<String, Future<ResourceIndex.Resource>> futures =
+                        new HashMap<String, Future<ResourceIndex.Resource>>();
+                for (Map.Entry<String, File> entry : toHash.entrySet()) {
+                    futures.put(entry.getKey(), executor.submit(new HashTask(entry.getValue())));
+                }
+                for (Map.Entry<String, Future<ResourceIndex.Resource>> entry : futures.entrySet()) {
+                    resources.put(entry.getKey(), entry.getValue().get());
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Could not hash application files: " + cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        return new ResourceIndex(resources);
+    }
+
+    /**
+     * @param parents the canonical paths of the directory and its parents, links to them are not followed
+     */
+    private void collect(File dir, String prefix, Set<String> parents, Map<String, ResourceIndex.Resource> resources,
+                         Map<String, File> toHash) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException("Could not list directory: " + dir.getAbsolutePath());
+        }
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                String canonicalPath = child.getCanonicalPath();
+                if (parents.add(canonicalPath)) {
+                    collect(child, path + "/", parents, resources, toHash);
+                    parents.remove(canonicalPath);
+                }
+            } else {
+                ResourceIndex.Resource known = previous == null ? null : previous.get(path);
+                if (known != null && known.isUnchanged(child)) {
+                    resources.put(path, known);
+                } else {
+                    toHash.put(path, child);
+                }
+            }
+        }
+    }
+
+    private static class HashTask implements Callable<ResourceIndex.Resource> {
+
+        private final File file;
+
+        HashTask(File file) {
+            this.file = file;
+        }
+
+        public ResourceIndex.Resource call() throws IOException {
+            // Read the metadata first: if the file changes while hashing, it will simply be hashed again next time
+            long size = file.length();
+            long lastModified = file.lastModified();
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-1 is not available: " + e.getMessage());
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            InputStream in = new FileInputStream(file);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            return new ResourceIndex.Resource(size, lastModified, Util.toHexString(digest.digest()));
+        }
+    }
+}
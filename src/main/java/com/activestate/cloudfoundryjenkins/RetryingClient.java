@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.org.springframework.web.client.ResourceAccessException;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retries the idempotent calls of a client that fail with a transient error, and protects the target
+ * with its {@link CircuitBreaker}.
+ * <p>
+ * Transient errors are I/O errors, server errors and rate limiting. Lookups and updates are retried with
+ * a jittered exponential backoff, so that builds failing at the same time don't retry at the same time.
+ * Calls that create something, upload or start an application are never retried, since they may have
+ * succeeded anyway.
+ * <p>
+ * The plain HTTP requests made outside of the client, see {@link #send}, go through the same breaker and policy.
+ */
+final class RetryingClient implements InvocationHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(RetryingClient.class.getName());
+
+    static final int MAX_ATTEMPTS = 4;
+    static final long BASE_DELAY = 500;
+    static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(10);
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final CloudFoundryOperations client;
+    private final CircuitBreaker breaker;
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    RetryingClient(CloudFoundryOperations client, CircuitBreaker breaker, int maxAttempts, long baseDelay,
+                   long maxDelay) {
+        this.client = client;
+        this.breaker = breaker;
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    static CloudFoundryOperations wrap(CloudFoundryOperations client, String target) {
+        return proxy(new RetryingClient(client, CircuitBreaker.forTarget(target), MAX_ATTEMPTS, BASE_DELAY,
+                MAX_DELAY));
+    }
+
+    static CloudFoundryOperations proxy(RetryingClient handler) {
+        return (CloudFoundryOperations) Proxy.newProxyInstance(CloudFoundryOperations.class.getClassLoader(),
+                new Class<?>[]{CloudFoundryOperations.class}, handler);
+    }
+
+    /**
+     * A plain HTTP request to the Cloud Controller, sent again from scratch on each attempt.
+     */
+    interface Request<T> {
+        T send() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Sends a plain HTTP request to a target, through the breaker of the target, retrying it like the client calls.
+     * Requests run on an agent, like bit uploads, use the breaker of the agent.
+     *
+     * @param name       the request, as logged when retried
+     * @param idempotent whether the request can be repeated, like a GET or a PUT, but not a POST or an upload
+     */
+    static <T> T send(String target, String name, boolean idempotent, Request<T> request)
+            throws IOException, InterruptedException {
+        // Like for the client, retries wrap the metrics so that every attempt is counted
+        return new RetryingClient(null, CircuitBreaker.forTarget(target), MAX_ATTEMPTS, BASE_DELAY, MAX_DELAY)
+                .execute(name, idempotent, DeploymentMetrics.getInstance().instrument(request, target, name));
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T execute(String name, boolean idempotent, final Request<T> request)
+            throws IOException, InterruptedException {
+        try {
+            return (T) call(name, idempotent, new Attempt() {
+                public Object run() throws IOException, InterruptedException {
+                    return request.send();
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(client, args);
+        }
+        return call(method.getName(), isIdempotent(method.getName()), new Attempt() {
+            public Object run() throws Throwable {
+                try {
+                    return method.invoke(client, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    private interface Attempt {
+        Object run() throws Throwable;
+    }
+
+    private Object call(String name, boolean idempotent, Attempt task) throws Throwable {
+        for (int attempt = 1; ; attempt++) {
+            breaker.beforeCall();
+            Throwable failure;
+            boolean answered = false;
+            try {
+                Object result = task.run();
+                answered = true;
+                return result;
+            } catch (Throwable e) {
+                failure = e;
+                answered = !isTransient(failure);
+                if (answered) {
+                    throw failure;
+                }
+            } finally {
+                if (answered) {
+                    breaker.onSuccess();
+                } else {
+                    breaker.onFailure();
+                }
+            }
+            if (!idempotent || attempt >= maxAttempts) {
+                throw failure;
+            }
+            long delay = getDelay(attempt);
+            LOGGER.log(Level.FINE, "Retrying " + name + " in " + delay + " ms after: " + failure);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Full jitter: a random delay up to the exponential backoff of the attempt.
+     */
+    long getDelay(int attempt) {
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        return (long) (random.nextDouble() * backoff);
+    }
+
+    /**
+     * Lookups and updates can safely be repeated, and so can logging in.
+     */
+    static boolean isIdempotent(String methodName) {
+        return methodName.startsWith("get") || methodName.startsWith("update") || methodName.equals("login");
+    }
+
+    static boolean isTransient(Throwable e) {
+        if (e instanceof ResourceAccessException) {
+            // Unknown hosts and certificate problems won't go away by themselves
+            Throwable cause = e.getCause();
+            return !(cause instanceof UnknownHostException || cause instanceof SSLException);
+        }
+        if (e instanceof CloudFoundryException) {
+            return isTransient(((CloudFoundryException) e).getStatusCode().value());
+        }
+        if (e instanceof ApplicationBitsUploader.ResponseException) {
+            return isTransient(((ApplicationBitsUploader.ResponseException) e).getStatus());
+        }
+        if (e instanceof IOException) {
+            return !(e instanceof UnknownHostException || e instanceof SSLException);
+        }
+        return false;
+    }
+
+    private static boolean isTransient(int status) {
+        return status >= 500 || status == TOO_MANY_REQUESTS;
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.util.DaemonThreadFactory;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudDomain;
+import org.cloudfoundry.client.lib.domain.CloudRoute;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Maps routes to an application, creating the ones that don't exist in the space yet.
+ * <p>
+ * The CF client creates and maps the routes of an app one after the other, with a few lookups for each of them,
+ * so apps with dozens of routes spend minutes there. Here the routes of the space are looked up once per domain
+ * through the {@link SpaceMetadataCache}, then all the missing routes are created at the same time,
+ * and all the routes are mapped at the same time.
+ */
+public class RouteMapper {
+
+    private static final int MAX_PARALLEL_REQUESTS = 8;
+
+    private final CloudFoundryOperations client;
+    private final SpaceMetadataCache spaceCache;
+    private final CloudControllerRest rest;
+
+    public RouteMapper(CloudFoundryClientPool.PooledClient pooledClient, SpaceMetadataCache spaceCache,
+                       URL target, boolean selfSigned) {
+        this(pooledClient.getClient(), spaceCache, new CloudControllerRest(target, pooledClient, selfSigned));
+    }
+
+    RouteMapper(CloudFoundryOperations client, SpaceMetadataCache spaceCache, CloudControllerRest rest) {
+        this.client = client;
+        this.spaceCache = spaceCache;
+        this.rest = rest;
+    }
+
+    /**
+     * Maps the routes the app doesn't have yet. The routes it already has stay mapped, even if they are not listed.
+     *
+     * @param routes the routes, without scheme, like {@code www.example.com}
+     */
+    public void map(String appName, List<String> routes, PrintStream logger)
+            throws IOException, InterruptedException {
+        CloudApplication app = spaceCache.getApplication(client, appName);
+        Set<String> toMap = getMissingRoutes(app, routes);
+        if (toMap.isEmpty()) {
+            return;
+        }
+
+        List<Route> resolved = new ArrayList<Route>();
+        for (String route : toMap) {
+            resolved.add(resolve(route));
+        }
+
+        List<Callable<Void>> creations = new ArrayList<Callable<Void>>();
+        Set<String> changedDomains = new LinkedHashSet<String>();
+        for (final Route route : resolved) {
+            if (!spaceCache.hasRoute(client, route.host, route.domain)) {
+                changedDomains.add(route.domain);
+                creations.add(new Callable<Void>() {
+                    public Void call() {
+                        client.addRoute(route.host, route.domain);
+                        return null;
+                    }
+                });
+            }
+        }
+        if (!creations.isEmpty()) {
+            logger.println("Creating " + creations.size() + " routes.");
+            try {
+                runAll(creations);
+            } finally {
+                for (String domain : changedDomains) {
+                    spaceCache.invalidateRoutes(domain);
+                }
+            }
+        }
+
+        logger.println("Mapping routes " + toMap + " to " + appName + ".");
+        final String appGuid = app.getMeta().getGuid().toString();
+        List<Callable<Void>> mappings = new ArrayList<Callable<Void>>();
+        for (final Route route : resolved) {
+            CloudRoute cloudRoute = spaceCache.getRoute(client, route.host, route.domain);
+            if (cloudRoute == null) {
+                throw new IOException("Route " + route + " was created, but is not in the space.");
+            }
+            final String routeGuid = cloudRoute.getMeta().getGuid().toString();
+            mappings.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    rest.put("/v2/apps/" + appGuid + "/routes/" + routeGuid);
+                    return null;
+                }
+            });
+        }
+        try {
+            runAll(mappings);
+        } finally {
+            spaceCache.invalidateApplication(appName);
+        }
+    }
+
+    /**
+     * Unmaps routes from the app, like {@code no-route} does. The routes themselves stay in the space.
+     *
+     * @param routes the routes mapped to the app, without scheme, like {@code www.example.com}
+     */
+    public void unmap(String appName, final String appGuid, List<String> routes)
+            throws IOException, InterruptedException {
+        List<Callable<Void>> unmappings = new ArrayList<Callable<Void>>();
+        for (String route : routes) {
+            Route resolved = resolve(route);
+            CloudRoute cloudRoute = spaceCache.getRoute(client, resolved.host, resolved.domain);
+            if (cloudRoute == null) {
+                // Deleted since, so not mapped anymore
+                continue;
+            }
+            final String routeGuid = cloudRoute.getMeta().getGuid().toString();
+            unmappings.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    rest.delete("/v2/apps/" + appGuid + "/routes/" + routeGuid);
+                    return null;
+                }
+            });
+        }
+        if (unmappings.isEmpty()) {
+            return;
+        }
+        try {
+            runAll(unmappings);
+        } finally {
+            spaceCache.invalidateApplication(appName);
+        }
+    }
+
+    /**
+     * Describes what {@link #map} would do, without changing anything.
+     *
+     * @param app the app, or null if it doesn't exist yet
+     * @return one line for each route to create or map
+     */
+    public List<String> plan(CloudApplication app, List<String> routes) throws IOException {
+        List<String> changes = new ArrayList<String>();
+        for (String route : getMissingRoutes(app, routes)) {
+            Route resolved = resolve(route);
+            if (spaceCache.hasRoute(client, resolved.host, resolved.domain)) {
+                changes.add("map route " + route);
+            } else {
+                changes.add("create and map route " + route);
+            }
+        }
+        return changes;
+    }
+
+    private static Set<String> getMissingRoutes(CloudApplication app, List<String> routes) {
+        Set<String> missing = new LinkedHashSet<String>(routes);
+        if (app != null && app.getUris() != null) {
+            missing.removeAll(app.getUris());
+        }
+        return missing;
+    }
+
+    /**
+     * Splits a route into its host and the longest domain of the space it ends with.
+     */
+    Route resolve(String route) throws IOException {
+        String bestDomain = null;
+        for (CloudDomain domain : spaceCache.getDomains(client)) {
+            String name = domain.getName();
+            if ((route.equals(name) || route.endsWith("." + name))
+                    && (bestDomain == null || name.length() > bestDomain.length())) {
+                bestDomain = name;
+            }
+        }
+        if (bestDomain == null) {
+            throw new IOException("No domain of the space matches route " + route + ".");
+        }
+        String host = route.equals(bestDomain) ? "" : route.substring(0, route.length() - bestDomain.length() - 1);
+        return new Route(host, bestDomain);
+    }
+
+    /**
+     * Runs all the calls at the same time, and throws the first failure once they are all done.
+     */
+    private static void runAll(List<Callable<Void>> calls) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(calls.size(), MAX_PARALLEL_REQUESTS), new DaemonThreadFactory());
+        try {
+            for (Future<Void> future : executor.invokeAll(calls)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException("Could not map routes: " + cause, cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static final class Route {
+
+        final String host;
+        final String domain;
+
+        Route(String host, String domain) {
+            this.host = host;
+            this.domain = domain;
+        }
+
+        @Override
+        public String toString() {
+            return host.isEmpty() ? domain : host + "." + domain;
+        }
+    }
+}
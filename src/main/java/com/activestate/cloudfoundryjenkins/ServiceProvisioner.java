@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.util.DaemonThreadFactory;
+import net.sf.json.JSONObject;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.CloudService;
+import org.cloudfoundry.client.lib.domain.CloudServiceOffering;
+import org.cloudfoundry.client.lib.domain.CloudServicePlan;
+import org.cloudfoundry.client.lib.domain.CloudSpace;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the service instances a push needs and that don't exist in the space yet.
+ * <p>
+ * All the missing services are created at the same time. They are created with {@code accepts_incomplete},
+ * which the CF client doesn't send, so that brokers may provision them asynchronously. Each one is then polled
+ * with an exponential backoff until its last operation succeeded or failed: a database taking minutes to come up
+ * doesn't hold back the others, and the push waits for the slowest one only.
+ */
+public class ServiceProvisioner {
+
+    private static final Logger LOGGER = Logger.getLogger(ServiceProvisioner.class.getName());
+
+    private static final int MAX_PARALLEL_CREATIONS = 6;
+
+    static final long INITIAL_POLL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    static final long MAX_POLL_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    static final long PROVISIONING_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final CloudFoundryOperations client;
+    private final CloudControllerRest rest;
+    private final SpaceMetadataCache spaceCache;
+    private final String organization;
+    private final String cloudSpace;
+    private volatile String spaceGuid;
+    private final long initialPollMillis;
+    private final long maxPollMillis;
+    private final long timeoutMillis;
+
+    public ServiceProvisioner(CloudFoundryClientPool.PooledClient pooledClient, SpaceMetadataCache spaceCache,
+                              URL target, boolean selfSigned) {
+        this(pooledClient.getClient(), new CloudControllerRest(target, pooledClient, selfSigned), spaceCache,
+                pooledClient.getOrganization(), pooledClient.getCloudSpace(),
+                INITIAL_POLL_MILLIS, MAX_POLL_MILLIS, PROVISIONING_TIMEOUT_MILLIS);
+    }
+
+    ServiceProvisioner(CloudFoundryOperations client, CloudControllerRest rest, SpaceMetadataCache spaceCache,
+                       String organization, String cloudSpace,
+                       long initialPollMillis, long maxPollMillis, long timeoutMillis) {
+        this.client = client;
+        this.rest = rest;
+        this.spaceCache = spaceCache;
+        this.organization = organization;
+        this.cloudSpace = cloudSpace;
+        this.initialPollMillis = initialPollMillis;
+        this.maxPollMillis = maxPollMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Creates the services that don't exist, and waits for them to be provisioned.
+     *
+     * @param services the services to create, possibly with duplicates
+     * @return false if a service could not be created
+     */
+    public boolean provision(List<CloudFoundryPushPublisher.Service> services, final PrintStream logger)
+            throws InterruptedException {
+        Map<String, CloudFoundryPushPublisher.Service> missing = findMissing(services);
+        if (missing.isEmpty()) {
+            return true;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(missing.size(), MAX_PARALLEL_CREATIONS), new DaemonThreadFactory());
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (final CloudFoundryPushPublisher.Service service : missing.values()) {
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws InterruptedException {
+                        return create(service, logger);
+                    }
+                }));
+            }
+            boolean success = true;
+            for (Future<String> future : futures) {
+                String error;
+                try {
+                    error = future.get();
+                } catch (ExecutionException e) {
+                    error = "Unexpected failure while creating services: " + e.getCause();
+                }
+                if (error != null) {
+                    logger.println("ERROR: " + error);
+                    success = false;
+                }
+            }
+            return success;
+        } finally {
+            executor.shutdownNow();
+            spaceCache.invalidateServices();
+        }
+    }
+
+    /**
+     * Prints the services {@link #provision} would create, without creating them.
+     */
+    public void plan(List<CloudFoundryPushPublisher.Service> services, PrintStream logger) {
+        for (CloudFoundryPushPublisher.Service service : findMissing(services).values()) {
+            logger.println("  create service " + service.name + " (" + service.type + ", plan " + service.plan + ")");
+        }
+    }
+
+    private Map<String, CloudFoundryPushPublisher.Service> findMissing(
+            List<CloudFoundryPushPublisher.Service> services) {
+        Set<String> existing = new HashSet<String>();
+        for (CloudService service : spaceCache.getServices(client)) {
+            existing.add(service.getName());
+        }
+        Map<String, CloudFoundryPushPublisher.Service> missing =
+                new LinkedHashMap<String, CloudFoundryPushPublisher.Service>();
+        for (CloudFoundryPushPublisher.Service service : services) {
+            if (!existing.contains(service.name) && !missing.containsKey(service.name)) {
+                missing.put(service.name, service);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return the reason the service could not be created, or null if it is ready
+     */
+    private String create(CloudFoundryPushPublisher.Service service, PrintStream logger)
+            throws InterruptedException {
+        logger.println("Creating service " + service.name + " (" + service.type + ", plan " + service.plan + ").");
+        String guid;
+        try {
+            JSONObject request = new JSONObject();
+            request.put("name", service.name);
+            request.put("space_guid", getSpaceGuid());
+            request.put("service_plan_guid", getPlanGuid(service));
+            JSONObject created = rest.post("/v2/service_instances?accepts_incomplete=true", request);
+            guid = created.getJSONObject("metadata").getString("guid");
+        } catch (IOException e) {
+            return "Could not create service " + service.name + ": " + e.getMessage();
+        } catch (RuntimeException e) {
+            return "Could not create service " + service.name + ": " + e.getMessage();
+        }
+        return waitUntilProvisioned(service.name, guid, logger);
+    }
+
+    private String getSpaceGuid() {
+        String guid = spaceGuid;
+        if (guid == null) {
+            for (CloudSpace space : client.getSpaces()) {
+                if (space.getName().equals(cloudSpace) && space.getOrganization().getName().equals(organization)) {
+                    guid = space.getMeta().getGuid().toString();
+                }
+            }
+            if (guid == null) {
+                throw new IllegalArgumentException("no space " + organization + "/" + cloudSpace);
+            }
+            spaceGuid = guid;
+        }
+        return guid;
+    }
+
+    private String getPlanGuid(CloudFoundryPushPublisher.Service service) {
+        for (CloudServiceOffering offering : client.getServiceOfferings()) {
+            if (!offering.getLabel().equals(service.type)) {
+                continue;
+            }
+            for (CloudServicePlan plan : offering.getCloudServicePlans()) {
+                if (plan.getName().equals(service.plan)) {
+                    return plan.getMeta().getGuid().toString();
+                }
+            }
+        }
+        throw new IllegalArgumentException("no plan " + service.plan + " for service type " + service.type);
+    }
+
+    private String waitUntilProvisioned(String serviceName, String guid, PrintStream logger)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long delay = initialPollMillis;
+        boolean waiting = false;
+        IOException lastError = null;
+        while (true) {
+            try {
+                JSONObject lastOperation = getLastOperation(guid);
+                String state = lastOperation == null || lastOperation.isNullObject()
+                        ? null : lastOperation.optString("state", null);
+                // Services provisioned synchronously have no operation in progress
+                if (state == null || state.equals("succeeded")) {
+                    logger.println("Service " + serviceName + " is ready.");
+                    return null;
+                }
+                if (state.equals("failed")) {
+                    return "Could not provision service " + serviceName + ": "
+                            + lastOperation.optString("description", "no reason given");
+                }
+                if (!waiting) {
+                    logger.println("Waiting for service " + serviceName + " to be provisioned.");
+                    waiting = true;
+                }
+            } catch (IOException e) {
+                // Keep polling, the service is still being provisioned anyway
+                LOGGER.log(Level.FINE, "Could not get the state of service " + serviceName, e);
+                lastError = e;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed >= timeoutMillis) {
+                return "Service " + serviceName + " is still not provisioned after "
+                        + TimeUnit.MILLISECONDS.toSeconds(elapsed) + " s"
+                        + (lastError != null ? ", last error: " + lastError.getMessage() : ".");
+            }
+            Thread.sleep(Math.min(delay, timeoutMillis - elapsed));
+            delay = Math.min(delay * 2, maxPollMillis);
+        }
+    }
+
+    /**
+     * Returns the last operation of a service instance, which the CF client doesn't expose.
+     *
+     * @return the operation, with its state and description, or null if there is none
+     */
+    private JSONObject getLastOperation(String guid) throws IOException {
+        return rest.get("/v2/service_instances/" + guid).getJSONObject("entity").optJSONObject("last_operation");
+    }
+}
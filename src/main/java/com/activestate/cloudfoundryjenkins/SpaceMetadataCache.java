@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudDomain;
+import org.cloudfoundry.client.lib.domain.CloudRoute;
+import org.cloudfoundry.client.lib.domain.CloudService;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of the applications, routes, domains and services of a space,
+ * shared by all the builds pushing to that space as the same user.
+ * <p>
+ * Applications are looked up by name instead of listing the whole space. Cached values expire after a few
+ * seconds, and the publisher invalidates them whenever it modifies them itself. Spaces nobody pushed to
+ * for a while are dropped, and at most {@link #MAX_SPACES} of them are kept.
+ */
+public final class SpaceMetadataCache {
+
+    static final long TTL = TimeUnit.SECONDS.toMillis(30);
+    static final long MAX_IDLE_TIME = TimeUnit.MINUTES.toMillis(10);
+    static final int MAX_SPACES = 100;
+
+    private static final ConcurrentMap<String, SpaceMetadataCache> SPACES =
+            new ConcurrentHashMap<String, SpaceMetadataCache>();
+
+    private final ConcurrentMap<String, CachedValue<CloudApplication>> applications =
+            new ConcurrentHashMap<String, CachedValue<CloudApplication>>();
+    private final ConcurrentMap<String, CachedValue<List<CloudRoute>>> routes =
+            new ConcurrentHashMap<String, CachedValue<List<CloudRoute>>>();
+    private final CachedValue<List<CloudDomain>> domains;
+    private final CachedValue<List<CloudService>> services;
+    private final long ttl;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * @param ttl how long loaded values are served, in milliseconds
+     */
+    SpaceMetadataCache(long ttl) {
+        this.ttl = ttl;
+        this.domains = new CachedValue<List<CloudDomain>>(ttl);
+        this.services = new CachedValue<List<CloudService>>(ttl);
+    }
+
+    /**
+     * Returns the cache of a space as seen by a user, creating it if needed.
+     * Users may not see the same services and routes, so they never share a cache.
+     */
+    public static SpaceMetadataCache forSpace(String target, String organization, String cloudSpace,
+                                              String username) {
+        String key = target + "|" + organization + "|" + cloudSpace + "|" + username;
+        SpaceMetadataCache cache = SPACES.get(key);
+        if (cache == null) {
+            evictIdle(MAX_IDLE_TIME, MAX_SPACES - 1);
+            SpaceMetadataCache created = new SpaceMetadataCache(TTL);
+            cache = SPACES.putIfAbsent(key, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        cache.lastUsed = System.currentTimeMillis();
+        return cache;
+    }
+
+    /**
+     * Drops the spaces not used for the given time, then the least recently used ones above the given count.
+     */
+    static void evictIdle(long maxIdleMillis, int maxSpaces) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, SpaceMetadataCache>> it = SPACES.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().lastUsed > maxIdleMillis) {
+                it.remove();
+            }
+        }
+        while (SPACES.size() > maxSpaces) {
+            Map.Entry<String, SpaceMetadataCache> oldest = null;
+            for (Map.Entry<String, SpaceMetadataCache> entry : SPACES.entrySet()) {
+                if (oldest == null || entry.getValue().lastUsed < oldest.getValue().lastUsed) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            SPACES.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    static int getSpaceCount() {
+        return SPACES.size();
+    }
+
+    /**
+     * Returns the application with the given name, or null if there is no such application in the space.
+     */
+    public CloudApplication getApplication(final CloudFoundryOperations client, final String appName) {
+        return getOrCreate(applications, appName).get(new Loader<CloudApplication>() {
+            public CloudApplication load() {
+                try {
+                    return client.getApplication(appName);
+                } catch (CloudFoundryException e) {
+                    if (e.getStatusCode().value() == 404) {
+                        return null;
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    public List<CloudDomain> getDomains(final CloudFoundryOperations client) {
+        return domains.get(new Loader<List<CloudDomain>>() {
+            public List<CloudDomain> load() {
+                return client.getDomains();
+            }
+        });
+    }
+
+    public List<CloudRoute> getRoutes(final CloudFoundryOperations client, final String domain) {
+        return getOrCreate(routes, domain).get(new Loader<List<CloudRoute>>() {
+            public List<CloudRoute> load() {
+                return client.getRoutes(domain);
+            }
+        });
+    }
+
+    /**
+     * Returns true if the route host.domain exists in the space.
+     */
+    public boolean hasRoute(CloudFoundryOperations client, String host, String domain) {
+        return getRoute(client, host, domain) != null;
+    }
+
+    /**
+     * Returns the route host.domain, or null if there is no such route in the space.
+     *
+     * @param host the host of the route, or an empty string for the domain itself
+     */
+    public CloudRoute getRoute(CloudFoundryOperations client, String host, String domain) {
+        for (CloudRoute route : getRoutes(client, domain)) {
+            String routeHost = route.getHost() == null ? "" : route.getHost();
+            if (host.equals(routeHost)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    public List<CloudService> getServices(final CloudFoundryOperations client) {
+        return services.get(new Loader<List<CloudService>>() {
+            public List<CloudService> load() {
+                return client.getServices();
+            }
+        });
+    }
+
+    public void invalidateApplication(String appName) {
+        applications.remove(appName);
+    }
+
+    public void invalidateRoutes(String domain) {
+        routes.remove(domain);
+    }
+
+    public void invalidateDomains() {
+        domains.invalidate();
+    }
+
+    public void invalidateServices() {
+        services.invalidate();
+    }
+
+    private <T> CachedValue<T> getOrCreate(ConcurrentMap<String, CachedValue<T>> map, String key) {
+        CachedValue<T> value = map.get(key);
+        if (value == null) {
+            CachedValue<T> created = new CachedValue<T>(ttl);
+            value = map.putIfAbsent(key, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        return value;
+    }
+
+    private interface Loader<T> {
+        T load();
+    }
+
+    /**
+     * A value loaded at most once per TTL, even when several builds ask for it at the same time.
+     */
+    private static final class CachedValue<T> {
+
+        private final long ttl;
+        private T value;
+        private long expiresAt;
+
+        CachedValue(long ttl) {
+            this.ttl = ttl;
+        }
+
+        synchronized T get(Loader<T> loader) {
+            long now = System.currentTimeMillis();
+            if (now >= expiresAt) {
+                value = loader.load();
+                expiresAt = now + ttl;
+            }
+            return value;
+        }
+
+        synchronized void invalidate() {
+            expiresAt = 0;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+/**
+ * The archive entries of an application, kept on the node of the workspace between pushes.
+ * <p>
+ * Deflated files are kept in the staging directory along with an index of their size, modification time and CRC.
+ * The next push only deflates the files that changed, and drops the entries of the deleted files. The staging
+ * directories of all jobs share a disk quota, the least recently used ones are evicted first. The index records
+ * the size of the deflated files, so checking the quota doesn't walk every staging directory.
+ * <p>
+ * The index is removed while a cache is in use, and only written back once the archive is complete,
+ * so a failed or interrupted push never leaves entries that could be mistaken for valid ones.
+ */
+class StagingCache {
+
+    private static final Logger LOGGER = Logger.getLogger(StagingCache.class.getName());
+
+    private static final String HEADER = "# cloudfoundry-staging-cache v2";
+    private static final String INDEX_FILE = "entries.idx";
+    private static final String ENTRIES_DIR = "entries";
+
+    /**
+     * Disk quota of all the staging directories of a node, in MB.
+     */
+    static final long DEFAULT_QUOTA = Long.getLong(StagingCache.class.getName() + ".quotaMB", 2048) << 20;
+
+    /**
+     * Staging directories used by a build on this node. Concurrent builds of a job don't share theirs.
+     */
+    private static final Set<File> IN_USE = new HashSet<File>();
+
+    private final File dir;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> current = Collections.synchronizedMap(new TreeMap<String, Entry>());
+
+    private StagingCache(File dir, Map<String, Entry> previous) {
+        this.dir = dir;
+        this.previous = previous;
+    }
+
+    /**
+     * Takes the staging directory for the length of a push.
+     *
+     * @return the cache, or null if another build is using the directory
+     */
+    static StagingCache open(File dir) throws IOException {
+        synchronized (IN_USE) {
+            if (!IN_USE.add(dir)) {
+                return null;
+            }
+        }
+        File indexFile = new File(dir, INDEX_FILE);
+        Map<String, Entry> previous = load(indexFile);
+        if (indexFile.exists() && !indexFile.delete()) {
+            release(dir);
+            throw new IOException("Could not delete " + indexFile);
+        }
+        if (previous.isEmpty()) {
+            // Data without an index, left by an older version or a lost index, would never be deleted
+            try {
+                FileUtils.deleteDirectory(new File(dir, ENTRIES_DIR));
+            } catch (IOException e) {
+                release(dir);
+                throw e;
+            }
+        }
+        return new StagingCache(dir, previous);
+    }
+
+    private static void release(File dir) {
+        synchronized (IN_USE) {
+            IN_USE.remove(dir);
+        }
+    }
+
+    /**
+     * Returns the cached entry of a file, if the file did not change since it was cached.
+     *
+     * @param compressionLevel the level of the archive, entries cached at another level are not reused
+     */
+    Entry lookup(String name, File file, int compressionLevel) {
+        Entry entry = previous.get(name);
+        if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+            return null;
+        }
+        if (entry.compressionLevel != compressionLevel) {
+            return null;
+        }
+        if (entry.method == ZipEntry.DEFLATED && getBlob(name).length() != entry.compressedSize) {
+            return null;
+        }
+        current.put(name, entry);
+        return entry;
+    }
+
+    /**
+     * Keeps the entry of a file that is not archived this time, typically because the Cloud Controller
+     * already has it, as long as it did not change.
+     */
+    void retain(String name, File file) {
+        Entry entry = previous.get(name);
+        if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()) {
+            current.put(name, entry);
+        }
+    }
+
+    void put(String name, Entry entry) {
+        current.put(name, entry);
+    }
+
+    /**
+     * Where the deflated data of a file is kept. Blobs are named after the SHA-1 of the file name, so that no
+     * file name, like a file {@code x.deflated} next to a directory {@code x}, can clash with another.
+     */
+    File getBlob(String name) {
+        return getBlob(dir, name);
+    }
+
+    static File getBlob(File dir, String name) {
+        String hash = sha1(name);
+        return new File(new File(new File(dir, ENTRIES_DIR), hash.substring(0, 2)), hash.substring(2) + ".deflated");
+    }
+
+    private static String sha1(String name) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("SHA-1").digest(name.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Deletes the data of the files that are gone, and writes the index back.
+     */
+    void commit() throws IOException {
+        try {
+            for (Map.Entry<String, Entry> old : previous.entrySet()) {
+                Entry entry = current.get(old.getKey());
+                boolean wasDeflated = old.getValue().method == ZipEntry.DEFLATED;
+                if (wasDeflated && (entry == null || entry.method != ZipEntry.DEFLATED)) {
+                    File blob = getBlob(old.getKey());
+                    blob.delete();
+                    // Only deleted once empty
+                    blob.getParentFile().delete();
+                }
+            }
+            save(new File(dir, INDEX_FILE), current);
+            dir.setLastModified(System.currentTimeMillis());
+        } finally {
+            release(dir);
+        }
+    }
+
+    /**
+     * Deletes the whole staging directory, after a failed push.
+     */
+    void discard() {
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete the staging directory " + dir, e);
+        } finally {
+            release(dir);
+        }
+    }
+
+    private static Map<String, Entry> load(File file) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (!file.isFile()) {
+            return entries;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String header = reader.readLine();
+                if (header == null || !header.startsWith(HEADER + "\t")) {
+                    return entries;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 7);
+                    if (fields.length != 7) {
+                        return new HashMap<String, Entry>();
+                    }
+                    entries.put(fields[6], new Entry(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]),
+                            Long.parseLong(fields[5])));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return new HashMap<String, Entry>();
+        } catch (NumberFormatException e) {
+            return new HashMap<String, Entry>();
+        }
+        return entries;
+    }
+
+    private static void save(File file, Map<String, Entry> entries) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            synchronized (entries) {
+                long size = 0;
+                for (Entry entry : entries.values()) {
+                    if (entry.method == ZipEntry.DEFLATED) {
+                        size += entry.compressedSize;
+                    }
+                }
+                writer.write(HEADER + "\t" + size + "\n");
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write(entry.method + "\t" + entry.compressionLevel + "\t" + entry.crc + "\t"
+                            + entry.size + "\t" + entry.compressedSize + "\t" + entry.lastModified + "\t"
+                            + e.getKey() + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the size of the data in a staging directory, as recorded in its index.
+     * Only the directories in use, whose index is not written yet, or left by an older version are walked.
+     */
+    private static long getSize(File dir) {
+        File indexFile = new File(dir, INDEX_FILE);
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            try {
+                String header = reader.readLine();
+                if (header != null && header.startsWith(HEADER + "\t")) {
+                    return Long.parseLong(header.substring(HEADER.length() + 1)) + indexFile.length();
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // No index, the directory is walked
+        } catch (NumberFormatException e) {
+            // Corrupt index, the directory is walked
+        }
+        return FileUtils.sizeOfDirectory(dir);
+    }
+
+    /**
+     * Evicts the least recently used staging directories under {@code root} until they fit in the quota.
+     * Staging directories are two levels deep, one per application of each job.
+     *
+     * @param keep the staging directory of the current push, never evicted
+     */
+    static void evict(File root, long quota, File keep) {
+        List<File> dirs = new ArrayList<File>();
+        File[] jobs = root.listFiles();
+        if (jobs == null) {
+            return;
+        }
+        for (File job : jobs) {
+            File[] apps = job.listFiles();
+            if (apps != null) {
+                Collections.addAll(dirs, apps);
+            }
+        }
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        Map<File, Long> sizes = new HashMap<File, Long>();
+        long total = 0;
+        for (File dir : dirs) {
+            lastUsed.put(dir, dir.lastModified());
+            long size = getSize(dir);
+            sizes.put(dir, size);
+            total += size;
+        }
+        Collections.sort(dirs, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return lastUsed.get(a).compareTo(lastUsed.get(b));
+            }
+        });
+        for (File dir : dirs) {
+            if (total <= quota) {
+                break;
+            }
+            if (dir.equals(keep)) {
+                continue;
+            }
+            synchronized (IN_USE) {
+                if (IN_USE.contains(dir)) {
+                    continue;
+                }
+                try {
+                    FileUtils.deleteDirectory(dir);
+                    total -= sizes.get(dir);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not evict the staging directory " + dir, e);
+                }
+            }
+            File job = dir.getParentFile();
+            String[] remaining = job.list();
+            if (remaining != null && remaining.length == 0) {
+                job.delete();
+            }
+        }
+    }
+
+    /**
+     * A cached archive entry. Stored entries have no data in the cache, only their CRC.
+     */
+    static final class Entry {
+
+        final int method;
+        final int compressionLevel;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        final long lastModified;
+
+        Entry(int method, int compressionLevel, long crc, long size, long compressedSize, long lastModified) {
+            this.method = method;
+            this.compressionLevel = compressionLevel;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Where the staging directory of an application is, on the node of the workspace, and the quota of the node.
+     */
+    static final class Location implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The directory holding the staging directories of all jobs.
+         */
+        final String root;
+        final String dir;
+        final long quota;
+
+        Location(String root, String dir, long quota) {
+            this.root = root;
+            this.dir = dir;
+            this.quota = quota;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.StartingInfo;
+
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints the staging logs of an application by polling them, when they can't be streamed.
+ * <p>
+ * The staging log is read from a byte offset, so the offset is advanced by the UTF-8 length of what was read,
+ * not by its number of characters. Polling backs off while no new logs arrive, and lines are only printed once
+ * complete. The tailer runs in its own thread, next to the wait for the application instances.
+ */
+public class StagingLogTailer implements Runnable {
+
+    static final long MIN_DELAY = 200;
+    static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * How long stopping waits for the last logs to be printed.
+     */
+    static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Where the staging logs are read from.
+     */
+    interface LogSource {
+        /**
+         * @return the logs after the given byte offset, empty if there are none yet,
+         * or null if the staging logs are not available anymore
+         */
+        String read(int offset);
+    }
+
+    private final LogSource source;
+    private final PrintStream logger;
+    private final long minDelay;
+    private final long maxDelay;
+    private final StringBuilder partialLine = new StringBuilder();
+    private final Object wakeUp = new Object();
+    private int offset;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    StagingLogTailer(LogSource source, PrintStream logger, long minDelay, long maxDelay) {
+        this.source = source;
+        this.logger = logger;
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public static StagingLogTailer forApplication(final CloudFoundryOperations client,
+                                                  final StartingInfo startingInfo, PrintStream logger) {
+        LogSource source = new LogSource() {
+            public String read(int offset) {
+                return client.getStagingLogs(startingInfo, offset);
+            }
+        };
+        return new StagingLogTailer(source, logger, MIN_DELAY, MAX_DELAY);
+    }
+
+    public void start() {
+        thread = new Thread(this, "Cloud Foundry staging log tailer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads the logs one last time, and waits for the tailer thread to finish.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        synchronized (wakeUp) {
+            wakeUp.notifyAll();
+        }
+        if (thread != null) {
+            thread.join(STOP_TIMEOUT);
+        }
+    }
+
+    public void run() {
+        long delay = minDelay;
+        boolean firstRead = true;
+        try {
+            while (true) {
+                boolean lastRead = stopped;
+                String logs = source.read(offset);
+                if (logs == null) {
+                    if (firstRead) {
+                        logger.println("WARNING: Could not get staging logs with alternate method. " +
+                                "Cannot display staging logs.");
+                    }
+                    return;
+                }
+                firstRead = false;
+                if (logs.length() == 0) {
+                    delay = Math.min(delay * 2, maxDelay);
+                } else {
+                    offset += logs.getBytes(UTF8).length;
+                    printLines(logs);
+                    delay = minDelay;
+                }
+                if (lastRead) {
+                    return;
+                }
+                pause(delay);
+            }
+        } catch (RuntimeException e) {
+            logger.println("WARNING: Could not get staging logs: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Stop tailing
+        } finally {
+            if (partialLine.length() > 0) {
+                logger.println(partialLine);
+            }
+        }
+    }
+
+    private void printLines(String logs) {
+        int lineEnd = logs.lastIndexOf('\n');
+        if (lineEnd < 0) {
+            partialLine.append(logs);
+            return;
+        }
+        partialLine.append(logs, 0, lineEnd);
+        logger.println(partialLine);
+        partialLine.setLength(0);
+        partialLine.append(logs, lineEnd + 1, logs.length());
+    }
+
+    private void pause(long delay) throws InterruptedException {
+        synchronized (wakeUp) {
+            if (!stopped) {
+                wakeUp.wait(delay);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip archive from entries whose data is already compressed, or stored as is.
+ * <p>
+ * {@link java.util.zip.ZipOutputStream} compresses the data itself, one entry after the other, which leaves
+ * no way to deflate the entries in parallel. The CRC and sizes of every entry are known before it is written,
+ * so local headers carry them and no data descriptors are needed.
+ * <p>
+ * Archives with more than 65535 entries, or files or offsets beyond 4 GB, get the Zip64 extra fields
+ * and end of central directory records. Smaller archives are written exactly like before, without any of them.
+ */
+class ZipArchiveWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int VERSION = 20;
+    private static final int ZIP64_VERSION = 45;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int DIRECTORY_ATTRIBUTE = 0x10;
+
+    /**
+     * Sizes and offsets from this value on don't fit in their field, which then holds this value,
+     * and the real one goes into the Zip64 extra field.
+     */
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /**
+     * Entry counts from this value on are only in the Zip64 end of central directory record.
+     */
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final List<CentralEntry> entries = new ArrayList<CentralEntry>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long written;
+
+    ZipArchiveWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    void writeDirectory(String name, long time) throws IOException {
+        writeHeader(new CentralEntry(name, time, ZipEntry.STORED, 0, 0, 0, true));
+    }
+
+    /**
+     * Writes an entry with its data.
+     *
+     * @param method         {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param crc            the CRC-32 of the uncompressed data
+     * @param compressedSize the number of bytes of {@code data}
+     * @param data           the raw deflated data, or the content itself when stored
+     */
+    void writeEntry(String name, long time, int method, long crc, long compressedSize, long size, InputStream data)
+            throws IOException {
+        writeHeader(new CentralEntry(name, time, method, crc, compressedSize, size, false));
+        long copied = 0;
+        int read;
+        while (copied < compressedSize && (read = data.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        if (copied != compressedSize) {
+            throw new IOException("File changed while it was being archived: " + name);
+        }
+        written += copied;
+    }
+
+    void writeEntry(String name, long time, int method, long crc, long size, byte[] data) throws IOException {
+        writeHeader(new CentralEntry(name, time, method, crc, data.length, size, false));
+        out.write(data);
+        written += data.length;
+    }
+
+    private void writeHeader(CentralEntry entry) throws IOException {
+        entry.offset = written;
+        entries.add(entry);
+
+        // Both sizes go into the extra field as soon as one of them is too large, as the format requires
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        byte[] header = new byte[30 + entry.name.length + (zip64 ? 20 : 0)];
+        int pos = putInt(header, 0, LOCAL_HEADER_SIGNATURE);
+        pos = putShort(header, pos, zip64 ? ZIP64_VERSION : VERSION);
+        pos = putShort(header, pos, FLAG_UTF8);
+        pos = putShort(header, pos, entry.method);
+        pos = putInt(header, pos, entry.dosTime);
+        pos = putInt(header, pos, (int) entry.crc);
+        pos = putInt(header, pos, (int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+        pos = putInt(header, pos, (int) (zip64 ? ZIP64_MAGIC : entry.size));
+        pos = putShort(header, pos, entry.name.length);
+        pos = putShort(header, pos, zip64 ? 20 : 0);
+        System.arraycopy(entry.name, 0, header, pos, entry.name.length);
+        pos += entry.name.length;
+        if (zip64) {
+            pos = putShort(header, pos, ZIP64_EXTRA_ID);
+            pos = putShort(header, pos, 16);
+            pos = putLong(header, pos, entry.size);
+            putLong(header, pos, entry.compressedSize);
+        }
+        out.write(header);
+        written += header.length;
+    }
+
+    /**
+     * Writes the central directory. The underlying stream is left open.
+     */
+    void finish() throws IOException {
+        long centralStart = written;
+        for (CentralEntry entry : entries) {
+            // Only the values that don't fit go into the extra field, in this order
+            boolean zip64Size = entry.size >= ZIP64_MAGIC;
+            boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+            boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+            if (extraLength > 0) {
+                extraLength += 4;
+            }
+            int version = extraLength > 0 ? ZIP64_VERSION : VERSION;
+
+            byte[] header = new byte[46 + entry.name.length + extraLength];
+            int pos = putInt(header, 0, CENTRAL_HEADER_SIGNATURE);
+            pos = putShort(header, pos, version);
+            pos = putShort(header, pos, version);
+            pos = putShort(header, pos, FLAG_UTF8);
+            pos = putShort(header, pos, entry.method);
+            pos = putInt(header, pos, entry.dosTime);
+            pos = putInt(header, pos, (int) entry.crc);
+            pos = putInt(header, pos, (int) (zip64CompressedSize ? ZIP64_MAGIC : entry.compressedSize));
+            pos = putInt(header, pos, (int) (zip64Size ? ZIP64_MAGIC : entry.size));
+            pos = putShort(header, pos, entry.name.length);
+            // Extra field, comment, disk number and internal attributes
+            pos = putShort(header, pos, extraLength);
+            pos = putShort(header, pos, 0);
+            pos = putShort(header, pos, 0);
+            pos = putShort(header, pos, 0);
+            pos = putInt(header, pos, entry.directory ? DIRECTORY_ATTRIBUTE : 0);
+            pos = putInt(header, pos, (int) (zip64Offset ? ZIP64_MAGIC : entry.offset));
+            System.arraycopy(entry.name, 0, header, pos, entry.name.length);
+            pos += entry.name.length;
+            if (extraLength > 0) {
+                pos = putShort(header, pos, ZIP64_EXTRA_ID);
+                pos = putShort(header, pos, extraLength - 4);
+                if (zip64Size) {
+                    pos = putLong(header, pos, entry.size);
+                }
+                if (zip64CompressedSize) {
+                    pos = putLong(header, pos, entry.compressedSize);
+                }
+                if (zip64Offset) {
+                    putLong(header, pos, entry.offset);
+                }
+            }
+            out.write(header);
+            written += header.length;
+        }
+        long centralSize = written - centralStart;
+
+        boolean zip64 = entries.size() >= ZIP64_MAGIC_COUNT || centralSize >= ZIP64_MAGIC
+                || centralStart >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndStart = written;
+            byte[] zip64End = new byte[56 + 20];
+            int pos = putInt(zip64End, 0, ZIP64_END_SIGNATURE);
+            // Size of the record after this field
+            pos = putLong(zip64End, pos, 44);
+            pos = putShort(zip64End, pos, ZIP64_VERSION);
+            pos = putShort(zip64End, pos, ZIP64_VERSION);
+            pos = putInt(zip64End, pos, 0);
+            pos = putInt(zip64End, pos, 0);
+            pos = putLong(zip64End, pos, entries.size());
+            pos = putLong(zip64End, pos, entries.size());
+            pos = putLong(zip64End, pos, centralSize);
+            pos = putLong(zip64End, pos, centralStart);
+
+            pos = putInt(zip64End, pos, ZIP64_LOCATOR_SIGNATURE);
+            pos = putInt(zip64End, pos, 0);
+            pos = putLong(zip64End, pos, zip64EndStart);
+            putInt(zip64End, pos, 1);
+            out.write(zip64End);
+            written += zip64End.length;
+        }
+
+        int count = Math.min(entries.size(), ZIP64_MAGIC_COUNT);
+        byte[] end = new byte[22];
+        int pos = putInt(end, 0, END_SIGNATURE);
+        pos = putShort(end, pos, 0);
+        pos = putShort(end, pos, 0);
+        pos = putShort(end, pos, count);
+        pos = putShort(end, pos, count);
+        pos = putInt(end, pos, (int) Math.min(centralSize, ZIP64_MAGIC));
+        pos = putInt(end, pos, (int) Math.min(centralStart, ZIP64_MAGIC));
+        putShort(end, pos, 0);
+        out.write(end);
+        written += end.length;
+        out.flush();
+    }
+
+    private static int putShort(byte[] bytes, int pos, int value) {
+        bytes[pos] = (byte) value;
+        bytes[pos + 1] = (byte) (value >>> 8);
+        return pos + 2;
+    }
+
+    private static int putInt(byte[] bytes, int pos, int value) {
+        pos = putShort(bytes, pos, value);
+        return putShort(bytes, pos, value >>> 16);
+    }
+
+    private static int putLong(byte[] bytes, int pos, long value) {
+        pos = putInt(bytes, pos, (int) value);
+        return putInt(bytes, pos, (int) (value >>> 32));
+    }
+
+    /**
+     * Converts a Java time to the MS-DOS date and time of zip entries, like {@link ZipEntry#setTime(long)}.
+     */
+    static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static final class CentralEntry {
+
+        final byte[] name;
+        final int dosTime;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final boolean directory;
+        long offset;
+
+        CentralEntry(String name, long time, int method, long crc, long compressedSize, long size,
+                     boolean directory) {
+            this.name = name.getBytes(UTF8);
+            this.dosTime = toDosTime(time);
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.directory = directory;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.FilePath;
+import net.sf.json.JSONArray;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class AgentBitsUploadTest {
+
+    private static final String APP_GUID = "4a3e5d8c-0000-4000-8000-000000000001";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private URL target;
+    private final List<Request> requests = new ArrayList<Request>();
+
+    /**
+     * What the stub Cloud Controller answers to the next requests, by path.
+     */
+    private final Map<String, Integer> statuses = new HashMap<String, Integer>();
+    private final Map<String, String> responses = new HashMap<String, String>();
+
+    private static final class Request {
+
+        private final String method;
+        private final String path;
+        private final String authorization;
+        private final String contentType;
+        private final byte[] body;
+
+        private Request(HttpExchange exchange, byte[] body) {
+            this.method = exchange.getRequestMethod();
+            this.path = exchange.getRequestURI().toString();
+            this.authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            this.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            this.body = body;
+        }
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+                String path = exchange.getRequestURI().getPath();
+                synchronized (requests) {
+                    requests.add(new Request(exchange, body));
+                }
+                Integer status = statuses.get(path);
+                String response = responses.containsKey(path) ? responses.get(path) : "{}";
+                byte[] bytes = response.getBytes("UTF-8");
+                exchange.sendResponseHeaders(status == null ? 201 : status, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.start();
+        target = new URL("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testArchiveIsUploadedAsMultipartBody() throws Exception {
+        File war = folder.newFile("hello-java.war");
+        ZipOutputStream zip = new ZipOutputStream(FileUtils.openOutputStream(war));
+        zip.putNextEntry(new ZipEntry("index.html"));
+        zip.write("Hello".getBytes("UTF-8"));
+        zip.close();
+
+        AgentBitsUpload.Result result = new AgentBitsUpload(target, "token", false, APP_GUID, null,
+                Deflater.DEFAULT_COMPRESSION, null).invoke(war, null);
+
+        assertEquals(1, requests.size());
+        Request request = requests.get(0);
+        assertEquals("PUT", request.method);
+        assertEquals("/v2/apps/" + APP_GUID + "/bits", request.path);
+        assertEquals("bearer token", request.authorization);
+        assertEquals(request.body.length, result.uploadedBytes);
+        assertEquals(0, result.matchedFiles);
+        assertEquals(1, result.totalFiles);
+
+        // The resources part is empty, and the application part is the archive as is
+        assertEquals("[]", getPart(request, "resources"));
+        assertEquals(FileUtils.readFileToString(war, "ISO-8859-1"), getPart(request, "application"));
+    }
+
+    @Test
+    public void testDirectoryIsUploadedWithoutMatchedFiles() throws Exception {
+        File appDir = folder.newFolder("app");
+        FileUtils.writeStringToFile(new File(appDir, "index.html"), "Hello");
+        char[] big = new char[(int) ApplicationBitsUploader.RESOURCE_MATCH_MIN_SIZE];
+        Arrays.fill(big, 'x');
+        FileUtils.writeStringToFile(new File(appDir, "lib/big.jar"), new String(big));
+        ResourceIndex index = new FilePath(appDir).act(new ResourceScanner(new ResourceIndex()));
+        String bigSha1 = index.get("lib/big.jar").sha1;
+        responses.put("/v2/resource_match", "[{\"sha1\":\"" + bigSha1 + "\",\"size\":" + big.length + "}]");
+
+        AgentBitsUpload.Result result = new AgentBitsUpload(target, "token", false, APP_GUID, index,
+                Deflater.DEFAULT_COMPRESSION, null).invoke(appDir, null);
+
+        assertEquals(2, requests.size());
+        assertEquals("/v2/resource_match", requests.get(0).path);
+        Request upload = requests.get(1);
+        assertEquals("/v2/apps/" + APP_GUID + "/bits", upload.path);
+        assertEquals(1, result.matchedFiles);
+        assertEquals(2, result.totalFiles);
+        assertEquals(upload.body.length, result.uploadedBytes);
+
+        // The matched file is only referenced by its fingerprint
+        JSONArray resources = JSONArray.fromObject(getPart(upload, "resources"));
+        assertEquals(1, resources.size());
+        assertEquals("lib/big.jar", resources.getJSONObject(0).getString("fn"));
+        assertEquals(bigSha1, resources.getJSONObject(0).getString("sha1"));
+        List<String> entries = new ArrayList<String>();
+        ZipInputStream zip = new ZipInputStream(
+                new ByteArrayInputStream(getPart(upload, "application").getBytes("ISO-8859-1")));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            entries.add(entry.getName());
+        }
+        zip.close();
+        assertTrue(entries.contains("index.html"));
+        assertFalse(entries.contains("lib/big.jar"));
+    }
+
+    @Test
+    public void testFailedUploadReportsTheCloudControllerError() throws Exception {
+        File war = folder.newFile("hello-java.war");
+        FileUtils.writeStringToFile(war, "not really a war");
+        statuses.put("/v2/apps/" + APP_GUID + "/bits", 400);
+        responses.put("/v2/apps/" + APP_GUID + "/bits", "{\"description\":\"The app package is invalid\"}");
+
+        try {
+            new AgentBitsUpload(target, "token", false, APP_GUID, null, Deflater.DEFAULT_COMPRESSION, null)
+                    .invoke(war, null);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Could not upload the application bits: 400"));
+            assertTrue(e.getMessage(), e.getMessage().contains("The app package is invalid"));
+        }
+    }
+
+    /**
+     * Returns the content of a part of the multipart body, bytes mapped one to one to chars.
+     */
+    private static String getPart(Request request, String name) throws IOException {
+        String boundary = request.contentType.substring(request.contentType.indexOf("boundary=") + 9);
+        String body = new String(request.body, "ISO-8859-1");
+        assertTrue(body.endsWith("\r\n--" + boundary + "--\r\n"));
+        for (String part : body.split("\r\n--" + boundary)) {
+            int headersEnd = part.indexOf("\r\n\r\n");
+            if (headersEnd >= 0 && part.substring(0, headersEnd).contains("name=\"" + name + "\"")) {
+                return part.substring(headersEnd + 4);
+            }
+        }
+        throw new AssertionError("No " + name + " part in " + body);
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ApplicationArchiverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testArchiveContainsAllFilesWithRelativeNames() throws Exception {
+        File appDir = folder.newFolder("app");
+        FileUtils.writeStringToFile(new File(appDir, "index.html"), "Hello");
+        FileUtils.writeStringToFile(new File(appDir, "lib/one.jar"), "one");
+        FileUtils.writeStringToFile(new File(appDir, "lib/nested/two.txt"), "two");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long files = new FilePath(appDir).act(new ApplicationArchiver(out));
+        assertEquals(3, files);
+
+        Map<String, String> entries = new HashMap<String, String>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            entries.put(entry.getName(), entry.isDirectory() ? null : IOUtils.toString(zip, "UTF-8"));
+        }
+        zip.close();
+
+        assertEquals("Hello", entries.get("index.html"));
+        assertEquals("one", entries.get("lib/one.jar"));
+        assertEquals("two", entries.get("lib/nested/two.txt"));
+        assertTrue(entries.containsKey("lib/"));
+        assertTrue(entries.containsKey("lib/nested/"));
+        assertEquals(5, entries.size());
+    }
+
+    @Test
+    public void testArchiveLeavesOutExcludedFiles() throws Exception {
+        File appDir = folder.newFolder("app");
+        FileUtils.writeStringToFile(new File(appDir, "index.html"), "Hello");
+        FileUtils.writeStringToFile(new File(appDir, "lib/big.jar"), "already uploaded");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long files = new FilePath(appDir).act(new ApplicationArchiver(out, Collections.singleton("lib/big.jar")));
+        assertEquals(1, files);
+
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            assertFalse(entry.getName().equals("lib/big.jar"));
+        }
+        zip.close();
+    }
+
+    @Test
+    public void testArchiveStoresCompressedFileTypes() throws Exception {
+        File appDir = folder.newFolder("app");
+        String text = StringUtils.repeat("Hello Cloud Foundry\n", 1000);
+        FileUtils.writeStringToFile(new File(appDir, "index.html"), text);
+        FileUtils.writeStringToFile(new File(appDir, "lib/one.jar"), text);
+        FileUtils.writeStringToFile(new File(appDir, "logo.PNG"), text);
+
+        File archive = archive(appDir, 6);
+        ZipFile zip = new ZipFile(archive);
+        try {
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("index.html").getMethod());
+            assertEquals(ZipEntry.STORED, zip.getEntry("lib/one.jar").getMethod());
+            assertEquals(ZipEntry.STORED, zip.getEntry("logo.PNG").getMethod());
+            assertEquals(text, IOUtils.toString(zip.getInputStream(zip.getEntry("index.html")), "UTF-8"));
+            assertEquals(text, IOUtils.toString(zip.getInputStream(zip.getEntry("lib/one.jar")), "UTF-8"));
+            assertTrue(zip.getEntry("lib/").isDirectory());
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testArchiveStoresEverythingAtLevelZero() throws Exception {
+        File appDir = folder.newFolder("app");
+        FileUtils.writeStringToFile(new File(appDir, "index.html"), StringUtils.repeat("Hello", 1000));
+
+        ZipFile zip = new ZipFile(archive(appDir, 0));
+        try {
+            assertEquals(ZipEntry.STORED, zip.getEntry("index.html").getMethod());
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testArchiveOfManyAndLargeFiles() throws Exception {
+        File appDir = folder.newFolder("app");
+        for (int i = 0; i < 200; i++) {
+            FileUtils.writeStringToFile(new File(appDir, "files/" + i + ".txt"), StringUtils.repeat("" + i, i));
+        }
+        // Deflated through a temporary file
+        byte[] large = new byte[(int) ApplicationArchiver.MAX_BUFFERED_SIZE + 1];
+        Arrays.fill(large, (byte) 'a');
+        FileUtils.writeByteArrayToFile(new File(appDir, "large.txt"), large);
+
+        File archive = archive(appDir, 1);
+        ZipInputStream zip = new ZipInputStream(FileUtils.openInputStream(archive));
+        int files = 0;
+        ZipEntry entry;
+        try {
+            while ((entry = zip.getNextEntry()) != null) {
+                // Reading the whole entry checks its CRC
+                byte[] content = IOUtils.toByteArray(zip);
+                if (entry.getName().equals("large.txt")) {
+                    assertTrue(Arrays.equals(large, content));
+                }
+                if (!entry.isDirectory()) {
+                    files++;
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        assertEquals(201, files);
+        assertTrue(archive.length() < large.length / 10);
+    }
+
+    @Test
+    public void testArchiveDoesNotFollowLinksToParents() throws Exception {
+        File appDir = folder.newFolder("app");
+        FileUtils.writeStringToFile(new File(appDir, "index.html"), "Hello");
+        FileUtils.writeStringToFile(new File(appDir, "lib/one.txt"), "one");
+        Util.createSymlink(new File(appDir, "lib"), "..", "loop", TaskListener.NULL);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long files = new FilePath(appDir).act(new ApplicationArchiver(out));
+        assertEquals(2, files);
+
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            assertFalse(entry.getName().startsWith("lib/loop"));
+        }
+        zip.close();
+    }
+
+    private File archive(File appDir, int compressionLevel) throws Exception {
+        File archive = folder.newFile("app.zip");
+        long files = new FilePath(appDir).act(new ApplicationArchiver(FileUtils.openOutputStream(archive),
+                Collections.<String>emptySet(), compressionLevel));
+        assertTrue(files > 0);
+        return archive;
+    }
+}
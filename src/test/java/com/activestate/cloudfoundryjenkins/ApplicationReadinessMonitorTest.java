@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudEntity;
+import org.cloudfoundry.client.lib.domain.InstancesInfo;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ApplicationReadinessMonitorTest {
+
+    @Test
+    public void testLifecycleEvents() {
+        assertTrue(ApplicationReadinessMonitor.isLifecycleEvent("App"));
+        assertTrue(ApplicationReadinessMonitor.isLifecycleEvent("DEA"));
+        assertTrue(ApplicationReadinessMonitor.isLifecycleEvent("CELL"));
+        assertFalse(ApplicationReadinessMonitor.isLifecycleEvent("STG"));
+        assertFalse(ApplicationReadinessMonitor.isLifecycleEvent("RTR"));
+        assertFalse(ApplicationReadinessMonitor.isLifecycleEvent(null));
+    }
+
+    @Test
+    public void testSignalWakesUpWaiter() throws Exception {
+        final ApplicationReadinessMonitor monitor = new ApplicationReadinessMonitor();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                monitor.signal();
+            }
+        }.start();
+        long start = System.currentTimeMillis();
+        monitor.awaitEvent(ApplicationReadinessMonitor.CONFIRM_POLL_INTERVAL);
+        assertTrue(System.currentTimeMillis() - start < ApplicationReadinessMonitor.CONFIRM_POLL_INTERVAL);
+    }
+
+    @Test
+    public void testWaitIsBoundedWithoutEvents() throws Exception {
+        ApplicationReadinessMonitor monitor = new ApplicationReadinessMonitor();
+        long start = System.currentTimeMillis();
+        monitor.awaitEvent(50);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 40 && elapsed < ApplicationReadinessMonitor.CONFIRM_POLL_INTERVAL);
+    }
+
+    @Test
+    public void testScaleOutWaitsForTheNewInstances() throws Exception {
+        final ApplicationReadinessMonitor monitor = new ApplicationReadinessMonitor();
+        // Running and listed instances at each check: the new instances are not listed at first
+        final int[][] checks = {{1, 1}, {5, 20}, {15, 20}, {20, 20}};
+        final AtomicInteger calls = new AtomicInteger();
+        CloudFoundryOperations client = (CloudFoundryOperations) Proxy.newProxyInstance(
+                CloudFoundryOperations.class.getClassLoader(), new Class<?>[]{CloudFoundryOperations.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (!method.getName().equals("getApplicationInstances")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        int[] check = checks[Math.min(calls.getAndIncrement(), checks.length - 1)];
+                        // As if the logs reported an instance starting
+                        monitor.signal();
+                        return instances(check[0], check[1]);
+                    }
+                });
+        CloudApplication app = new CloudApplication(CloudEntity.Meta.defaultMeta(), "hello-java");
+        app.setInstances(20);
+
+        ApplicationReadinessMonitor.Instances instances =
+                monitor.waitUntilRunning(client, app, 15, TimeUnit.SECONDS.toMillis(10));
+
+        // The single instance listed right after scaling out is not all of them
+        assertEquals(3, calls.get());
+        assertEquals(15, instances.running);
+        assertEquals(20, instances.total);
+        assertFalse(instances.allRunning());
+    }
+
+    @Test
+    public void testStagingEndsWhenTheInstancesAreListed() throws Exception {
+        final ApplicationReadinessMonitor monitor = new ApplicationReadinessMonitor();
+        final AtomicInteger calls = new AtomicInteger();
+        final long[] listedAt = new long[1];
+        CloudFoundryOperations client = (CloudFoundryOperations) Proxy.newProxyInstance(
+                CloudFoundryOperations.class.getClassLoader(), new Class<?>[]{CloudFoundryOperations.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        monitor.signal();
+                        // No instances while staging
+                        if (calls.incrementAndGet() < 3) {
+                            return null;
+                        }
+                        if (listedAt[0] == 0) {
+                            listedAt[0] = System.nanoTime();
+                        }
+                        return instances(calls.get() - 2, 2);
+                    }
+                });
+        CloudApplication app = new CloudApplication(CloudEntity.Meta.defaultMeta(), "hello-java");
+        app.setInstances(2);
+
+        assertFalse(monitor.isStaged());
+        ApplicationReadinessMonitor.Instances instances =
+                monitor.waitUntilRunning(client, app, TimeUnit.SECONDS.toMillis(10));
+
+        assertTrue(instances.allRunning());
+        assertEquals(4, calls.get());
+        assertTrue(monitor.isStaged());
+        assertTrue(monitor.getStagedAt() >= listedAt[0]);
+        long sinceListed = monitor.getStagedAt() - listedAt[0];
+        assertTrue(sinceListed < TimeUnit.MILLISECONDS.toNanos(ApplicationReadinessMonitor.MIN_CHECK_INTERVAL));
+    }
+
+    private static InstancesInfo instances(int running, int listed) {
+        List<Map<String, Object>> instances = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < listed; i++) {
+            Map<String, Object> instance = new HashMap<String, Object>();
+            instance.put("index", i);
+            instance.put("state", i < running ? "RUNNING" : "STARTING");
+            instance.put("since", 1400000000L);
+            instances.add(instance);
+        }
+        return new InstancesInfo(instances);
+    }
+}
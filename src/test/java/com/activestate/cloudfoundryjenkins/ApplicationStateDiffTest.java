@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.OptionalManifest;
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import net.sf.json.JSONObject;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudEntity;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ApplicationStateDiffTest {
+
+    private static final String APP_GUID = UUID.randomUUID().toString();
+
+    @Test
+    public void testNewAppWithDefaultsNeedsNoUpdate() throws Exception {
+        OptionalManifest manifest = new OptionalManifest("hello-java", 512, "", 0, 0, true, "", "", "", "", null, null);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain");
+
+        ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, null);
+
+        // The route is not created in the first place, and one instance is what the app gets on creation
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void testNewAppWithEnvAndInstances() throws Exception {
+        List<EnvironmentVariable> envVars = new ArrayList<EnvironmentVariable>();
+        envVars.add(new EnvironmentVariable("ENV_VAR_ONE", "value1"));
+        OptionalManifest manifest =
+                new OptionalManifest("hello-java", 512, "", 4, 0, false, "", "", "", "", envVars, null);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain");
+
+        ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, null);
+
+        assertEquals(2, diff.getChanges().size());
+        assertEquals("environment variables: [ENV_VAR_ONE]", diff.getChanges().get(0));
+        assertEquals("instances: 1 -> 4", diff.getChanges().get(1));
+    }
+
+    @Test
+    public void testFastScaleOutStartsWithOneInstance() throws Exception {
+        OptionalManifest manifest =
+                new OptionalManifest("hello-java", 512, "", 20, 0, false, "", "", "", "", null, null);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain");
+        CloudApplication current = new CloudApplication(CloudEntity.Meta.defaultMeta(), "hello-java");
+        current.setInstances(20);
+
+        // A new app already has a single instance, an existing one is scaled down for its restart
+        assertTrue(ApplicationStateDiff.compute(deploymentInfo, null, 1).isEmpty());
+        assertEquals(Collections.singletonList("instances: 20 -> 1"),
+                ApplicationStateDiff.compute(deploymentInfo, current, 1).getChanges());
+    }
+
+    @Test
+    public void testExistingAppGetsItsNewServicesBound() throws Exception {
+        List<ServiceName> services = Arrays.asList(new ServiceName("mysql"), new ServiceName("redis"));
+        OptionalManifest manifest =
+                new OptionalManifest("hello-java", 512, "", 0, 0, false, "", "", "", "", null, services);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain");
+        CloudApplication current = new CloudApplication(CloudEntity.Meta.defaultMeta(), "hello-java");
+        current.setInstances(1);
+        current.setServices(Arrays.asList("mysql", "newrelic"));
+
+        ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, current);
+
+        // Services bound by hand stay bound
+        assertEquals(Collections.singletonList("redis"), diff.getServicesToBind());
+        assertEquals(Collections.singletonList("bind services: [redis]"), diff.getChanges());
+        assertEquals(1, diff.getUpdates(null, null, null, APP_GUID, "hello-java").size());
+    }
+
+    @Test
+    public void testExistingAppWithChangedEnv() throws Exception {
+        List<EnvironmentVariable> envVars = new ArrayList<EnvironmentVariable>();
+        envVars.add(new EnvironmentVariable("ENV_VAR_ONE", "value1"));
+        envVars.add(new EnvironmentVariable("ENV_VAR_TWO", "value2"));
+        OptionalManifest manifest =
+                new OptionalManifest("hello-java", 512, "", 4, 0, false, "", "", "", "", envVars, null);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain");
+        CloudApplication current = existingApp(2, "ENV_VAR_ONE", "old value");
+        final List<String> requests = new ArrayList<String>();
+        CloudControllerRest rest = new CloudControllerRest(null, null, false) {
+            @Override
+            JSONObject put(String path, JSONObject body) {
+                requests.add("PUT " + path + " " + body);
+                return new JSONObject();
+            }
+        };
+
+        ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, current);
+        for (Callable<Void> update : diff.getUpdates(null, rest, null, APP_GUID, "hello-java")) {
+            update.call();
+        }
+
+        // The environment and the instances are updated at once
+        assertEquals(Arrays.asList("environment variables: [ENV_VAR_ONE, ENV_VAR_TWO]", "instances: 2 -> 4"),
+                sorted(diff.getChanges()));
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).startsWith("PUT /v2/apps/" + APP_GUID + " "));
+        JSONObject update = diff.getAppUpdate();
+        assertEquals("value1", update.getJSONObject("environment_json").getString("ENV_VAR_ONE"));
+        assertEquals("value2", update.getJSONObject("environment_json").getString("ENV_VAR_TWO"));
+        assertEquals(4, update.getInt("instances"));
+    }
+
+    @Test
+    public void testExistingAppWithSameEnv() throws Exception {
+        List<EnvironmentVariable> envVars = new ArrayList<EnvironmentVariable>();
+        envVars.add(new EnvironmentVariable("ENV_VAR_ONE", "value1"));
+        OptionalManifest manifest =
+                new OptionalManifest("hello-java", 512, "", 4, 0, false, "", "", "", "", envVars, null);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain");
+
+        CloudApplication current = existingApp(4, "ENV_VAR_ONE", "value1");
+
+        ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, current);
+
+        assertTrue(diff.isEmpty());
+        assertNull(diff.getAppUpdate());
+        assertTrue(diff.getUpdates(null, null, null, APP_GUID, "hello-java").isEmpty());
+    }
+
+    @Test
+    public void testNoRouteUnmapsEveryRoute() throws Exception {
+        OptionalManifest manifest =
+                new OptionalManifest("hello-java", 512, "", 0, 0, true, "", "", "", "", null, null);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain");
+        CloudApplication current = existingApp(1, "ENV_VAR_ONE", "value1");
+        current.setUris(Arrays.asList("hello-java.domain", "www.example.com", "example.com"));
+
+        ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, current);
+
+        // Not only the route the app would have had without no-route
+        assertEquals(Arrays.asList("hello-java.domain", "www.example.com", "example.com"),
+                diff.getRoutesToUnmap());
+        assertEquals(Collections.singletonList("unmap routes: [hello-java.domain, www.example.com, example.com]"),
+                diff.getChanges());
+        assertNull(diff.getAppUpdate());
+    }
+
+    @Test
+    public void testExistingAppScaledByHand() throws Exception {
+        OptionalManifest manifest =
+                new OptionalManifest("hello-java", 512, "", 0, 0, false, "", "", "", "", null, null);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain");
+        CloudApplication current = existingApp(6, "ENV_VAR_ONE", "value1");
+
+        ApplicationStateDiff diff = ApplicationStateDiff.compute(deploymentInfo, current);
+
+        // No number of instances in the manifest, the app keeps the ones it was scaled to
+        assertTrue(diff.isEmpty());
+        assertNull(diff.getAppUpdate());
+    }
+
+    private static CloudApplication existingApp(int instances, String envName, String envValue) {
+        CloudApplication app = new CloudApplication(CloudEntity.Meta.defaultMeta(), "hello-java");
+        app.setInstances(instances);
+        Map<Object, Object> env = new HashMap<Object, Object>();
+        env.put(envName, envValue);
+        app.setEnv(env);
+        return app;
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> sorted = new ArrayList<String>(list);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
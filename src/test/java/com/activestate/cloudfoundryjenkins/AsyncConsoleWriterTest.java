@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class AsyncConsoleWriterTest {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    @Test
+    public void testLinesAreWrittenInOrderOnClose() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsyncConsoleWriter writer = new AsyncConsoleWriter(new PrintStream(bytes, true, "UTF-8"));
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(writer.println("line " + i));
+        }
+        writer.close();
+
+        String[] lines = bytes.toString("UTF-8").split(LINE_SEPARATOR);
+        assertEquals(5000, lines.length);
+        assertEquals("line 0", lines[0]);
+        assertEquals("line 4999", lines[4999]);
+    }
+
+    @Test
+    public void testLinesAreDroppedWhenConsoleIsStuck() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream stuckConsole = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+                bytes.write(b);
+            }
+        };
+        AsyncConsoleWriter writer = new AsyncConsoleWriter(new PrintStream(stuckConsole), 2);
+
+        assertTrue(writer.println("first"));
+        writing.await();
+        // The writer thread is stuck on the first line, only the queue is left
+        assertTrue(writer.println("second"));
+        assertTrue(writer.println("third"));
+        assertFalse(writer.println("fourth"));
+        assertEquals(1, writer.getDroppedLines());
+
+        release.countDown();
+        writer.close();
+        String console = bytes.toString();
+        assertTrue(console.contains("first" + LINE_SEPARATOR + "second" + LINE_SEPARATOR + "third"));
+        assertFalse(console.contains("fourth"));
+        assertTrue(console.contains("WARNING: 1 log lines were dropped"));
+    }
+
+    @Test
+    public void testLinesAfterCloseAreWrittenDirectly() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsyncConsoleWriter writer = new AsyncConsoleWriter(new PrintStream(bytes, true, "UTF-8"));
+        writer.close();
+        writer.println("late line");
+        assertEquals("late line" + LINE_SEPARATOR, bytes.toString("UTF-8"));
+    }
+}
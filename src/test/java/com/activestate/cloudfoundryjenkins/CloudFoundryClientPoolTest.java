@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CloudFoundryClientPoolTest {
+
+    /**
+     * A pool of clients that only log in and out, counting their logouts.
+     */
+    private static CloudFoundryClientPool pool(final AtomicInteger logouts) {
+        return new CloudFoundryClientPool() {
+            @Override
+            CloudFoundryOperations createClient(Key key, URL target) {
+                return (CloudFoundryOperations) Proxy.newProxyInstance(
+                        CloudFoundryOperations.class.getClassLoader(), new Class<?>[]{CloudFoundryOperations.class},
+                        new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) {
+                                if (method.getName().equals("login")) {
+                                    return new DefaultOAuth2AccessToken("token");
+                                } else if (method.getName().equals("logout")) {
+                                    logouts.incrementAndGet();
+                                    return null;
+                                }
+                                throw new UnsupportedOperationException(method.getName());
+                            }
+                        });
+            }
+        };
+    }
+
+    private static CloudFoundryClientPool.PooledClient acquire(CloudFoundryClientPool pool) throws Exception {
+        return pool.acquire(new URL("https://api.example.com"), "org", "space", "user", "password", false);
+    }
+
+    @Test
+    public void testLeasedClientsAreNotEvicted() throws Exception {
+        AtomicInteger logouts = new AtomicInteger();
+        CloudFoundryClientPool pool = pool(logouts);
+        CloudFoundryClientPool.PooledClient pooled = acquire(pool);
+        Thread.sleep(10);
+
+        // A long push still holds the client, it must stay logged in
+        pool.evictIdle(0);
+        assertEquals(1, pool.getSize());
+        assertEquals(0, logouts.get());
+        assertSame(pooled, acquire(pool));
+        pool.release(pooled);
+
+        // Only idle once the last lease is released
+        pool.evictIdle(0);
+        assertEquals(1, pool.getSize());
+        pool.release(pooled);
+        Thread.sleep(10);
+        pool.evictIdle(0);
+        assertEquals(0, pool.getSize());
+        assertEquals(1, logouts.get());
+        assertEquals(1, pool.getEvictions());
+    }
+
+    @Test
+    public void testInvalidatedClientIsLoggedOutWhenTheLastLeaseEnds() throws Exception {
+        AtomicInteger logouts = new AtomicInteger();
+        CloudFoundryClientPool pool = pool(logouts);
+        CloudFoundryClientPool.PooledClient pushing = acquire(pool);
+        CloudFoundryClientPool.PooledClient failing = acquire(pool);
+        assertSame(pushing, failing);
+
+        // One build has its token rejected while the other is still pushing
+        pool.invalidate(failing);
+        pool.release(failing);
+        assertEquals(0, pool.getSize());
+        assertEquals(0, logouts.get());
+        assertEquals("token", pushing.getAccessToken());
+
+        // New builds get a new client
+        CloudFoundryClientPool.PooledClient next = acquire(pool);
+        assertNotSame(pushing, next);
+
+        pool.release(pushing);
+        assertEquals(1, logouts.get());
+        pool.release(next);
+        assertEquals(1, logouts.get());
+    }
+
+    @Test
+    public void testReleasedClientsAreReused() throws Exception {
+        CloudFoundryClientPool pool = pool(new AtomicInteger());
+        CloudFoundryClientPool.PooledClient pooled = acquire(pool);
+        pool.release(pooled);
+
+        pool.evictIdle(60000);
+        assertSame(pooled, acquire(pool));
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getHits());
+    }
+}
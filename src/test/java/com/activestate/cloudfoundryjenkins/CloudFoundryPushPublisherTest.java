@@ -4,6 +4,7 @@
 
 package com.activestate.cloudfoundryjenkins;
 
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.BlueGreenDeployment;
 import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
 import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.OptionalManifest;
 import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
@@ -16,6 +17,7 @@ import org.apache.http.client.fluent.Request;
 import org.apache.http.util.EntityUtils;
 import org.cloudfoundry.client.lib.CloudCredentials;
 import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
 import org.cloudfoundry.client.lib.domain.CloudService;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -28,6 +30,7 @@ import org.jvnet.hudson.test.recipes.WithTimeout;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -357,6 +360,139 @@ public class CloudFoundryPushPublisherTest {
         assertEquals("Get request did not respond 404 Not Found", 404, statusCode);
     }
 
+    @Test
+    public void testPerformPlanOnly() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
+                TEST_USERNAME, TEST_PASSWORD, false, false, null, null, false, false, null, null, true, null);
+        project.getPublishersList().add(cf);
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        System.out.println(build.getDisplayName() + " completed");
+
+        String log = FileUtils.readFileToString(build.getLogFile());
+        System.out.println(log);
+
+        assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertTrue("Build did not print the plan", log.contains("create app hello-java"));
+        assertTrue("Plan created the app", client.getApplications().isEmpty());
+    }
+
+    @Test
+    @WithTimeout(300)
+    public void testPerformBlueGreenDeletesOldApp() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        CloudFoundryPushPublisher cf1 = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
+                TEST_USERNAME, TEST_PASSWORD, false, false, helloJavaManifest(512, 0));
+        project.getPublishersList().add(cf1);
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        assertTrue("Build 1 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        List<String> uris = client.getApplication("hello-java").getUris();
+
+        project.getPublishersList().remove(cf1);
+        CloudFoundryPushPublisher cf2 = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
+                TEST_USERNAME, TEST_PASSWORD, false, false, helloJavaManifest(256, 0),
+                new BlueGreenDeployment(false), false, false, null, null, false, null);
+        project.getPublishersList().add(cf2);
+        build = project.scheduleBuild2(0).get();
+
+        String log = FileUtils.readFileToString(build.getLogFile());
+        System.out.println(log);
+
+        assertTrue("Build 2 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertTrue("New version was not pushed as a separate app",
+                log.contains("to hello-java" + ApplicationPusher.NEW_APP_SUFFIX + "."));
+        assertTrue("Previous version was not deleted", log.contains("Previous version deleted."));
+
+        // Only the new version is left, under the original name and with the original routes
+        List<CloudApplication> apps = client.getApplications();
+        assertEquals(1, apps.size());
+        assertEquals("hello-java", apps.get(0).getName());
+        assertEquals(256, apps.get(0).getMemory());
+        assertEquals(uris, apps.get(0).getUris());
+        assertEquals("Get request did not respond 200 OK", 200,
+                Request.Get(cf2.getAppURI()).execute().returnResponse().getStatusLine().getStatusCode());
+    }
+
+    @Test
+    @WithTimeout(300)
+    public void testPerformBlueGreenKeepsOldApp() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        CloudFoundryPushPublisher cf1 = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
+                TEST_USERNAME, TEST_PASSWORD, false, false, helloJavaManifest(512, 0));
+        project.getPublishersList().add(cf1);
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        assertTrue("Build 1 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        List<String> uris = client.getApplication("hello-java").getUris();
+
+        project.getPublishersList().remove(cf1);
+        CloudFoundryPushPublisher cf2 = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
+                TEST_USERNAME, TEST_PASSWORD, false, false, helloJavaManifest(256, 0),
+                new BlueGreenDeployment(true), false, false, null, null, false, null);
+        project.getPublishersList().add(cf2);
+        build = project.scheduleBuild2(0).get();
+
+        String log = FileUtils.readFileToString(build.getLogFile());
+        System.out.println(log);
+
+        assertTrue("Build 2 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        // The routes moved to the new version, the previous one is stopped and renamed
+        CloudApplication newApp = client.getApplication("hello-java");
+        assertEquals(256, newApp.getMemory());
+        assertEquals(uris, newApp.getUris());
+        CloudApplication oldApp = client.getApplication("hello-java" + ApplicationPusher.OLD_APP_SUFFIX);
+        assertEquals(512, oldApp.getMemory());
+        assertEquals(CloudApplication.AppState.STOPPED, oldApp.getState());
+        assertTrue("Previous version still has routes", oldApp.getUris().isEmpty());
+        assertEquals(2, client.getApplications().size());
+    }
+
+    @Test
+    @WithTimeout(300)
+    public void testPerformBlueGreenRollback() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        CloudFoundryPushPublisher cf1 = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
+                TEST_USERNAME, TEST_PASSWORD, false, false, helloJavaManifest(512, 0));
+        project.getPublishersList().add(cf1);
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        assertTrue("Build 1 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        List<String> uris = client.getApplication("hello-java").getUris();
+
+        // The new version can't start in one second
+        project.getPublishersList().remove(cf1);
+        CloudFoundryPushPublisher cf2 = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
+                TEST_USERNAME, TEST_PASSWORD, false, false, helloJavaManifest(256, 1),
+                new BlueGreenDeployment(false), false, false, null, null, false, null);
+        project.getPublishersList().add(cf2);
+        build = project.scheduleBuild2(0).get();
+
+        String log = FileUtils.readFileToString(build.getLogFile());
+        System.out.println(log);
+
+        assertTrue("Build succeeded where it should have failed", build.getResult().isWorseOrEqualTo(Result.FAILURE));
+        assertTrue("Build did not display proper error message",
+                log.contains("ERROR: Not enough instances of the new version are running"));
+
+        // The current version still serves its routes, and the new one is gone
+        List<CloudApplication> apps = client.getApplications();
+        assertEquals(1, apps.size());
+        assertEquals("hello-java", apps.get(0).getName());
+        assertEquals(512, apps.get(0).getMemory());
+        assertEquals(uris, apps.get(0).getUris());
+        assertEquals("Get request did not respond 200 OK", 200,
+                Request.Get(cf1.getAppURI()).execute().returnResponse().getStatusLine().getStatusCode());
+    }
+
+    private static OptionalManifest helloJavaManifest(int memory, int timeout) {
+        return new OptionalManifest("hello-java", memory, "", 0, timeout, false,
+                "target/hello-java-1.0.war", "", "", "",
+                new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
+    }
+
     @Test
     public void testPerformUnknownHost() throws Exception {
         FreeStyleProject project = j.createFreeStyleProject();
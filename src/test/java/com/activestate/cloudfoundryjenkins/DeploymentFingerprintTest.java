@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.OptionalManifest;
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class DeploymentFingerprintTest {
+
+    private static final String TARGET = "https://api.example.com org space";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DeploymentInfo deploymentInfo(int memory, List<EnvironmentVariable> envVars) throws Exception {
+        OptionalManifest manifest = new OptionalManifest("hello-java", memory, "", 0, 0, false, "", "", "", "",
+                envVars, Collections.singletonList(new ServiceName("mysql")));
+        return new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain-name");
+    }
+
+    @Test
+    public void testSameDeploymentSameFingerprint() throws Exception {
+        List<EnvironmentVariable> envVars = Arrays.asList(
+                new EnvironmentVariable("ONE", "1"), new EnvironmentVariable("TWO", "2"));
+        List<EnvironmentVariable> reversedEnvVars = Arrays.asList(
+                new EnvironmentVariable("TWO", "2"), new EnvironmentVariable("ONE", "1"));
+        assertEquals(DeploymentFingerprint.compute(TARGET, deploymentInfo(512, envVars), "bits"),
+                DeploymentFingerprint.compute(TARGET, deploymentInfo(512, reversedEnvVars), "bits"));
+    }
+
+    @Test
+    public void testAnyChangeChangesTheFingerprint() throws Exception {
+        List<EnvironmentVariable> envVars = Collections.singletonList(new EnvironmentVariable("ONE", "1"));
+        String fingerprint = DeploymentFingerprint.compute(TARGET, deploymentInfo(512, envVars), "bits");
+
+        assertFalse(fingerprint.equals(DeploymentFingerprint.compute(TARGET, deploymentInfo(1024, envVars), "bits")));
+        assertFalse(fingerprint.equals(DeploymentFingerprint.compute(TARGET, deploymentInfo(512, envVars), "other")));
+        assertFalse(fingerprint.equals(DeploymentFingerprint.compute(
+                "https://api.example.com org other-space", deploymentInfo(512, envVars), "bits")));
+        assertFalse(fingerprint.equals(DeploymentFingerprint.compute(TARGET, deploymentInfo(512,
+                Collections.singletonList(new EnvironmentVariable("ONE", "2"))), "bits")));
+    }
+
+    @Test
+    public void testBitsDigest() {
+        TreeMap<String, ResourceIndex.Resource> resources = new TreeMap<String, ResourceIndex.Resource>();
+        resources.put("index.html", new ResourceIndex.Resource(5, 0, "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d"));
+        String digest = DeploymentFingerprint.digest(new ResourceIndex(resources));
+
+        // The modification times don't matter, only the content does
+        resources.put("index.html", new ResourceIndex.Resource(5, 42, "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d"));
+        assertEquals(digest, DeploymentFingerprint.digest(new ResourceIndex(resources)));
+
+        resources.put("index.html", new ResourceIndex.Resource(5, 42, "7c211433f02071597741e6ff5a8ea34789abbf43"));
+        assertFalse(digest.equals(DeploymentFingerprint.digest(new ResourceIndex(resources))));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = new File(folder.getRoot(), "resources/hello-java.fingerprint");
+        assertNull(DeploymentFingerprint.load(file));
+        DeploymentFingerprint.save(file, "0123456789abcdef");
+        assertEquals("0123456789abcdef", DeploymentFingerprint.load(file));
+    }
+
+    @Test
+    public void testFailedPushForgetsTheLastFingerprint() throws Exception {
+        File file = new File(folder.getRoot(), "resources/hello-java.fingerprint");
+        String first = DeploymentFingerprint.compute(TARGET, deploymentInfo(512,
+                Collections.<EnvironmentVariable>emptyList()), "bits");
+        DeploymentFingerprint.save(file, first);
+
+        // A second version starts changing the app, then fails before it is saved
+        DeploymentFingerprint.delete(file);
+
+        // Pushing the first version again must not be skipped, the app may be half way to the second one
+        assertFalse(first.equals(DeploymentFingerprint.load(file)));
+        assertFalse(file.exists());
+        DeploymentFingerprint.delete(file);
+    }
+}
@@ -14,6 +14,7 @@ import org.junit.rules.ExpectedException;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -79,6 +80,66 @@ public class DeploymentInfoTest {
         assertTrue(deploymentInfo.getServicesNames().isEmpty());
     }
 
+    @Test
+    public void testReadManifestMultipleApps() throws Exception {
+        File manifestFile = new File(getClass().getResource("multi-app-manifest.yml").toURI());
+        FilePath manifestFilePath = new FilePath(manifestFile);
+        List<DeploymentInfo> deploymentInfos =
+                DeploymentInfo.readManifest(System.out, manifestFilePath, "jenkins-build-name", "domain-name");
+
+        assertEquals(2, deploymentInfos.size());
+        assertEquals("hello-java", deploymentInfos.get(0).getAppName());
+        assertEquals(512, deploymentInfos.get(0).getMemory());
+        assertEquals("hello-worker", deploymentInfos.get(1).getAppName());
+        assertEquals(256, deploymentInfos.get(1).getMemory());
+        assertEquals(2, deploymentInfos.get(1).getInstances());
+        assertEquals(true, deploymentInfos.get(1).isNoRoute());
+        assertEquals("worker", deploymentInfos.get(1).getAppPath());
+    }
+
+    @Test
+    public void testReadManifestDuplicateAppNames() throws Exception {
+        exception.expect(ManifestParsingException.class);
+        exception.expectMessage("Manifest file contains several apps named hello-java");
+        File manifestFile = new File(getClass().getResource("duplicate-names-manifest.yml").toURI());
+        DeploymentInfo.readManifest(System.out, new FilePath(manifestFile), "jenkins-build-name", "domain-name");
+    }
+
+    @Test
+    public void testReadManifestGlobalAttributes() throws Exception {
+        File manifestFile = new File(getClass().getResource("global-attributes-manifest.yml").toURI());
+        List<DeploymentInfo> deploymentInfos =
+                DeploymentInfo.readManifest(System.out, new FilePath(manifestFile), "jenkins-build-name", "domain-name");
+
+        assertEquals(2, deploymentInfos.size());
+        assertEquals(256, deploymentInfos.get(0).getMemory());
+        assertEquals(2, deploymentInfos.get(0).getInstances());
+        assertEquals("global2", deploymentInfos.get(0).getEnvVars().get("ENV_VAR_TWO"));
+        assertEquals(512, deploymentInfos.get(1).getMemory());
+        assertEquals(2, deploymentInfos.get(1).getInstances());
+        assertEquals("worker2", deploymentInfos.get(1).getEnvVars().get("ENV_VAR_TWO"));
+    }
+
+    @Test
+    public void testReadManifestRoutes() throws Exception {
+        File manifestFile = new File(getClass().getResource("routes-manifest.yml").toURI());
+        List<DeploymentInfo> deploymentInfos =
+                DeploymentInfo.readManifest(System.out, new FilePath(manifestFile), "jenkins-build-name", "domain-name");
+
+        // Every host on every domain
+        DeploymentInfo hosts = deploymentInfos.get(0);
+        assertEquals("www", hosts.getHostname());
+        assertEquals("example.com", hosts.getDomain());
+        assertEquals(Arrays.asList("www.example.com", "www.example.org", "api.example.com", "api.example.org"),
+                hosts.getRoutes());
+
+        // Routes as listed
+        DeploymentInfo routes = deploymentInfos.get(1);
+        assertEquals(Arrays.asList("worker.apps.example.com", "example.net"), routes.getRoutes());
+        // Which part is the domain is only known from the domains of the space
+        assertNull(routes.getHostname());
+        assertNull(routes.getDomain());
+    }
 
     @Test
     public void testOptionalJenkinsConfigAllOptions() throws Exception {
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpStatus;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeploymentMetricsTest {
+
+    @Test
+    public void testPushesByOutcome() {
+        DeploymentMetrics metrics = new DeploymentMetrics();
+        metrics.recordPush("https://api.example.com", true);
+        metrics.recordPush("https://api.example.com", true);
+        metrics.recordPush("https://api.example.com", false);
+
+        assertEquals(2, metrics.getSuccessfulPushes());
+        assertEquals(1, metrics.getFailedPushes());
+        String text = metrics.toPrometheusText();
+        assertTrue(text.contains(
+                "cloudfoundry_pushes_total{target=\"https://api.example.com\",outcome=\"success\"} 2\n"));
+        assertTrue(text.contains(
+                "cloudfoundry_pushes_total{target=\"https://api.example.com\",outcome=\"failure\"} 1\n"));
+    }
+
+    @Test
+    public void testHistogramBucketsAreCumulative() {
+        DeploymentMetrics.Histogram histogram = new DeploymentMetrics.Histogram(1000, 5000);
+        histogram.record(500);
+        histogram.record(1000);
+        histogram.record(3000);
+        histogram.record(9000);
+
+        StringBuilder out = new StringBuilder();
+        histogram.write(out, "test_seconds", "Test.", 1000);
+        String text = out.toString();
+        assertTrue(text.contains("test_seconds_bucket{le=\"1.0\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"5.0\"} 3\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 4\n"));
+        assertTrue(text.contains("test_seconds_sum 13.5\n"));
+        assertTrue(text.contains("test_seconds_count 4\n"));
+        assertEquals(3375.0, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void testTimeToRunningIsInSeconds() {
+        DeploymentMetrics metrics = new DeploymentMetrics();
+        metrics.recordTimeToRunning(TimeUnit.SECONDS.toNanos(42));
+        assertEquals(42.0, metrics.getMeanTimeToRunningSeconds(), 0.001);
+    }
+
+    @Test
+    public void testApiCallsAndErrorsAreCounted() {
+        CloudFoundryOperations failingClient = (CloudFoundryOperations) Proxy.newProxyInstance(
+                CloudFoundryOperations.class.getClassLoader(), new Class<?>[]{CloudFoundryOperations.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("deleteApplication")) {
+                            throw new CloudFoundryException(HttpStatus.NOT_FOUND);
+                        }
+                        return null;
+                    }
+                });
+        DeploymentMetrics metrics = new DeploymentMetrics();
+        CloudFoundryOperations client = metrics.instrument(failingClient, "https://api.example.com");
+
+        client.getApplication("hello-java");
+        try {
+            client.deleteApplication("hello-java");
+            fail();
+        } catch (CloudFoundryException e) {
+            assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+        }
+
+        assertEquals(2, metrics.getApiCallCount());
+        assertEquals(1, metrics.getApiErrorCount());
+        assertEquals(Long.valueOf(1), metrics.getApiErrors().get(
+                DeploymentMetrics.labels("target", "https://api.example.com", "type", "CloudFoundryException")));
+    }
+
+    @Test
+    public void testRequestsWithoutTheClientAreCounted() throws Exception {
+        DeploymentMetrics metrics = new DeploymentMetrics();
+        String target = "https://api.example.com";
+        String guid = "4a3e5d8c-0000-4000-8000-000000000001";
+        RetryingClient.Request<String> ok = new RetryingClient.Request<String>() {
+            public String send() {
+                return "{}";
+            }
+        };
+        RetryingClient.Request<String> failing = new RetryingClient.Request<String>() {
+            public String send() throws IOException {
+                throw new ApplicationBitsUploader.ResponseException(502, "Bad Gateway");
+            }
+        };
+
+        metrics.instrument(ok, target, "PUT /v2/apps/" + guid + "/routes/" + UUID.randomUUID()).send();
+        metrics.instrument(ok, target, "PUT /v2/apps/" + UUID.randomUUID() + "/routes/" + guid).send();
+        try {
+            metrics.instrument(failing, target, "PUT /v2/apps/" + guid + "/bits").send();
+            fail();
+        } catch (ApplicationBitsUploader.ResponseException e) {
+            assertEquals(502, e.getStatus());
+        }
+
+        // One counter per kind of request, whatever the app and route
+        assertEquals(3, metrics.getApiCallCount());
+        assertEquals(1, metrics.getApiErrorCount());
+        String text = metrics.toPrometheusText();
+        assertTrue(text, text.contains("cloudfoundry_api_calls_total{target=\"https://api.example.com\","
+                + "method=\"PUT /v2/apps/:guid/routes/:guid\"} 2\n"));
+        assertTrue(text, text.contains("cloudfoundry_api_calls_total{target=\"https://api.example.com\","
+                + "method=\"PUT /v2/apps/:guid/bits\"} 1\n"));
+        assertEquals(Long.valueOf(1), metrics.getApiErrors().get(
+                DeploymentMetrics.labels("target", target, "type", "ResponseException")));
+    }
+
+    @Test
+    public void testLabelValuesAreEscaped() {
+        assertEquals("{name=\"a\\\"b\\\\c\"}", DeploymentMetrics.labels("name", "a\"b\\c"));
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import com.activestate.cloudfoundryjenkins.DeploymentTimingAction.Phase;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeploymentTimingActionTest {
+
+    private static long millisAgo(long millis) {
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void testPhasesAreRecordedPerApp() {
+        DeploymentTimingAction timings = new DeploymentTimingAction();
+        timings.record("hello-java", Phase.UPLOAD, millisAgo(300));
+        timings.record("hello-worker", Phase.UPLOAD, millisAgo(100));
+        timings.record("hello-java", Phase.READINESS, millisAgo(200));
+
+        assertEquals(2, timings.getApps().size());
+        DeploymentTimingAction.AppTiming java = timings.getApps().get(0);
+        assertEquals("hello-java", java.getAppName());
+        assertEquals(2, java.getPhases().size());
+        assertEquals(Phase.UPLOAD, java.getPhases().get(0).getPhase());
+        assertTrue(java.getTotalMillis() >= 500);
+    }
+
+    @Test
+    public void testPhaseMillisUsesTheSlowestApp() {
+        DeploymentTimingAction timings = new DeploymentTimingAction();
+        timings.record(Phase.LOGIN, millisAgo(1000));
+        timings.record("hello-java", Phase.LOGIN, millisAgo(0));
+        timings.record("hello-java", Phase.UPLOAD, millisAgo(3000));
+        timings.record("hello-worker", Phase.UPLOAD, millisAgo(1000));
+
+        long login = timings.getPhaseMillis(Phase.LOGIN);
+        assertTrue(login >= 1000 && login < 2000);
+        long upload = timings.getPhaseMillis(Phase.UPLOAD);
+        assertTrue(upload >= 3000 && upload < 4000);
+        assertEquals(0, timings.getPhaseMillis(Phase.ROUTES));
+    }
+}
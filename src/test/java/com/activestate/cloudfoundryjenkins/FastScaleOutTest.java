@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.BlueGreenDeployment;
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.FastScaleOut;
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.OptionalManifest;
+import com.activestate.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import hudson.model.StreamBuildListener;
+import org.cloudfoundry.client.lib.ApplicationLogListener;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.ApplicationLog;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudEntity;
+import org.cloudfoundry.client.lib.domain.InstancesInfo;
+import org.cloudfoundry.client.lib.org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class FastScaleOutTest {
+
+    /**
+     * An app being started, staging until its instances are first listed. At most {@code maxRunning} of its
+     * instances ever run, and every listing is reported by the logs as an instance event.
+     */
+    private static final class StartingApp implements InvocationHandler {
+
+        private final CloudApplication app = new CloudApplication(CloudEntity.Meta.defaultMeta(), "hello-java");
+        private final int maxRunning;
+        private ApplicationLogListener logListener;
+        private int listings;
+        private int running;
+        private int stagedInstances;
+        private final List<String> scaleOuts = new ArrayList<String>();
+
+        private StartingApp(int initialInstances, int maxRunning) {
+            this.maxRunning = maxRunning;
+            app.setInstances(initialInstances);
+        }
+
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("login")) {
+                return new DefaultOAuth2AccessToken("token");
+            } else if (name.equals("startApplication")) {
+                return null;
+            } else if (name.equals("streamLogs")) {
+                logListener = (ApplicationLogListener) args[1];
+                return null;
+            } else if (name.equals("getApplication")) {
+                return app;
+            } else if (name.equals("getApplicationInstances")) {
+                logListener.onMessage(new ApplicationLog("app-guid", "Instance started", new Date(),
+                        ApplicationLog.MessageType.STDOUT, "CELL", "0"));
+                if (listings++ == 0) {
+                    return null;
+                }
+                if (stagedInstances == 0) {
+                    stagedInstances = app.getInstances();
+                }
+                running = Math.min(app.getInstances(), maxRunning);
+                return instances(running, app.getInstances());
+            } else if (name.equals("updateApplicationInstances")) {
+                scaleOuts.add(args[1] + " instances with " + running + " running");
+                app.setInstances((Integer) args[1]);
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private static InstancesInfo instances(int running, int listed) {
+        List<Map<String, Object>> instances = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < listed; i++) {
+            Map<String, Object> instance = new HashMap<String, Object>();
+            instance.put("index", i);
+            instance.put("state", i < running ? "RUNNING" : "STARTING");
+            instance.put("since", 1400000000L);
+            instances.add(instance);
+        }
+        return new InstancesInfo(instances);
+    }
+
+    private static DeploymentInfo deploymentInfo(int instances) throws Exception {
+        OptionalManifest manifest = new OptionalManifest("hello-java", 512, "", instances, 0, false, "", "", "", "",
+                Collections.<EnvironmentVariable>emptyList(), Collections.<ServiceName>emptyList());
+        return new DeploymentInfo(System.out, null, manifest, "jenkins-build-name", "domain-name");
+    }
+
+    private static ApplicationPusher pusher(FastScaleOut fastScaleOut, BlueGreenDeployment blueGreen,
+                                            final CloudFoundryOperations client) throws Exception {
+        CloudFoundryPushPublisher publisher = new CloudFoundryPushPublisher("https://api.example.com", "org",
+                "space", "user", "password", false, false, null, blueGreen, false, false, null, null, false,
+                fastScaleOut);
+        CloudFoundryClientPool pool = new CloudFoundryClientPool() {
+            @Override
+            CloudFoundryOperations createClient(Key key, URL target) {
+                return client;
+            }
+        };
+        URL target = new URL(publisher.target);
+        CloudFoundryClientPool.PooledClient pooledClient = pool.acquire(target, publisher.organization,
+                publisher.cloudSpace, publisher.username, publisher.password, publisher.selfSigned);
+        return new ApplicationPusher(publisher, null, target, pooledClient, new DeploymentTimingAction());
+    }
+
+    private static CloudFoundryOperations client(StartingApp app) {
+        return (CloudFoundryOperations) Proxy.newProxyInstance(CloudFoundryOperations.class.getClassLoader(),
+                new Class<?>[]{CloudFoundryOperations.class}, app);
+    }
+
+    @Test
+    public void testMinHealthyInstances() {
+        assertEquals(20, new FastScaleOut(100).getMinRunning(20));
+        assertEquals(15, new FastScaleOut(75).getMinRunning(20));
+        assertEquals(1, new FastScaleOut(10).getMinRunning(3));
+        // An unset percentage means all of them
+        assertEquals(3, new FastScaleOut(0).getMinRunning(3));
+        assertEquals(20, new FastScaleOut(150).getMinRunning(20));
+    }
+
+    @Test
+    public void testAppIsStagedWithASingleInstance() throws Exception {
+        DeploymentInfo deploymentInfo = deploymentInfo(20);
+        CloudApplication existingApp = new CloudApplication(CloudEntity.Meta.defaultMeta(), "hello-java");
+        existingApp.setInstances(20);
+
+        ApplicationPusher pusher = pusher(new FastScaleOut(75), null, client(new StartingApp(1, 20)));
+        assertEquals(1, pusher.getInitialInstances(deploymentInfo));
+        assertEquals(Collections.singletonList("instances: 20 -> 1"), ApplicationStateDiff.compute(
+                deploymentInfo, existingApp, pusher.getInitialInstances(deploymentInfo)).getChanges());
+
+        // Without a fast scale-out, or with nothing to scale out to, all the instances start at once
+        assertEquals(20, pusher(null, null, client(new StartingApp(1, 20))).getInitialInstances(deploymentInfo));
+        assertEquals(1, pusher.getInitialInstances(deploymentInfo(1)));
+    }
+
+    @Test
+    public void testInstancesAreScaledOutOnceTheFirstOneIsRunning() throws Exception {
+        DeploymentInfo deploymentInfo = deploymentInfo(20);
+        StartingApp app = new StartingApp(1, 20);
+        ApplicationPusher pusher = pusher(new FastScaleOut(75), null, client(app));
+
+        ApplicationReadinessMonitor.Instances instances = pusher.startAndWait(client(app), "hello-java",
+                deploymentInfo, true, new StreamBuildListener(new ByteArrayOutputStream()));
+
+        assertEquals(1, app.stagedInstances);
+        assertEquals(Collections.singletonList("20 instances with 1 running"), app.scaleOuts);
+        assertEquals(20, instances.running);
+        assertEquals(20, instances.total);
+        assertTrue(pusher.isHealthy(deploymentInfo, instances, false));
+    }
+
+    @Test
+    public void testTooFewRunningInstancesFail() throws Exception {
+        DeploymentInfo deploymentInfo = deploymentInfo(20);
+        StartingApp app = new StartingApp(1, 10);
+        ApplicationPusher pusher = pusher(new FastScaleOut(75), null, client(app));
+        pusher.readinessTimeout = 1000;
+
+        ApplicationReadinessMonitor.Instances instances = pusher.startAndWait(client(app), "hello-java",
+                deploymentInfo, true, new StreamBuildListener(new ByteArrayOutputStream()));
+
+        assertEquals(Collections.singletonList("20 instances with 1 running"), app.scaleOuts);
+        assertEquals(10, instances.running);
+        assertEquals(20, instances.total);
+        assertFalse(pusher.isHealthy(deploymentInfo, instances, false));
+        assertFalse(pusher.isHealthy(deploymentInfo, instances, true));
+    }
+
+    @Test
+    public void testBlueGreenHealthCheck() throws Exception {
+        DeploymentInfo deploymentInfo = deploymentInfo(20);
+        BlueGreenDeployment blueGreen = new BlueGreenDeployment(false);
+        ApplicationReadinessMonitor.Instances mostRunning = new ApplicationReadinessMonitor.Instances(15, 20);
+
+        // Enough of the new version is running to replace the current one
+        ApplicationPusher scalingOut = pusher(new FastScaleOut(75), blueGreen, client(new StartingApp(1, 20)));
+        assertTrue(scalingOut.isHealthy(deploymentInfo, mostRunning, true));
+        assertFalse(scalingOut.isHealthy(deploymentInfo, new ApplicationReadinessMonitor.Instances(14, 20), true));
+
+        // Otherwise it only replaces it once all its instances are running, unlike an in-place push
+        ApplicationPusher allAtOnce = pusher(null, blueGreen, client(new StartingApp(20, 20)));
+        assertFalse(allAtOnce.isHealthy(deploymentInfo, mostRunning, true));
+        assertTrue(allAtOnce.isHealthy(deploymentInfo, mostRunning, false));
+        assertTrue(allAtOnce.isHealthy(deploymentInfo, new ApplicationReadinessMonitor.Instances(20, 20), true));
+    }
+}
@@ -64,6 +64,18 @@ public class ManifestReaderTest {
         assertTrue(servicesNames.contains("service3"));
     }
 
+    @Test
+    public void testGetApplicationInfos() throws Exception {
+        File manifestFile = new File(getClass().getResource("multi-app-manifest.yml").toURI());
+        FilePath manifestFilePath = new FilePath(manifestFile);
+        ManifestReader reader = new ManifestReader(manifestFilePath);
+        List<Map<String, Object>> result = reader.getApplicationInfos();
+        assertEquals(2, result.size());
+        assertEquals("hello-java", result.get(0).get("name"));
+        assertEquals("hello-worker", result.get(1).get("name"));
+        assertEquals(2, result.get(1).get("instances"));
+    }
+
     @Test
     public void testGetApplicationInfoMalformedYML() throws Exception {
         exception.expect(ManifestParsingException.class);
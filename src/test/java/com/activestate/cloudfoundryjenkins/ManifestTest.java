@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ManifestTest {
+
+    private byte[] readResource(String name) throws Exception {
+        InputStream in = getClass().getResourceAsStream(name);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testGlobalAttributesInheritance() throws Exception {
+        Manifest manifest = Manifest.parse(readResource("global-attributes-manifest.yml"), "global-attributes-manifest.yml");
+        List<ManifestApplication> applications = manifest.getApplications();
+        assertEquals(2, applications.size());
+
+        ManifestApplication java = applications.get(0);
+        assertEquals("hello-java", java.getName());
+        assertEquals("256M", java.getMemory());
+        assertEquals(Integer.valueOf(2), java.getInstances());
+        assertEquals("target/hello-java-1.0.war", java.getPath());
+        assertNull(java.getNoRoute());
+
+        ManifestApplication worker = manifest.getApplication("hello-worker");
+        assertEquals("512M", worker.getMemory());
+        assertEquals(Integer.valueOf(2), worker.getInstances());
+        assertEquals(Boolean.TRUE, worker.getNoRoute());
+        assertTrue(worker.getWarnings().isEmpty());
+    }
+
+    @Test
+    public void testEnvVarsAreMerged() throws Exception {
+        Manifest manifest = Manifest.parse(readResource("global-attributes-manifest.yml"), "global-attributes-manifest.yml");
+
+        Map<String, String> javaEnv = manifest.getApplication("hello-java").getEnvVars();
+        assertEquals(2, javaEnv.size());
+        assertEquals("global1", javaEnv.get("ENV_VAR_ONE"));
+
+        Map<String, String> workerEnv = manifest.getApplication("hello-worker").getEnvVars();
+        assertEquals(3, workerEnv.size());
+        assertEquals("global1", workerEnv.get("ENV_VAR_ONE"));
+        assertEquals("worker2", workerEnv.get("ENV_VAR_TWO"));
+        assertEquals("worker3", workerEnv.get("ENV_VAR_THREE"));
+    }
+
+    @Test
+    public void testUnknownAppName() throws Exception {
+        Manifest manifest = Manifest.parse(readResource("hello-java-manifest.yml"), "hello-java-manifest.yml");
+        assertNull(manifest.getApplication("goodbye-java"));
+    }
+
+    @Test
+    public void testSameContentIsParsedOnce() throws Exception {
+        Manifest first = Manifest.parse(readResource("multi-app-manifest.yml"), "first.yml");
+        Manifest second = Manifest.parse(readResource("multi-app-manifest.yml"), "second.yml");
+        assertSame(first, second);
+    }
+
+    @Test
+    public void testWrongTypesAreIgnoredWithWarnings() throws Exception {
+        byte[] content = ("applications:\n"
+                + "- name: hello-java\n"
+                + "  instances: many\n"
+                + "  env: [ONE, TWO]\n"
+                + "  services: service1\n").getBytes("UTF-8");
+        ManifestApplication application = Manifest.parse(content, "inline").getApplications().get(0);
+        assertNull(application.getInstances());
+        assertTrue(application.getEnvVars().isEmpty());
+        assertTrue(application.getServicesNames().isEmpty());
+        assertEquals(3, application.getWarnings().size());
+    }
+
+    @Test
+    public void testDeclaredServicesAreMerged() throws Exception {
+        byte[] content = ("declared-services:\n"
+                + "  shared-db:\n"
+                + "    label: mysql\n"
+                + "    plan: 100mb\n"
+                + "applications:\n"
+                + "- name: hello-java\n"
+                + "- name: hello-worker\n"
+                + "  declared-services:\n"
+                + "    work-queue:\n"
+                + "      label: rabbitmq\n"
+                + "      plan: small\n"
+                + "    no-plan:\n"
+                + "      label: redis\n").getBytes("UTF-8");
+        Manifest manifest = Manifest.parse(content, "inline");
+
+        List<CloudFoundryPushPublisher.Service> javaServices =
+                manifest.getApplication("hello-java").getDeclaredServices();
+        assertEquals(1, javaServices.size());
+        assertEquals("shared-db", javaServices.get(0).name);
+        assertEquals("mysql", javaServices.get(0).type);
+        assertEquals("100mb", javaServices.get(0).plan);
+
+        ManifestApplication worker = manifest.getApplication("hello-worker");
+        assertEquals(2, worker.getDeclaredServices().size());
+        assertEquals("work-queue", worker.getDeclaredServices().get(1).name);
+        assertEquals(1, worker.getWarnings().size());
+    }
+}
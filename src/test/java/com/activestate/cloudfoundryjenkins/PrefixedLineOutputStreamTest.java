@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PrefixedLineOutputStreamTest {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    @Test
+    public void testLinesOfParallelAppsAreNotMixed() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream console = new PrintStream(bytes, true, "UTF-8");
+        List<Thread> apps = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String appName = "app" + i;
+            apps.add(new Thread() {
+                @Override
+                public void run() {
+                    PrintStream logger = new PrintStream(new PrefixedLineOutputStream(console, appName));
+                    for (int j = 0; j < 1000; j++) {
+                        // Lines written in several pieces, as the CF client logs do
+                        logger.print("line ");
+                        logger.print(j);
+                        logger.println();
+                    }
+                    logger.close();
+                }
+            });
+        }
+        for (Thread app : apps) {
+            app.start();
+        }
+        for (Thread app : apps) {
+            app.join();
+        }
+
+        int[] next = new int[4];
+        String[] lines = bytes.toString("UTF-8").split(LINE_SEPARATOR);
+        assertEquals(4000, lines.length);
+        for (String line : lines) {
+            assertTrue(line, line.matches("\\[app[0-3]\\] line [0-9]+"));
+            int app = line.charAt(4) - '0';
+            assertEquals("[app" + app + "] line " + next[app]++, line);
+        }
+    }
+
+    @Test
+    public void testLastLineIsWrittenOnClose() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream console = new PrintStream(bytes, true, "UTF-8");
+        PrintStream logger = new PrintStream(new PrefixedLineOutputStream(console, "hello-java"), false, "UTF-8");
+
+        logger.println("Pushing hello-java.");
+        logger.print("Done");
+        assertEquals("[hello-java] Pushing hello-java." + LINE_SEPARATOR, bytes.toString("UTF-8"));
+        logger.close();
+        console.println("===== Summary =====");
+
+        assertEquals("[hello-java] Pushing hello-java." + LINE_SEPARATOR + "[hello-java] Done" + LINE_SEPARATOR
+                + "===== Summary =====" + LINE_SEPARATOR, bytes.toString("UTF-8"));
+    }
+}
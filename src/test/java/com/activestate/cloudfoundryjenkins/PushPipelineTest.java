@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class PushPipelineTest {
+
+    @Test
+    public void testIndependentStepsRunAtTheSameTime() throws Exception {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        PushPipeline pipeline = new PushPipeline();
+        try {
+            PushPipeline.Step<Boolean> packaging = pipeline.submit("packaging", awaiting(bothStarted));
+            PushPipeline.Step<Boolean> create = pipeline.submit("create", awaiting(bothStarted));
+            // Each step only finishes once the other one has started
+            assertTrue(packaging.get());
+            assertTrue(create.get());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testStepsWaitForTheirDependencies() throws Exception {
+        final CountDownLatch packaged = new CountDownLatch(1);
+        PushPipeline pipeline = new PushPipeline();
+        try {
+            final PushPipeline.Step<String> packaging = pipeline.submit("packaging", new Callable<String>() {
+                public String call() throws InterruptedException {
+                    Thread.sleep(100);
+                    packaged.countDown();
+                    return "index";
+                }
+            });
+            PushPipeline.Step<String> upload = pipeline.submit("upload", new Callable<String>() {
+                public String call() throws IOException, InterruptedException {
+                    assertEquals(0, packaged.getCount());
+                    return "uploaded " + packaging.get();
+                }
+            }, packaging);
+            assertEquals("uploaded index", upload.get());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testFailuresSkipDependents() throws Exception {
+        final CountDownLatch created = new CountDownLatch(1);
+        final AtomicBoolean uploaded = new AtomicBoolean();
+        PushPipeline pipeline = new PushPipeline();
+        try {
+            PushPipeline.Step<Void> packaging = pipeline.submit("packaging", new Callable<Void>() {
+                public Void call() throws IOException {
+                    throw new FileNotFoundException("target/app.war");
+                }
+            });
+            PushPipeline.Step<Boolean> create = pipeline.submit("create", waitingFor(created));
+            PushPipeline.Step<Void> upload = pipeline.submit("upload", new Callable<Void>() {
+                public Void call() {
+                    uploaded.set(true);
+                    return null;
+                }
+            }, create, packaging);
+
+            // The upload fails with the packaging failure without waiting for the app creation
+            try {
+                upload.get();
+                fail();
+            } catch (FileNotFoundException e) {
+                assertEquals("target/app.war", e.getMessage());
+            }
+            created.countDown();
+            assertTrue(create.get());
+            assertFalse(uploaded.get());
+
+            // Steps depending on a step already failed fail right away
+            try {
+                pipeline.submit("start", waitingFor(new CountDownLatch(0)), upload).get();
+                fail();
+            } catch (FileNotFoundException e) {
+                // Expected
+            }
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testCloseCancelsRunningSteps() throws Exception {
+        PushPipeline pipeline = new PushPipeline();
+        PushPipeline.Step<Boolean> stuck = pipeline.submit("readiness", waitingFor(new CountDownLatch(1)));
+        pipeline.close();
+        try {
+            stuck.get();
+            fail();
+        } catch (InterruptedException e) {
+            assertEquals("The readiness step was cancelled.", e.getMessage());
+        }
+    }
+
+    /**
+     * A step counting the latch down, then waiting for it to reach zero.
+     */
+    private static Callable<Boolean> awaiting(final CountDownLatch latch) {
+        return new Callable<Boolean>() {
+            public Boolean call() throws InterruptedException {
+                latch.countDown();
+                return latch.await(5, TimeUnit.SECONDS);
+            }
+        };
+    }
+
+    private static Callable<Boolean> waitingFor(final CountDownLatch latch) {
+        return new Callable<Boolean>() {
+            public Boolean call() throws InterruptedException {
+                return latch.await(5, TimeUnit.SECONDS);
+            }
+        };
+    }
+}
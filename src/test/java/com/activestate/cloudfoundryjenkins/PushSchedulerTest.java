@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PushSchedulerTest {
+
+    private static final String TARGET = "https://api.example.com";
+    private static final PrintStream LOGGER = new PrintStream(new NullOutputStream());
+
+    @Test
+    public void testPushesOverTheLimitWait() throws Exception {
+        PushScheduler scheduler = new PushScheduler();
+        PushScheduler.Ticket first = scheduler.acquire(TARGET, "org/space", "job1", "job1 #1", 1, 0, LOGGER);
+
+        BlockingQueue<PushScheduler.Ticket> acquired = new LinkedBlockingQueue<PushScheduler.Ticket>();
+        Thread waiter = acquireInBackground(scheduler, "job2", "org/space", 1, 0, acquired);
+        waitForWaiting(scheduler, 1);
+        assertNull(acquired.poll(100, TimeUnit.MILLISECONDS));
+
+        // Another target has its own limit
+        PushScheduler.Ticket other = scheduler.acquire("https://api.other.com", "org/space", "job3", "job3 #1",
+                1, 0, LOGGER);
+        scheduler.release(other);
+
+        scheduler.release(first);
+        PushScheduler.Ticket second = acquired.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertEquals("job2", second.getJobName());
+        waiter.join();
+        scheduler.release(second);
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void testSpaceLimit() throws Exception {
+        PushScheduler scheduler = new PushScheduler();
+        scheduler.acquire(TARGET, "org/space1", "job1", "job1 #1", 0, 1, LOGGER);
+        // A different space is not limited
+        scheduler.acquire(TARGET, "org/space2", "job2", "job2 #1", 0, 1, LOGGER);
+
+        BlockingQueue<PushScheduler.Ticket> acquired = new LinkedBlockingQueue<PushScheduler.Ticket>();
+        acquireInBackground(scheduler, "job3", "org/space1", 0, 1, acquired);
+        waitForWaiting(scheduler, 1);
+        assertEquals(2, scheduler.getRunning().size());
+    }
+
+    @Test
+    public void testJobsWithFewerRunningPushesGoFirst() throws Exception {
+        PushScheduler scheduler = new PushScheduler();
+        PushScheduler.Ticket running = scheduler.acquire(TARGET, "org/space", "busy", "busy #1", 1, 0, LOGGER);
+
+        BlockingQueue<PushScheduler.Ticket> acquired = new LinkedBlockingQueue<PushScheduler.Ticket>();
+        acquireInBackground(scheduler, "busy", "org/space", 1, 0, acquired);
+        waitForWaiting(scheduler, 1);
+        acquireInBackground(scheduler, "quiet", "org/space", 1, 0, acquired);
+        waitForWaiting(scheduler, 2);
+
+        // The busy job has a push running, so the quiet job goes before its second one
+        List<PushScheduler.Ticket> waiting = scheduler.getWaiting();
+        assertEquals("quiet", waiting.get(0).getJobName());
+        assertEquals(1, waiting.get(0).getPosition());
+        assertEquals(2, waiting.get(1).getPosition());
+
+        // Once nothing runs, the build that waited longest goes first
+        scheduler.release(running);
+        PushScheduler.Ticket next = acquired.poll(5, TimeUnit.SECONDS);
+        assertEquals("busy", next.getJobName());
+        assertEquals(0, next.getPosition());
+        scheduler.release(next);
+        assertEquals("quiet", acquired.poll(5, TimeUnit.SECONDS).getJobName());
+    }
+
+    @Test
+    public void testQueuePositionIsLogged() throws Exception {
+        final PushScheduler scheduler = new PushScheduler();
+        PushScheduler.Ticket running = scheduler.acquire(TARGET, "org/space", "job1", "job1 #1", 1, 0, LOGGER);
+
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.release(scheduler.acquire(TARGET, "org/space", "job2", "job2 #1", 1, 0,
+                            new PrintStream(log, true)));
+                } catch (InterruptedException e) {
+                    // Test failure
+                }
+            }
+        };
+        waiter.start();
+        waitForWaiting(scheduler, 1);
+        scheduler.release(running);
+        waiter.join(5000);
+        assertTrue(log.toString().contains("Waiting for a push slot on " + TARGET + ", position 1 in the queue."));
+    }
+
+    @Test
+    public void testInterruptedWaitLeavesTheQueue() throws Exception {
+        PushScheduler scheduler = new PushScheduler();
+        scheduler.acquire(TARGET, "org/space", "job1", "job1 #1", 1, 0, LOGGER);
+
+        BlockingQueue<PushScheduler.Ticket> acquired = new LinkedBlockingQueue<PushScheduler.Ticket>();
+        Thread waiter = acquireInBackground(scheduler, "job2", "org/space", 1, 0, acquired);
+        waitForWaiting(scheduler, 1);
+        waiter.interrupt();
+        waiter.join(5000);
+        assertTrue(scheduler.getWaiting().isEmpty());
+    }
+
+    private static Thread acquireInBackground(final PushScheduler scheduler, final String jobName,
+                                              final String space, final int maxPerTarget, final int maxPerSpace,
+                                              final BlockingQueue<PushScheduler.Ticket> acquired) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired.add(scheduler.acquire(TARGET, space, jobName, jobName + " #2",
+                            maxPerTarget, maxPerSpace, LOGGER));
+                } catch (InterruptedException e) {
+                    // Expected when testing interruptions
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForWaiting(PushScheduler scheduler, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getWaiting().size() < count) {
+            assertTrue("Timed out waiting for queued pushes", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
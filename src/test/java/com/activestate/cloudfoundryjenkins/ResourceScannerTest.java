@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResourceScannerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testScanHashesAllFiles() throws Exception {
+        File appDir = folder.newFolder("app");
+        FileUtils.writeStringToFile(new File(appDir, "hello.txt"), "hello");
+        FileUtils.writeStringToFile(new File(appDir, "lib/world.txt"), "world");
+
+        ResourceIndex index = new FilePath(appDir).act(new ResourceScanner(new ResourceIndex()));
+
+        assertEquals(2, index.size());
+        assertEquals("aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d", index.get("hello.txt").sha1);
+        assertEquals(5, index.get("hello.txt").size);
+        assertEquals("7c211433f02071597741e6ff5a8ea34789abbf43", index.get("lib/world.txt").sha1);
+    }
+
+    @Test
+    public void testScanReusesUnchangedFilesAndDropsDeletedOnes() throws Exception {
+        File appDir = folder.newFolder("app");
+        File hello = new File(appDir, "hello.txt");
+        FileUtils.writeStringToFile(hello, "hello");
+
+        Map<String, ResourceIndex.Resource> known = new HashMap<String, ResourceIndex.Resource>();
+        ResourceIndex.Resource cached = new ResourceIndex.Resource(hello.length(), hello.lastModified(), "cached");
+        known.put("hello.txt", cached);
+        known.put("deleted.txt", new ResourceIndex.Resource(1, 1, "gone"));
+
+        ResourceIndex index = new FilePath(appDir).act(new ResourceScanner(new ResourceIndex(known)));
+
+        assertSame(cached, index.get("hello.txt"));
+        assertNull(index.get("deleted.txt"));
+    }
+
+    @Test
+    public void testScanDoesNotFollowLinksToParents() throws Exception {
+        File appDir = folder.newFolder("app");
+        FileUtils.writeStringToFile(new File(appDir, "lib/world.txt"), "world");
+        Util.createSymlink(new File(appDir, "lib"), "..", "loop", TaskListener.NULL);
+
+        ResourceIndex index = new FilePath(appDir).act(new ResourceScanner(new ResourceIndex()));
+
+        assertEquals(1, index.size());
+        assertNotNull(index.get("lib/world.txt"));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Map<String, ResourceIndex.Resource> resources = new HashMap<String, ResourceIndex.Resource>();
+        resources.put("lib/app.jar", new ResourceIndex.Resource(123456, 1400000000000L, "0123abcd"));
+        resources.put("with space.txt", new ResourceIndex.Resource(1, 2, "ffff"));
+        File file = new File(folder.getRoot(), "index/app.idx");
+
+        new ResourceIndex(resources).save(file);
+        ResourceIndex loaded = ResourceIndex.load(file);
+
+        assertEquals(2, loaded.size());
+        ResourceIndex.Resource jar = loaded.get("lib/app.jar");
+        assertNotNull(jar);
+        assertEquals(123456, jar.size);
+        assertEquals(1400000000000L, jar.lastModified);
+        assertEquals("0123abcd", jar.sha1);
+        assertEquals("ffff", loaded.get("with space.txt").sha1);
+    }
+
+    @Test
+    public void testConcurrentSavesDoNotMix() throws Exception {
+        final File file = new File(folder.getRoot(), "index/app.idx");
+        List<Thread> writers = new ArrayList<Thread>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int i = 0; i < 8; i++) {
+            final Map<String, ResourceIndex.Resource> resources = new HashMap<String, ResourceIndex.Resource>();
+            for (int j = 0; j < 1000; j++) {
+                resources.put("writer" + i + "/" + j, new ResourceIndex.Resource(j, j, "sha" + i));
+            }
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 10; k++) {
+                            new ResourceIndex(resources).save(file);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        // The index is the complete one of a single writer, and no temporary file is left behind
+        ResourceIndex loaded = ResourceIndex.load(file);
+        assertEquals(1000, loaded.size());
+        String sha1 = loaded.get(loaded.getResources().keySet().iterator().next()).sha1;
+        for (ResourceIndex.Resource resource : loaded.getResources().values()) {
+            assertEquals(sha1, resource.sha1);
+        }
+        assertEquals(1, file.getParentFile().list().length);
+    }
+
+    @Test
+    public void testLoadCorruptIndexIsEmpty() throws Exception {
+        File file = folder.newFile("corrupt.idx");
+        FileUtils.writeStringToFile(file, "not an index");
+        assertTrue(ResourceIndex.load(file).getResources().isEmpty());
+        assertTrue(ResourceIndex.load(new File(folder.getRoot(), "missing.idx")).getResources().isEmpty());
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpStatus;
+import org.cloudfoundry.client.lib.org.springframework.web.client.ResourceAccessException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RetryingClientTest {
+
+    /**
+     * A client failing its first calls with the given exception, then succeeding.
+     */
+    private static CloudFoundryOperations failingClient(final RuntimeException failure, final int failures,
+                                                        final AtomicInteger calls) {
+        return (CloudFoundryOperations) Proxy.newProxyInstance(CloudFoundryOperations.class.getClassLoader(),
+                new Class<?>[]{CloudFoundryOperations.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (calls.incrementAndGet() <= failures) {
+                            throw failure;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static CloudFoundryOperations retrying(CloudFoundryOperations client, CircuitBreaker breaker) {
+        return RetryingClient.proxy(new RetryingClient(client, breaker, 4, 1, 5));
+    }
+
+    @Test
+    public void testIdempotentCallsAreRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        CircuitBreaker breaker = new CircuitBreaker("target", 5, 60000, 1000);
+        CloudFoundryOperations client = retrying(
+                failingClient(new CloudFoundryException(HttpStatus.SERVICE_UNAVAILABLE), 2, calls), breaker);
+
+        client.getApplication("hello-java");
+        assertEquals(3, calls.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testRetriesGiveUp() {
+        AtomicInteger calls = new AtomicInteger();
+        CloudFoundryOperations client = retrying(failingClient(
+                new ResourceAccessException("I/O error", new IOException("Connection reset")), 10, calls),
+                new CircuitBreaker("target", 10, 60000, 1000));
+        try {
+            client.getApplication("hello-java");
+            fail();
+        } catch (ResourceAccessException e) {
+            assertEquals(4, calls.get());
+        }
+    }
+
+    @Test
+    public void testCreationsAreNotRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        CloudFoundryOperations client = retrying(
+                failingClient(new CloudFoundryException(HttpStatus.BAD_GATEWAY), 1, calls),
+                new CircuitBreaker("target", 5, 60000, 1000));
+        try {
+            client.createService(null);
+            fail();
+        } catch (CloudFoundryException e) {
+            assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    public void testRequestErrorsAreNotRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        CircuitBreaker breaker = new CircuitBreaker("target", 1, 60000, 1000);
+        CloudFoundryOperations client = retrying(
+                failingClient(new CloudFoundryException(HttpStatus.NOT_FOUND), 1, calls), breaker);
+        try {
+            client.getApplication("hello-java");
+            fail();
+        } catch (CloudFoundryException e) {
+            assertEquals(1, calls.get());
+        }
+        // The target answered
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CircuitBreaker breaker = new CircuitBreaker("https://api.example.com", 2, 100, 1000);
+        CloudFoundryOperations client = retrying(
+                failingClient(new CloudFoundryException(HttpStatus.SERVICE_UNAVAILABLE), 3, calls), breaker);
+
+        try {
+            client.getApplication("hello-java");
+            fail();
+        } catch (CircuitBreaker.TargetUnavailableException e) {
+            assertTrue(e.getMessage().contains("https://api.example.com"));
+        }
+        assertEquals(2, calls.get());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // The probe fails, and the circuit opens again
+        Thread.sleep(150);
+        try {
+            client.createService(null);
+            fail();
+        } catch (CloudFoundryException e) {
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        }
+
+        // The probe succeeds, and the circuit closes
+        Thread.sleep(150);
+        client.getApplication("hello-java");
+        assertEquals(4, calls.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testCallsWaitForTheProbe() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker("target", 1, 0, 5000);
+        breaker.onFailure();
+        // This call is the probe, the next one waits for its outcome
+        breaker.beforeCall();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                breaker.beforeCall();
+            }
+        };
+        waiter.start();
+        Thread.sleep(100);
+        assertTrue(waiter.isAlive());
+        breaker.onSuccess();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void testIdempotentRequestsAreRetried() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        CircuitBreaker breaker = new CircuitBreaker("target", 5, 60000, 1000);
+        String result = new RetryingClient(null, breaker, 4, 1, 5).execute("GET /v2/info", true,
+                new RetryingClient.Request<String>() {
+                    public String send() throws IOException {
+                        if (calls.incrementAndGet() <= 2) {
+                            throw new ApplicationBitsUploader.ResponseException(502, "Bad Gateway");
+                        }
+                        return "{}";
+                    }
+                });
+        assertEquals("{}", result);
+        assertEquals(3, calls.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testUploadsAreNotRetriedButOpenTheCircuit() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        CircuitBreaker breaker = new CircuitBreaker("target", 1, 60000, 1000);
+        try {
+            new RetryingClient(null, breaker, 4, 1, 5).execute("PUT /v2/apps/guid/bits", false,
+                    new RetryingClient.Request<Long>() {
+                        public Long send() throws IOException {
+                            calls.incrementAndGet();
+                            throw new IOException("Connection reset");
+                        }
+                    });
+            fail();
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+        assertEquals(1, calls.get());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testTransientFailures() {
+        assertTrue(RetryingClient.isTransient(new CloudFoundryException(HttpStatus.SERVICE_UNAVAILABLE)));
+        assertTrue(RetryingClient.isTransient(new CloudFoundryException(HttpStatus.GATEWAY_TIMEOUT)));
+        assertFalse(RetryingClient.isTransient(new CloudFoundryException(HttpStatus.FORBIDDEN)));
+        assertTrue(RetryingClient.isTransient(new ResourceAccessException("I/O error", new IOException())));
+        assertFalse(RetryingClient.isTransient(
+                new ResourceAccessException("I/O error", new UnknownHostException("api.example.com"))));
+        assertFalse(RetryingClient.isTransient(new IllegalArgumentException()));
+        assertTrue(RetryingClient.isTransient(new ApplicationBitsUploader.ResponseException(429, "Too Many Requests")));
+        assertFalse(RetryingClient.isTransient(new ApplicationBitsUploader.ResponseException(400, "Bad Request")));
+        assertTrue(RetryingClient.isTransient(new IOException("Connection reset")));
+        assertFalse(RetryingClient.isTransient(new UnknownHostException("api.example.com")));
+    }
+
+    @Test
+    public void testDelaysAreJitteredAndCapped() {
+        RetryingClient retrying = new RetryingClient(null, null, 10, 100, 1000);
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long delay = retrying.getDelay(attempt);
+            assertTrue(delay >= 0);
+            assertTrue(delay <= Math.min(1000, 100L << (attempt - 1)));
+        }
+    }
+}
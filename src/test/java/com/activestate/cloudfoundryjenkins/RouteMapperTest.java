@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import net.sf.json.JSONObject;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudDomain;
+import org.cloudfoundry.client.lib.domain.CloudEntity;
+import org.cloudfoundry.client.lib.domain.CloudRoute;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RouteMapperTest {
+
+    private static final UUID APP_GUID = UUID.randomUUID();
+
+    /**
+     * A space with the example.com and apps.example.com domains, and a hello-java app mapped to www.example.com.
+     * Creating a route waits until the others are being created too.
+     */
+    private static final class FakeSpace implements InvocationHandler {
+
+        private final Map<String, List<CloudRoute>> routes = new ConcurrentHashMap<String, List<CloudRoute>>();
+        private final List<String> created = new CopyOnWriteArrayList<String>();
+        private final CountDownLatch allCreating;
+
+        private FakeSpace(int expectedCreations) {
+            this.allCreating = new CountDownLatch(expectedCreations);
+            routes.put("example.com", new CopyOnWriteArrayList<CloudRoute>());
+            routes.put("apps.example.com", new CopyOnWriteArrayList<CloudRoute>());
+            addRoute("www", "example.com");
+        }
+
+        private void addRoute(String host, String domain) {
+            CloudDomain cloudDomain = new CloudDomain(CloudEntity.Meta.defaultMeta(), domain, null);
+            routes.get(domain).add(new CloudRoute(new CloudEntity.Meta(UUID.randomUUID(), null, null),
+                    host, cloudDomain, 0));
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws InterruptedException {
+            if (method.getName().equals("getApplication")) {
+                CloudApplication app = new CloudApplication(new CloudEntity.Meta(APP_GUID, null, null), "hello-java");
+                app.setUris(Collections.singletonList("www.example.com"));
+                return app;
+            } else if (method.getName().equals("getDomains")) {
+                List<CloudDomain> domains = new ArrayList<CloudDomain>();
+                for (String domain : routes.keySet()) {
+                    domains.add(new CloudDomain(CloudEntity.Meta.defaultMeta(), domain, null));
+                }
+                return domains;
+            } else if (method.getName().equals("getRoutes")) {
+                return new ArrayList<CloudRoute>(routes.get((String) args[0]));
+            } else if (method.getName().equals("addRoute")) {
+                allCreating.countDown();
+                assertTrue("Routes are not created in parallel", allCreating.await(5, TimeUnit.SECONDS));
+                created.add(args[0] + "." + args[1]);
+                addRoute((String) args[0], (String) args[1]);
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private static RouteMapper routeMapper(FakeSpace space, final Set<String> mapped) {
+        CloudFoundryOperations client = (CloudFoundryOperations) Proxy.newProxyInstance(
+                CloudFoundryOperations.class.getClassLoader(), new Class<?>[]{CloudFoundryOperations.class}, space);
+        SpaceMetadataCache spaceCache = SpaceMetadataCache.forSpace("https://api.example.com", "org",
+                UUID.randomUUID().toString(), "user");
+        CloudControllerRest rest = new CloudControllerRest(null, null, false) {
+            @Override
+            JSONObject put(String path) {
+                mapped.add(path);
+                return new JSONObject();
+            }
+
+            @Override
+            JSONObject delete(String path) {
+                mapped.add("DELETE " + path);
+                return new JSONObject();
+            }
+        };
+        return new RouteMapper(client, spaceCache, rest);
+    }
+
+    @Test
+    public void testMissingRoutesAreCreatedAndMapped() throws Exception {
+        FakeSpace space = new FakeSpace(3);
+        Set<String> mapped = Collections.synchronizedSet(new HashSet<String>());
+        List<String> routes = Arrays.asList("www.example.com", "api.example.com", "worker.apps.example.com",
+                "example.com");
+
+        routeMapper(space, mapped).map("hello-java", routes, new PrintStream(new ByteArrayOutputStream()));
+
+        // The longest domain wins, and the route already mapped is left alone
+        assertEquals(new HashSet<String>(Arrays.asList("api.example.com", "worker.apps.example.com", ".example.com")),
+                new HashSet<String>(space.created));
+        assertEquals(3, mapped.size());
+        for (String path : mapped) {
+            assertTrue(path.startsWith("/v2/apps/" + APP_GUID + "/routes/"));
+        }
+    }
+
+    @Test
+    public void testExistingRoutesAreOnlyMapped() throws Exception {
+        FakeSpace space = new FakeSpace(0);
+        space.addRoute("api", "example.com");
+        Set<String> mapped = Collections.synchronizedSet(new HashSet<String>());
+
+        routeMapper(space, mapped).map("hello-java", Arrays.asList("www.example.com", "api.example.com"),
+                new PrintStream(new ByteArrayOutputStream()));
+
+        assertTrue(space.created.isEmpty());
+        assertEquals(1, mapped.size());
+    }
+
+    @Test
+    public void testUnmapEveryRoute() throws Exception {
+        FakeSpace space = new FakeSpace(0);
+        space.addRoute("", "example.com");
+        space.addRoute("worker", "apps.example.com");
+        Set<String> mapped = Collections.synchronizedSet(new HashSet<String>());
+
+        routeMapper(space, mapped).unmap("hello-java", APP_GUID.toString(),
+                Arrays.asList("www.example.com", "example.com", "worker.apps.example.com", "gone.example.com"));
+
+        // Each route is found on its longest domain, and the route deleted since is skipped
+        Set<String> expected = new HashSet<String>();
+        for (List<CloudRoute> routes : space.routes.values()) {
+            for (CloudRoute route : routes) {
+                expected.add("DELETE /v2/apps/" + APP_GUID + "/routes/" + route.getMeta().getGuid());
+            }
+        }
+        assertEquals(3, expected.size());
+        assertEquals(expected, mapped);
+        assertTrue(space.created.isEmpty());
+    }
+
+    @Test
+    public void testPlanChangesNothing() throws Exception {
+        FakeSpace space = new FakeSpace(0);
+        Set<String> mapped = new HashSet<String>();
+
+        List<String> changes = routeMapper(space, mapped).plan(null,
+                Arrays.asList("www.example.com", "worker.apps.example.com"));
+
+        assertEquals(Arrays.asList("map route www.example.com", "create and map route worker.apps.example.com"),
+                changes);
+        assertTrue(space.created.isEmpty());
+        assertTrue(mapped.isEmpty());
+    }
+
+    @Test
+    public void testUnknownDomain() throws Exception {
+        Set<String> mapped = new HashSet<String>();
+        try {
+            routeMapper(new FakeSpace(0), mapped).map("hello-java", Collections.singletonList("www.example.net"),
+                    new PrintStream(new ByteArrayOutputStream()));
+            fail();
+        } catch (IOException e) {
+            assertEquals("No domain of the space matches route www.example.net.", e.getMessage());
+        }
+        assertTrue(mapped.isEmpty());
+    }
+}
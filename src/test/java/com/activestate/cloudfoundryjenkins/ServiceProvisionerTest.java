@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import net.sf.json.JSONObject;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.CloudEntity;
+import org.cloudfoundry.client.lib.domain.CloudOrganization;
+import org.cloudfoundry.client.lib.domain.CloudService;
+import org.cloudfoundry.client.lib.domain.CloudServiceOffering;
+import org.cloudfoundry.client.lib.domain.CloudServicePlan;
+import org.cloudfoundry.client.lib.domain.CloudSpace;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ServiceProvisionerTest {
+
+    private static final UUID SPACE_GUID = UUID.randomUUID();
+    private static final UUID SMALL_PLAN_GUID = UUID.randomUUID();
+
+    /**
+     * A space with a mysql service, and postgresql and rabbitmq offerings with a small plan.
+     */
+    private static final class FakeSpace implements InvocationHandler {
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getServices")) {
+                return Collections.singletonList(new CloudService(CloudEntity.Meta.defaultMeta(), "mysql"));
+            } else if (method.getName().equals("getSpaces")) {
+                CloudOrganization org = new CloudOrganization(CloudEntity.Meta.defaultMeta(), "org");
+                return Arrays.asList(
+                        new CloudSpace(CloudEntity.Meta.defaultMeta(), "other", org),
+                        new CloudSpace(new CloudEntity.Meta(SPACE_GUID, null, null), "space", org));
+            } else if (method.getName().equals("getServiceOfferings")) {
+                List<CloudServiceOffering> offerings = new ArrayList<CloudServiceOffering>();
+                for (String label : Arrays.asList("postgresql", "rabbitmq")) {
+                    CloudServiceOffering offering = new CloudServiceOffering(CloudEntity.Meta.defaultMeta(), label);
+                    offering.addCloudServicePlan(new CloudServicePlan(CloudEntity.Meta.defaultMeta(), "huge"));
+                    offering.addCloudServicePlan(
+                            new CloudServicePlan(new CloudEntity.Meta(SMALL_PLAN_GUID, null, null), "small"));
+                    offerings.add(offering);
+                }
+                return offerings;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    /**
+     * A Cloud Controller creating service instances asynchronously, whose last operations go through
+     * the given states, the last one repeating forever.
+     */
+    private static class FakeController extends CloudControllerRest {
+
+        private final List<String> states;
+        private final Map<String, JSONObject> created = new ConcurrentHashMap<String, JSONObject>();
+        private final Map<String, AtomicInteger> polls = new ConcurrentHashMap<String, AtomicInteger>();
+        private final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+
+        FakeController(String... states) {
+            super(null, null, false);
+            this.states = Arrays.asList(states);
+        }
+
+        @Override
+        JSONObject post(String path, JSONObject body) throws IOException {
+            paths.add(path);
+            String guid = UUID.randomUUID().toString();
+            created.put(guid, body);
+            polls.put(guid, new AtomicInteger());
+            return new JSONObject().element("metadata", new JSONObject().element("guid", guid));
+        }
+
+        @Override
+        JSONObject get(String path) throws IOException {
+            String guid = path.substring(path.lastIndexOf('/') + 1);
+            int poll = polls.get(guid).getAndIncrement();
+            String state = states.get(Math.min(poll, states.size() - 1));
+            JSONObject lastOperation = new JSONObject().element("state", state);
+            if (state.equals("failed")) {
+                lastOperation.element("description", "out of capacity");
+            }
+            return new JSONObject().element("entity", new JSONObject().element("last_operation", lastOperation));
+        }
+
+        int getPolls() {
+            int total = 0;
+            for (AtomicInteger count : polls.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+    }
+
+    private static CloudFoundryOperations client() {
+        return (CloudFoundryOperations) Proxy.newProxyInstance(CloudFoundryOperations.class.getClassLoader(),
+                new Class<?>[]{CloudFoundryOperations.class}, new FakeSpace());
+    }
+
+    private static SpaceMetadataCache spaceCache() {
+        return SpaceMetadataCache.forSpace("https://api.example.com", "org", UUID.randomUUID().toString(),
+                "user");
+    }
+
+    private static ServiceProvisioner provisioner(CloudControllerRest rest, long timeoutMillis) {
+        return new ServiceProvisioner(client(), rest, spaceCache(), "org", "space", 1, 5, timeoutMillis);
+    }
+
+    private static List<CloudFoundryPushPublisher.Service> service(String name, String type, String plan) {
+        return Collections.singletonList(new CloudFoundryPushPublisher.Service(name, type, plan));
+    }
+
+    @Test
+    public void testMissingServicesAreCreatedInParallel() throws Exception {
+        final CountDownLatch allCreating = new CountDownLatch(2);
+        FakeController controller = new FakeController("in progress", "succeeded") {
+            @Override
+            JSONObject post(String path, JSONObject body) throws IOException {
+                allCreating.countDown();
+                try {
+                    assertTrue("Services are not created in parallel", allCreating.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return super.post(path, body);
+            }
+        };
+        List<CloudFoundryPushPublisher.Service> services = Arrays.asList(
+                new CloudFoundryPushPublisher.Service("mysql", "mysql", "100mb"),
+                new CloudFoundryPushPublisher.Service("async-db", "postgresql", "small"),
+                new CloudFoundryPushPublisher.Service("queue", "rabbitmq", "small"),
+                new CloudFoundryPushPublisher.Service("queue", "rabbitmq", "small"));
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        assertTrue(provisioner(controller, 5000).provision(services, new PrintStream(log, true)));
+
+        // The existing service and the duplicate are not created
+        assertEquals(2, controller.created.size());
+        List<String> names = new ArrayList<String>();
+        for (JSONObject request : controller.created.values()) {
+            names.add(request.getString("name"));
+            assertEquals(SPACE_GUID.toString(), request.getString("space_guid"));
+            assertEquals(SMALL_PLAN_GUID.toString(), request.getString("service_plan_guid"));
+        }
+        assertTrue(names.containsAll(Arrays.asList("async-db", "queue")));
+        assertEquals(Arrays.asList("/v2/service_instances?accepts_incomplete=true",
+                "/v2/service_instances?accepts_incomplete=true"), controller.paths);
+        assertEquals(4, controller.getPolls());
+        assertTrue(log.toString().contains("Waiting for service async-db to be provisioned."));
+        assertTrue(log.toString().contains("Service queue is ready."));
+    }
+
+    @Test
+    public void testNothingToCreate() throws Exception {
+        FakeController controller = new FakeController("succeeded");
+        assertTrue(provisioner(controller, 5000).provision(service("mysql", "mysql", "100mb"),
+                new PrintStream(new ByteArrayOutputStream())));
+        assertTrue(controller.created.isEmpty());
+        assertEquals(0, controller.getPolls());
+    }
+
+    @Test
+    public void testServiceInProgressIsPolledUntilReady() throws Exception {
+        FakeController controller = new FakeController("in progress", "in progress", "in progress", "succeeded");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        assertTrue(provisioner(controller, 5000).provision(service("async-db", "postgresql", "small"),
+                new PrintStream(log, true)));
+        assertEquals(4, controller.getPolls());
+        // Logged once, not at every poll
+        String output = log.toString();
+        String waiting = "Waiting for service async-db to be provisioned.";
+        assertEquals(output.indexOf(waiting), output.lastIndexOf(waiting));
+        assertTrue(output.contains("Service async-db is ready."));
+    }
+
+    @Test
+    public void testFailedProvisioning() throws Exception {
+        FakeController controller = new FakeController("in progress", "failed");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        assertFalse(provisioner(controller, 5000).provision(service("broken-db", "postgresql", "small"),
+                new PrintStream(log, true)));
+        assertEquals(2, controller.getPolls());
+        assertTrue(log.toString().contains("ERROR: Could not provision service broken-db: out of capacity"));
+    }
+
+    @Test
+    public void testProvisioningTimesOut() throws Exception {
+        FakeController controller = new FakeController("in progress");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        assertFalse(provisioner(controller, 50).provision(service("slow-db", "postgresql", "small"),
+                new PrintStream(log, true)));
+        assertTrue(controller.getPolls() > 1);
+        assertTrue(log.toString(), log.toString().contains("ERROR: Service slow-db is still not provisioned after"));
+    }
+
+    @Test
+    public void testPollingErrorsAreReportedOnTimeout() throws Exception {
+        FakeController controller = new FakeController("in progress") {
+            @Override
+            JSONObject get(String path) throws IOException {
+                throw new IOException("Connection refused");
+            }
+        };
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        assertFalse(provisioner(controller, 50).provision(service("slow-db", "postgresql", "small"),
+                new PrintStream(log, true)));
+        assertTrue(log.toString(), log.toString().contains("last error: Connection refused"));
+    }
+
+    @Test
+    public void testUnknownPlan() throws Exception {
+        FakeController controller = new FakeController("succeeded");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        assertFalse(provisioner(controller, 5000).provision(service("big-db", "postgresql", "enormous"),
+                new PrintStream(log, true)));
+        assertTrue(controller.created.isEmpty());
+        assertTrue(log.toString(), log.toString().contains(
+                "ERROR: Could not create service big-db: no plan enormous for service type postgresql"));
+    }
+}
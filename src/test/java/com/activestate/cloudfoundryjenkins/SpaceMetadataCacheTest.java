@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.CloudFoundryOperations;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudDomain;
+import org.cloudfoundry.client.lib.domain.CloudEntity;
+import org.cloudfoundry.client.lib.domain.CloudRoute;
+import org.cloudfoundry.client.lib.domain.CloudService;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpStatus;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SpaceMetadataCacheTest {
+
+    private static final String TARGET = "https://api.example.com";
+
+    /**
+     * A space with a hello-java app, counting the calls made to it. Listing all the apps is not allowed.
+     */
+    private static final class CountingSpace implements InvocationHandler {
+
+        private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String call = method.getName() + (args == null ? "" : " " + args[0]);
+            AtomicInteger count = calls.get(call);
+            if (count == null) {
+                count = new AtomicInteger();
+                calls.put(call, count);
+            }
+            count.incrementAndGet();
+            if (call.equals("getApplication hello-java")) {
+                return new CloudApplication(CloudEntity.Meta.defaultMeta(), "hello-java");
+            } else if (call.equals("getApplication missing")) {
+                throw new CloudFoundryException(HttpStatus.NOT_FOUND);
+            } else if (call.equals("getApplication forbidden")) {
+                throw new CloudFoundryException(HttpStatus.FORBIDDEN);
+            } else if (method.getName().equals("getRoutes")) {
+                return new ArrayList<CloudRoute>();
+            } else if (method.getName().equals("getDomains")) {
+                return new ArrayList<CloudDomain>();
+            } else if (method.getName().equals("getServices")) {
+                return new ArrayList<CloudService>();
+            }
+            throw new UnsupportedOperationException(call);
+        }
+
+        int getCalls(String call) {
+            AtomicInteger count = calls.get(call);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    private static CloudFoundryOperations client(CountingSpace space) {
+        return (CloudFoundryOperations) Proxy.newProxyInstance(CloudFoundryOperations.class.getClassLoader(),
+                new Class<?>[]{CloudFoundryOperations.class}, space);
+    }
+
+    @Test
+    public void testUsersDoNotShareCaches() {
+        String space = UUID.randomUUID().toString();
+        SpaceMetadataCache alice = SpaceMetadataCache.forSpace(TARGET, "org", space, "alice");
+
+        assertSame(alice, SpaceMetadataCache.forSpace(TARGET, "org", space, "alice"));
+        assertNotSame(alice, SpaceMetadataCache.forSpace(TARGET, "org", space, "bob"));
+    }
+
+    @Test
+    public void testIdleSpacesAreDropped() throws Exception {
+        String space = UUID.randomUUID().toString();
+        SpaceMetadataCache cache = SpaceMetadataCache.forSpace(TARGET, "org", space, "user");
+        Thread.sleep(10);
+
+        SpaceMetadataCache.evictIdle(0, SpaceMetadataCache.MAX_SPACES);
+        assertNotSame(cache, SpaceMetadataCache.forSpace(TARGET, "org", space, "user"));
+    }
+
+    @Test
+    public void testSpaceCountIsBounded() {
+        for (int i = 0; i < SpaceMetadataCache.MAX_SPACES + 10; i++) {
+            SpaceMetadataCache.forSpace(TARGET, "org", UUID.randomUUID().toString(), "user");
+        }
+        assertTrue(SpaceMetadataCache.getSpaceCount() <= SpaceMetadataCache.MAX_SPACES);
+
+        // The most recently used space is kept
+        String space = UUID.randomUUID().toString();
+        SpaceMetadataCache cache = SpaceMetadataCache.forSpace(TARGET, "org", space, "user");
+        assertSame(cache, SpaceMetadataCache.forSpace(TARGET, "org", space, "user"));
+    }
+
+    @Test
+    public void testApplicationIsLookedUpByNameOncePerTtl() throws Exception {
+        CountingSpace space = new CountingSpace();
+        CloudFoundryOperations client = client(space);
+        SpaceMetadataCache cache = new SpaceMetadataCache(SpaceMetadataCache.TTL);
+
+        CloudApplication app = cache.getApplication(client, "hello-java");
+        assertEquals("hello-java", app.getName());
+        assertSame(app, cache.getApplication(client, "hello-java"));
+
+        // Without listing the whole space
+        assertEquals(1, space.getCalls("getApplication hello-java"));
+        assertEquals(0, space.getCalls("getApplications"));
+    }
+
+    @Test
+    public void testValuesExpire() throws Exception {
+        CountingSpace space = new CountingSpace();
+        CloudFoundryOperations client = client(space);
+        SpaceMetadataCache cache = new SpaceMetadataCache(50);
+
+        cache.getApplication(client, "hello-java");
+        cache.getRoutes(client, "example.com");
+        cache.getApplication(client, "hello-java");
+        cache.getRoutes(client, "example.com");
+        assertEquals(1, space.getCalls("getApplication hello-java"));
+        assertEquals(1, space.getCalls("getRoutes example.com"));
+
+        Thread.sleep(60);
+        cache.getApplication(client, "hello-java");
+        cache.getRoutes(client, "example.com");
+        assertEquals(2, space.getCalls("getApplication hello-java"));
+        assertEquals(2, space.getCalls("getRoutes example.com"));
+    }
+
+    @Test
+    public void testMissingApplicationIsNull() throws Exception {
+        CountingSpace space = new CountingSpace();
+        CloudFoundryOperations client = client(space);
+        SpaceMetadataCache cache = new SpaceMetadataCache(SpaceMetadataCache.TTL);
+
+        assertNull(cache.getApplication(client, "missing"));
+        assertNull(cache.getApplication(client, "missing"));
+        assertEquals(1, space.getCalls("getApplication missing"));
+
+        // Other errors are not taken for a missing app
+        try {
+            cache.getApplication(client, "forbidden");
+            fail();
+        } catch (CloudFoundryException e) {
+            assertEquals(HttpStatus.FORBIDDEN, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testOwnWritesInvalidateTheCache() throws Exception {
+        CountingSpace space = new CountingSpace();
+        CloudFoundryOperations client = client(space);
+        SpaceMetadataCache cache = new SpaceMetadataCache(SpaceMetadataCache.TTL);
+        cache.getApplication(client, "hello-java");
+        cache.getRoutes(client, "example.com");
+        cache.getRoutes(client, "example.org");
+        cache.getDomains(client);
+        cache.getServices(client);
+
+        // As after updating the app, creating a route on example.com, a domain and a service
+        cache.invalidateApplication("hello-java");
+        cache.invalidateRoutes("example.com");
+        cache.invalidateDomains();
+        cache.invalidateServices();
+        cache.getApplication(client, "hello-java");
+        cache.getRoutes(client, "example.com");
+        cache.getRoutes(client, "example.org");
+        cache.getDomains(client);
+        cache.getServices(client);
+
+        assertEquals(2, space.getCalls("getApplication hello-java"));
+        assertEquals(2, space.getCalls("getRoutes example.com"));
+        assertEquals(1, space.getCalls("getRoutes example.org"));
+        assertEquals(2, space.getCalls("getDomains"));
+        assertEquals(2, space.getCalls("getServices"));
+    }
+}
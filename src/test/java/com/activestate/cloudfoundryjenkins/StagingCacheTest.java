@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StagingCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUnchangedFilesAreNotDeflatedAgain() throws Exception {
+        File appDir = folder.newFolder("app");
+        File root = folder.newFolder("staging");
+        StagingCache.Location location = location(root, "job", "app", Long.MAX_VALUE);
+        FileUtils.writeStringToFile(new File(appDir, "index.html"), StringUtils.repeat("Hello", 1000));
+        FileUtils.writeStringToFile(new File(appDir, "lib/one.txt"), StringUtils.repeat("one", 1000));
+
+        archive(appDir, location);
+        File blob = StagingCache.getBlob(new File(location.dir), "index.html");
+        assertTrue(blob.isFile());
+        assertTrue(blob.setLastModified(0));
+
+        // Only the changed file is deflated again, a different size tells it changed whatever the timestamp
+        FileUtils.writeStringToFile(new File(appDir, "lib/one.txt"), StringUtils.repeat("three", 1000));
+        Map<String, String> entries = archive(appDir, location);
+        assertEquals(0, blob.lastModified());
+        assertEquals(StringUtils.repeat("Hello", 1000), entries.get("index.html"));
+        assertEquals(StringUtils.repeat("three", 1000), entries.get("lib/one.txt"));
+    }
+
+    @Test
+    public void testDeletedFilesAreRemovedFromTheCache() throws Exception {
+        File appDir = folder.newFolder("app");
+        File root = folder.newFolder("staging");
+        StagingCache.Location location = location(root, "job", "app", Long.MAX_VALUE);
+        File file = new File(appDir, "index.html");
+        FileUtils.writeStringToFile(file, StringUtils.repeat("Hello", 1000));
+
+        archive(appDir, location);
+        File blob = StagingCache.getBlob(new File(location.dir), "index.html");
+        assertTrue(blob.isFile());
+
+        assertTrue(file.delete());
+        FileUtils.writeStringToFile(new File(appDir, "other.html"), "other");
+        Map<String, String> entries = archive(appDir, location);
+        assertFalse(blob.exists());
+        assertFalse(entries.containsKey("index.html"));
+    }
+
+    @Test
+    public void testFileNamesDoNotClashWithBlobs() throws Exception {
+        File appDir = folder.newFolder("app");
+        File root = folder.newFolder("staging");
+        StagingCache.Location location = location(root, "job", "app", Long.MAX_VALUE);
+        // Named after their files, the blob of "x" would be where the blobs of "x.deflated/" go
+        FileUtils.writeStringToFile(new File(appDir, "x"), StringUtils.repeat("file", 1000));
+        FileUtils.writeStringToFile(new File(appDir, "x.deflated/y"), StringUtils.repeat("directory", 1000));
+
+        archive(appDir, location);
+        Map<String, String> entries = archive(appDir, location);
+        assertEquals(StringUtils.repeat("file", 1000), entries.get("x"));
+        assertEquals(StringUtils.repeat("directory", 1000), entries.get("x.deflated/y"));
+    }
+
+    @Test
+    public void testCacheInUseIsNotShared() throws Exception {
+        File dir = new File(folder.getRoot(), "staging/job/app");
+        StagingCache cache = StagingCache.open(dir);
+        assertNotNull(cache);
+        assertNull(StagingCache.open(dir));
+        cache.discard();
+        assertFalse(dir.exists());
+        StagingCache reopened = StagingCache.open(dir);
+        assertNotNull(reopened);
+        reopened.discard();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedCachesAreEvicted() throws Exception {
+        File root = folder.newFolder("staging");
+        File oldest = createCache(root, "job1", "app", 1000);
+        File recent = createCache(root, "job2", "app", 3000);
+        File current = createCache(root, "job3", "app", 2000);
+
+        StagingCache.evict(root, 2500, current);
+        assertFalse(oldest.exists());
+        assertFalse(oldest.getParentFile().exists());
+        assertTrue(recent.exists());
+        assertTrue(current.exists());
+
+        StagingCache.evict(root, 0, current);
+        assertFalse(recent.exists());
+        assertTrue(current.exists());
+    }
+
+    @Test
+    public void testEvictionUsesTheSizesInTheIndex() throws Exception {
+        File appDir = folder.newFolder("app");
+        File root = folder.newFolder("staging");
+        FileUtils.writeStringToFile(new File(appDir, "index.html"), StringUtils.repeat("Hello", 100000));
+        StagingCache.Location oldest = location(root, "job1", "app", Long.MAX_VALUE);
+        StagingCache.Location current = location(root, "job2", "app", Long.MAX_VALUE);
+        archive(appDir, oldest);
+        archive(appDir, current);
+        assertTrue(new File(oldest.dir).setLastModified(1000));
+        long size = FileUtils.sizeOfDirectory(new File(current.dir));
+
+        StagingCache.evict(root, size + size / 2, new File(current.dir));
+        assertFalse(new File(oldest.dir).exists());
+        assertTrue(new File(current.dir).exists());
+    }
+
+    private static File createCache(File root, String job, String app, long lastModified) throws IOException {
+        File dir = new File(root, job + "/" + app);
+        FileUtils.writeByteArrayToFile(new File(dir, "entries/data.deflated"), new byte[1000]);
+        assertTrue(dir.setLastModified(lastModified));
+        return dir;
+    }
+
+    private static StagingCache.Location location(File root, String job, String app, long quota) {
+        return new StagingCache.Location(root.getPath(), new File(root, job + "/" + app).getPath(), quota);
+    }
+
+    private static Map<String, String> archive(File appDir, StagingCache.Location location) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FilePath(appDir).act(new ApplicationArchiver(out, Collections.<String>emptySet(), 6, location));
+
+        Map<String, String> entries = new HashMap<String, String>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            entries.put(entry.getName(), entry.isDirectory() ? null : IOUtils.toString(zip, "UTF-8"));
+        }
+        zip.close();
+        return entries;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StagingLogTailerTest {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private static class ScriptedLogSource implements StagingLogTailer.LogSource {
+        private final LinkedList<String> responses;
+        private final List<Integer> offsets = new ArrayList<Integer>();
+
+        ScriptedLogSource(String... responses) {
+            this.responses = new LinkedList<String>(Arrays.asList(responses));
+        }
+
+        public String read(int offset) {
+            offsets.add(offset);
+            return responses.isEmpty() ? null : responses.removeFirst();
+        }
+    }
+
+    @Test
+    public void testOffsetsAreInBytes() throws Exception {
+        String first = "Downloading caf\u00e9\nInst";
+        String second = "alling\n";
+        ScriptedLogSource source = new ScriptedLogSource(first, "", second);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new StagingLogTailer(source, new PrintStream(bytes, true, "UTF-8"), 1, 4).run();
+
+        int firstLength = first.getBytes("UTF-8").length;
+        int secondLength = second.getBytes("UTF-8").length;
+        assertEquals(first.length() + 1, firstLength);
+        assertEquals(Arrays.asList(0, firstLength, firstLength, firstLength + secondLength), source.offsets);
+        assertEquals("Downloading caf\u00e9" + LINE_SEPARATOR + "Installing" + LINE_SEPARATOR,
+                bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void testPartialLineIsPrintedAtTheEnd() throws Exception {
+        ScriptedLogSource source = new ScriptedLogSource("Staging ", "complete");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new StagingLogTailer(source, new PrintStream(bytes, true, "UTF-8"), 1, 4).run();
+        assertEquals("Staging complete" + LINE_SEPARATOR, bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void testUnavailableLogs() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new StagingLogTailer(new ScriptedLogSource(), new PrintStream(bytes, true, "UTF-8"), 1, 4).run();
+        assertTrue(bytes.toString("UTF-8").startsWith("WARNING: Could not get staging logs with alternate method."));
+    }
+
+    @Test
+    public void testStopReadsOneLastTime() throws Exception {
+        StagingLogTailer.LogSource endlessSource = new StagingLogTailer.LogSource() {
+            public String read(int offset) {
+                return offset == 0 ? "line\n" : "";
+            }
+        };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StagingLogTailer tailer = new StagingLogTailer(endlessSource, new PrintStream(bytes, true, "UTF-8"), 1, 4);
+        tailer.start();
+        Thread.sleep(50);
+        tailer.stop();
+        assertEquals("line" + LINE_SEPARATOR, bytes.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.activestate.cloudfoundryjenkins;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipArchiveWriterTest {
+
+    private static final int ENTRIES = 70000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMoreEntriesThanZip32Allows() throws Exception {
+        File archive = folder.newFile("app.zip");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(archive));
+        try {
+            ZipArchiveWriter zip = new ZipArchiveWriter(out);
+            zip.writeDirectory("files/", 0);
+            for (int i = 0; i < ENTRIES; i++) {
+                byte[] data = ("file " + i).getBytes("UTF-8");
+                zip.writeEntry("files/" + i + ".txt", 0, ZipEntry.STORED, crc(data), data.length, data);
+            }
+            zip.finish();
+        } finally {
+            out.close();
+        }
+
+        // The central directory is found through the Zip64 end record
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            assertEquals(ENTRIES + 1, zipFile.size());
+            ZipEntry last = zipFile.getEntry("files/" + (ENTRIES - 1) + ".txt");
+            assertNotNull(last);
+            InputStream in = zipFile.getInputStream(last);
+            try {
+                byte[] data = new byte[(int) last.getSize()];
+                assertEquals(data.length, in.read(data));
+                assertEquals("file " + (ENTRIES - 1), new String(data, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        // Streaming readers, like the Cloud Controller unzipping the upload, see every entry too
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(archive));
+        try {
+            int count = 0;
+            while (zipIn.getNextEntry() != null) {
+                count++;
+            }
+            assertEquals(ENTRIES + 1, count);
+        } finally {
+            zipIn.close();
+        }
+    }
+
+    @Test
+    public void testSmallArchiveHasNoZip64Records() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipArchiveWriter zip = new ZipArchiveWriter(out);
+        byte[] data = "Hello".getBytes("UTF-8");
+        zip.writeEntry("index.html", 0, ZipEntry.STORED, crc(data), data.length, data);
+        zip.finish();
+
+        byte[] bytes = out.toByteArray();
+        // Local header, data, central header and end record, nothing else
+        assertEquals(30 + 10 + 5 + 46 + 10 + 22, bytes.length);
+        ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(bytes));
+        assertEquals("index.html", zipIn.getNextEntry().getName());
+        assertNull(zipIn.getNextEntry());
+        zipIn.close();
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}